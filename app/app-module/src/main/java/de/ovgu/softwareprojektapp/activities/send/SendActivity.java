@@ -389,7 +389,7 @@ public class SendActivity extends AppCompatActivity implements OnCommandListener
             case SetSensorSpeed:
                 // update the speed for the given sensor
                 SetSensorSpeed setSpeedCommand = (SetSensorSpeed) command;
-                mSensorHandler.setSensorSpeed(setSpeedCommand.affectedSensor, setSpeedCommand.sensorSpeed);
+                mSensorHandler.setSensorSpeed(setSpeedCommand.affectedSensor, setSpeedCommand.sensorSpeed, setSpeedCommand.samplingPeriodUs);
                 break;
             case DisplayNotification:
                 //display message
@@ -1,6 +1,7 @@
 package de.ovgu.softwareprojektapp.networking;
 
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
@@ -13,11 +14,14 @@ import de.ovgu.softwareprojekt.control.CommandConnection;
 import de.ovgu.softwareprojekt.control.ConnectionWatch;
 import de.ovgu.softwareprojekt.control.OnCommandListener;
 import de.ovgu.softwareprojekt.control.commands.AbstractCommand;
+import de.ovgu.softwareprojekt.control.commands.Acknowledgement;
+import de.ovgu.softwareprojekt.control.commands.ClockSync;
 import de.ovgu.softwareprojekt.control.commands.ConnectionAliveCheck;
 import de.ovgu.softwareprojekt.control.commands.ConnectionRequest;
 import de.ovgu.softwareprojekt.control.commands.ConnectionRequestResponse;
 import de.ovgu.softwareprojekt.control.commands.EndConnection;
 import de.ovgu.softwareprojekt.control.commands.RemapPorts;
+import de.ovgu.softwareprojekt.control.commands.SetDataBatching;
 import de.ovgu.softwareprojekt.discovery.NetworkDevice;
 import de.ovgu.softwareprojekt.misc.ExceptionListener;
 
@@ -220,6 +224,10 @@ public class NetworkClient implements DataSink, ExceptionListener, OnCommandList
                 mOutboundDataConnection.setRemotePort(cmd.newDataPort);
                 Log.d("spapp", "networkclient: got RemapPorts to cmd" + cmd.newCommandPort);
                 break;
+            case SetDataBatching:
+                SetDataBatching batching = (SetDataBatching) command;
+                mOutboundDataConnection.setBatching(batching.maximumSamples, batching.flushInterval);
+                break;
             // completely handle connection checks
             case ConnectionAliveCheck:
                 // notify the connection watch of a server contact
@@ -230,8 +238,22 @@ public class NetworkClient implements DataSink, ExceptionListener, OnCommandList
                 response.answerer = getSelf();
                 sendCommand(response);
                 break;
+            // answer clock synchronization requests on the clock of the sensor event timestamps
+            case ClockSync:
+                ClockSync clockSync = (ClockSync) command;
+                clockSync.clientReceiveTime = SystemClock.elapsedRealtimeNanos();
+                clockSync.clientSendTime = SystemClock.elapsedRealtimeNanos();
+                sendCommand(clockSync);
+                break;
             case ConnectionRequestResponse:
                 ConnectionRequestResponse res = (ConnectionRequestResponse) command;
+
+                // the server may require a token in our data frames, and may support binary commands
+                if(res.grant) {
+                    mOutboundDataConnection.setClientToken(res.dataToken);
+                    mCommandConnection.setCommandCodecVersion(res.commandCodecVersion);
+                }
+
                 // if the connection was granted, start the connection check timer unless the network
                 // client was alread closed
                 if(res.grant && !mConnectionWatch.started() && !mWasClosed){
@@ -245,6 +267,10 @@ public class NetworkClient implements DataSink, ExceptionListener, OnCommandList
             default:
                 mCommandListener.onCommand(origin, command);
         }
+
+        // tell the server that the command was handled, if it is waiting for that
+        if (command.requiresAcknowledgement())
+            sendCommand(new Acknowledgement(command.getCorrelationId()));
     }
 
     @Override
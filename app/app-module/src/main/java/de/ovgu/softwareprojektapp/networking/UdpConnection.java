@@ -3,17 +3,23 @@ package de.ovgu.softwareprojektapp.networking;
 import android.os.AsyncTask;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.ovgu.softwareprojekt.DataSink;
 import de.ovgu.softwareprojekt.SensorData;
+import de.ovgu.softwareprojekt.SensorDataCodec;
 import de.ovgu.softwareprojekt.discovery.NetworkDevice;
 import de.ovgu.softwareprojekt.misc.ExceptionListener;
 
@@ -43,6 +49,47 @@ public class UdpConnection implements DataSink {
      */
     private ExceptionListener mExceptionListener;
 
+    /**
+     * The token the server assigned to us, which must be included in each data frame
+     */
+    private volatile int mClientToken = SensorDataCodec.NO_CLIENT_TOKEN;
+
+    /**
+     * The sequence number of the next datagram, used by the server to detect lost, duplicated and reordered datagrams
+     */
+    private final AtomicInteger mNextSequenceNumber = new AtomicInteger();
+
+    /**
+     * How many samples may be sent in a single datagram; batching is disabled if this is 1 or less. Configured by the
+     * server using {@link de.ovgu.softwareprojekt.control.commands.SetDataBatching}.
+     */
+    private volatile int mBatchMaximumSamples = 1;
+
+    /**
+     * How long a sample may wait in a batch before the batch is sent, in milliseconds
+     */
+    private int mBatchFlushInterval = 0;
+
+    /**
+     * Contains the batch frame currently being filled. Guarded by {@link #mBatchLock}.
+     */
+    private final ByteBuffer mBatchBuffer = ByteBuffer.allocate(SensorDataCodec.MAXIMUM_BATCH_FRAME_SIZE);
+
+    /**
+     * Guards all batch related fields
+     */
+    private final Object mBatchLock = new Object();
+
+    /**
+     * The pending flush of the current batch, or null if the current batch is empty
+     */
+    private ScheduledFuture<?> mPendingFlush;
+
+    /**
+     * Sends the batches and flushes them after the flush interval; network access is not allowed on the ui thread
+     */
+    private final ScheduledExecutorService mBatchExecutor = Executors.newSingleThreadScheduledExecutor();
+
     /**
      * Initialize the connection using specified port and host
      */
@@ -67,6 +114,10 @@ public class UdpConnection implements DataSink {
      */
     @Override
     public void close() {
+        // shut down under the batch lock, so that addToBatch() cannot schedule a flush on the terminated executor
+        synchronized (mBatchLock) {
+            mBatchExecutor.shutdownNow();
+        }
         mSocket.close();
     }
 
@@ -75,10 +126,106 @@ public class UdpConnection implements DataSink {
      */
     @Override
     public void onData(SensorData sensorData) {
-        if(!mSocket.isClosed())
-            new SensorOut().execute(sensorData);
-        else
+        if(mSocket.isClosed())
             Log.w("PsychicApp", "You are trying to send data on a closed connection!");
+        else if(mBatchMaximumSamples > 1)
+            addToBatch(sensorData);
+        else
+            // the sequence number is assigned here, so that it follows the order of the data
+            new SensorOut(mNextSequenceNumber.getAndIncrement()).execute(sensorData);
+    }
+
+    /**
+     * Change how samples are batched. Any pending batch is sent immediately.
+     * @param maximumSamples how many samples may be sent in a single datagram; 1 disables batching
+     * @param flushInterval how long a sample may wait in a batch, in milliseconds
+     */
+    void setBatching(int maximumSamples, int flushInterval) {
+        synchronized (mBatchLock) {
+            flushBatch();
+            mBatchMaximumSamples = Math.min(maximumSamples, SensorDataCodec.MAXIMUM_BATCH_SAMPLES);
+            mBatchFlushInterval = flushInterval;
+        }
+    }
+
+    /**
+     * Add a sample to the current batch, sending the batch if it is full
+     * @param sensorData the sample to be sent
+     */
+    private void addToBatch(SensorData sensorData) {
+        synchronized (mBatchLock) {
+            // the connection was closed after onData() checked the socket
+            if (mBatchExecutor.isShutdown())
+                return;
+
+            // send the current batch first if the sample does not fit in anymore
+            int sampleSize = SensorDataCodec.getSampleSize(sensorData.data.length);
+            if (mPendingFlush != null && mBatchBuffer.remaining() < sampleSize)
+                flushBatch();
+
+            // begin a new batch, and make sure it will be sent in time
+            if (mPendingFlush == null) {
+                SensorDataCodec.beginBatch(mClientToken, mNextSequenceNumber.getAndIncrement(), mBatchBuffer);
+                mPendingFlush = mBatchExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (mBatchLock) {
+                            flushBatch();
+                        }
+                    }
+                }, mBatchFlushInterval, TimeUnit.MILLISECONDS);
+            }
+
+            try {
+                SensorDataCodec.appendToBatch(sensorData, mBatchBuffer);
+            } catch (IOException e) {
+                mExceptionListener.onException(this, e, "UdpConnection: could not batch SensorData object");
+                return;
+            }
+
+            if (SensorDataCodec.getBatchSampleCount(mBatchBuffer) >= mBatchMaximumSamples)
+                flushBatch();
+        }
+    }
+
+    /**
+     * Send the current batch if it is not empty. Must be called while holding {@link #mBatchLock}.
+     */
+    private void flushBatch() {
+        // nothing to send
+        if (mPendingFlush == null)
+            return;
+
+        // the batch is sent now, so the timed flush is no longer needed
+        mPendingFlush.cancel(false);
+        mPendingFlush = null;
+
+        // copy the batch, as the buffer will be reused immediately
+        final byte[] batch = Arrays.copyOf(mBatchBuffer.array(), mBatchBuffer.position());
+        if (!mBatchExecutor.isShutdown())
+            mBatchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    send(batch);
+                }
+            });
+    }
+
+    /**
+     * Send a single datagram to the server
+     * @param frame the encoded frame
+     * @return true if the datagram was sent successfully
+     */
+    private boolean send(byte[] frame) {
+        try {
+            DatagramPacket sendPacket = new DatagramPacket(frame, frame.length, mHost, mPort);
+            mSocket.send(sendPacket);
+        } catch (IOException e) {
+            mExceptionListener.onException(UdpConnection.this, e, "UdpConnection: could not send SensorData object");
+            return false;
+        }
+
+        return true;
     }
 
     /**
@@ -89,31 +236,40 @@ public class UdpConnection implements DataSink {
         mPort = remotePort;
     }
 
+    /**
+     * Set the token the server uses to identify our data
+     * @param clientToken the token received in the connection request response
+     */
+    void setClientToken(int clientToken) {
+        mClientToken = clientToken;
+    }
+
     /**
      * Class to encapsulate sending SensorData objects asynchronously
      */
     private class SensorOut extends AsyncTask<SensorData, Void, Boolean> {
+        /**
+         * The sequence number of the datagram sent by this task
+         */
+        private final int mSequenceNumber;
+
+        /**
+         * Create a new task sending a single datagram
+         * @param sequenceNumber the sequence number of the datagram
+         */
+        SensorOut(int sequenceNumber) {
+            mSequenceNumber = sequenceNumber;
+        }
 
         @Override
         protected Boolean doInBackground(SensorData... sensorData) {
             try {
-                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                ObjectOutputStream os = new ObjectOutputStream(outputStream);
-
-                os.writeObject(sensorData[0]);
-                byte[] data = outputStream.toByteArray();
-
-                //long start = System.nanoTime(); // benchmarking
-                //System.out.println(System.nanoTime() - start); // benchmarking
-
-                DatagramPacket sendPacket = new DatagramPacket(data, data.length, mHost, mPort);
-                mSocket.send(sendPacket);
+                // encode the data using the compact binary frame instead of java serialization
+                return send(SensorDataCodec.encode(sensorData[0], mClientToken, mSequenceNumber));
             } catch (IOException e) {
-                mExceptionListener.onException(UdpConnection.this, e, "UdpConnection: could not send SensorData object");
+                mExceptionListener.onException(UdpConnection.this, e, "UdpConnection: could not encode SensorData object");
                 return false;
             }
-
-            return true;
         }
     }
 }
\ No newline at end of file
@@ -7,6 +7,7 @@ import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 
 import java.io.IOException;
+import java.util.EnumMap;
 
 import de.ovgu.softwareprojekt.DataSink;
 import de.ovgu.softwareprojekt.DataSource;
@@ -44,6 +45,12 @@ public abstract class AbstractSensor implements DataSource, SensorEventListener
      */
     private final SensorType mPsychicSensorType;
 
+    /**
+     * The sampling periods requested by the server in microseconds, shared by all instances of a sensor type like
+     * the sensor speeds. Sensor types without an entry use their sensor speed.
+     */
+    private static final EnumMap<SensorType, Integer> sSamplingPeriods = new EnumMap<>(SensorType.class);
+
     /**
      * Create a new sensor object; does not start anything yet, use {@link #start()} or {@link #setRunning(boolean)}
      * to start receiving events
@@ -99,7 +106,41 @@ public abstract class AbstractSensor implements DataSource, SensorEventListener
             throw new IOException("Sensor not detected");
 
         // register a listener for this sensor
-        mSensorManager.registerListener(this, sensor, translateSensorSpeed(getSensorSpeed()));
+        mSensorManager.registerListener(this, sensor, getSamplingPeriod());
+    }
+
+    /**
+     * Get the sampling period to register the listener with
+     *
+     * @return the sampling period requested by the server in microseconds, or the translated sensor speed
+     */
+    private int getSamplingPeriod() {
+        synchronized (sSamplingPeriods) {
+            Integer samplingPeriod = sSamplingPeriods.get(mPsychicSensorType);
+            if (samplingPeriod != null)
+                return samplingPeriod;
+        }
+        return translateSensorSpeed(getSensorSpeed());
+    }
+
+    /**
+     * Changes the frequency of this sensor, using an exact sampling period if the server requested one. Android
+     * treats the period as a hint, and delivers events at least this often.
+     *
+     * @param targetSpeed      the speed the sensor should run at if no sampling period is given
+     * @param samplingPeriodUs the time between two events in microseconds, or {@link SetSensorSpeed#USE_SENSOR_SPEED}
+     * @throws IOException when the sensor could not be restarted
+     */
+    public void setSensorSpeed(SetSensorSpeed.SensorSpeed targetSpeed, int samplingPeriodUs) throws IOException {
+        synchronized (sSamplingPeriods) {
+            if (samplingPeriodUs == SetSensorSpeed.USE_SENSOR_SPEED)
+                sSamplingPeriods.remove(mPsychicSensorType);
+            else
+                sSamplingPeriods.put(mPsychicSensorType, samplingPeriodUs);
+        }
+
+        // restarts the listener, which then uses the new period
+        setSensorSpeed(targetSpeed);
     }
 
     /**
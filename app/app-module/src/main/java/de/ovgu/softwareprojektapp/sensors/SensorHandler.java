@@ -78,18 +78,20 @@ public class SensorHandler {
     /**
      * Update the sensor speed for a given sensor
      *
-     * @param sensorType  the sensor type that should change its speed
-     * @param sensorSpeed the speed the sensor should switch to
+     * @param sensorType       the sensor type that should change its speed
+     * @param sensorSpeed      the speed the sensor should switch to
+     * @param samplingPeriodUs the time between two events in microseconds, or {@link SetSensorSpeed#USE_SENSOR_SPEED}
+     *                         to use the sensor speed
      * @return true if the setting succeeded
      */
-    public boolean setSensorSpeed(SensorType sensorType, SetSensorSpeed.SensorSpeed sensorSpeed) {
+    public boolean setSensorSpeed(SensorType sensorType, SetSensorSpeed.SensorSpeed sensorSpeed, int samplingPeriodUs) {
         try {
             // because java does not allow abstract static methods, we have to instantiate the
             // sensor if we want to set its static member variable defining the speed -.-
             AbstractSensor sensor = getSensor(sensorType);
 
             // change speed
-            sensor.setSensorSpeed(sensorSpeed);
+            sensor.setSensorSpeed(sensorSpeed, samplingPeriodUs);
             return true;
 
             // if anything throws, we failed.
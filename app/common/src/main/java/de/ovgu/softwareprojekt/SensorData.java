@@ -12,6 +12,12 @@ import java.util.Arrays;
  */
 @SuppressWarnings("WeakerAccess")
 public class SensorData implements Serializable, Cloneable, Externalizable {
+    /**
+     * The version computed for the original field set, so that older apps sending serialized data stay compatible
+     * with the server-only timestamp fields
+     */
+    private static final long serialVersionUID = -3591261940780953748L;
+
     /**
      * Type of the sensor this data belongs to
      */
@@ -27,6 +33,18 @@ public class SensorData implements Serializable, Cloneable, Externalizable {
      */
     public long timestamp = 0;
 
+    /**
+     * When the datagram containing this sample arrived at the server, see {@link System#nanoTime()}, or 0 if unknown.
+     * It is set by the server and never transmitted.
+     */
+    public long ingressTimestamp = 0;
+
+    /**
+     * The {@link #timestamp} converted to the server clock, see {@link System#nanoTime()}, or 0 if the clock of the
+     * client is not synchronized. It is set by the server and never transmitted.
+     */
+    public long serverTimestamp = 0;
+
     /**
      * Create a new {@link SensorData} instance
      *
@@ -0,0 +1,521 @@
+package de.ovgu.softwareprojekt;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class converts {@link SensorData} objects to and from the compact binary frames used on the udp data path.
+ * <p>
+ * A frame has the following fixed layout (big endian):
+ * <ol>
+ * <li>one magic/version byte, see {@link #FRAME_VERSION_1}, {@link #FRAME_VERSION_2}, {@link #FRAME_VERSION_BATCH}
+ * and {@link #FRAME_VERSION_SEQUENCED}</li>
+ * <li>all but version 1: the 4 byte client token assigned by the server, see {@link #peekClientToken(ByteBuffer)}</li>
+ * <li>sequenced only: the 4 byte sequence number of the datagram, see {@link #peekSequenceNumber(ByteBuffer)}</li>
+ * <li>batch and sequenced only: one byte containing the number of samples in the frame</li>
+ * <li>the samples; a single one unless the frame is a batch or sequenced frame</li>
+ * </ol>
+ * Each sample has the following layout:
+ * <ol>
+ * <li>one byte containing the {@link SensorType} ordinal</li>
+ * <li>one byte containing the number of axes (data values)</li>
+ * <li>the raw data values as 4 byte floats</li>
+ * <li>the 8 byte android timestamp</li>
+ * </ol>
+ * Packets created by older apps using java serialization are still accepted by {@link #decode(ByteBuffer, SensorData)}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SensorDataCodec {
+    /**
+     * The magic/version byte of the first frame version. The upper nibble identifies the frame as a psychic data frame,
+     * the lower nibble contains the version.
+     */
+    public static final byte FRAME_VERSION_1 = 0x51;
+
+    /**
+     * The magic/version byte of frames that additionally contain the client token, which is required if the server
+     * receives the data of all clients on a single port.
+     */
+    public static final byte FRAME_VERSION_2 = 0x52;
+
+    /**
+     * The magic/version byte of frames containing multiple samples, possibly of different sensors. Batch frames
+     * always contain the client token.
+     */
+    public static final byte FRAME_VERSION_BATCH = 0x53;
+
+    /**
+     * The magic/version byte of frames containing a sequence number, which allows the server to detect lost,
+     * duplicated and reordered datagrams. Sequenced frames always contain the client token and a sample count.
+     */
+    public static final byte FRAME_VERSION_SEQUENCED = 0x54;
+
+    /**
+     * Returned by {@link #peekSequenceNumber(ByteBuffer)} if the frame does not contain a sequence number
+     */
+    public static final long NO_SEQUENCE_NUMBER = -1;
+
+    /**
+     * The client token value signalling that no token is used. Frames with this token are encoded as version 1 frames.
+     */
+    public static final int NO_CLIENT_TOKEN = 0;
+
+    /**
+     * The maximum size of a batch frame. Chosen so that the datagram fits into a single ethernet frame, even with
+     * ipv6 and some tunnel overhead.
+     */
+    public static final int MAXIMUM_BATCH_FRAME_SIZE = 1400;
+
+    /**
+     * The maximum number of samples in a batch frame, as the count is stored in a single byte
+     */
+    public static final int MAXIMUM_BATCH_SAMPLES = 0xFF;
+
+    /**
+     * The upper nibble of every psychic data frame
+     */
+    private static final int FRAME_MAGIC = 0x50;
+
+    /**
+     * The first byte of a java serialization stream (0xACED), which is how old app versions send their data
+     */
+    private static final byte LEGACY_STREAM_MAGIC = (byte) 0xAC;
+
+    /**
+     * Number of bytes a sample needs in addition to the data values: ordinal, axis count and timestamp
+     */
+    private static final int SAMPLE_OVERHEAD = 1 + 1 + 8;
+
+    /**
+     * Number of bytes the client token needs
+     */
+    private static final int CLIENT_TOKEN_SIZE = 4;
+
+    /**
+     * Number of bytes the sequence number needs
+     */
+    private static final int SEQUENCE_NUMBER_SIZE = 4;
+
+    /**
+     * Position of the sample count in a batch frame: after the magic/version byte and the client token
+     */
+    private static final int BATCH_COUNT_OFFSET = 1 + CLIENT_TOKEN_SIZE;
+
+    /**
+     * Position of the sample count in a sequenced frame: after the magic/version byte, client token and sequence number
+     */
+    private static final int SEQUENCED_COUNT_OFFSET = 1 + CLIENT_TOKEN_SIZE + SEQUENCE_NUMBER_SIZE;
+
+    /**
+     * Cached {@link SensorType#values()}, as that creates a new array on each call
+     */
+    private static final SensorType[] SENSOR_TYPES = SensorType.values();
+
+    /**
+     * This class only has static members
+     */
+    private SensorDataCodec() {
+    }
+
+    /**
+     * Calculate the size of a frame containing the given number of data values
+     *
+     * @param axisCount number of data values
+     * @return the number of bytes {@link #encode(SensorData, ByteBuffer)} will write
+     */
+    public static int getFrameSize(int axisCount) {
+        return getFrameSize(axisCount, NO_CLIENT_TOKEN);
+    }
+
+    /**
+     * Calculate the size of a frame containing the given number of data values and client token
+     *
+     * @param axisCount   number of data values
+     * @param clientToken the client token that will be written, or {@link #NO_CLIENT_TOKEN}
+     * @return the number of bytes {@link #encode(SensorData, int, ByteBuffer)} will write
+     */
+    public static int getFrameSize(int axisCount, int clientToken) {
+        int size = 1 + getSampleSize(axisCount);
+        return clientToken != NO_CLIENT_TOKEN ? size + CLIENT_TOKEN_SIZE : size;
+    }
+
+    /**
+     * Calculate the size of a sequenced frame containing a single sample with the given number of data values
+     *
+     * @param axisCount number of data values
+     * @return the number of bytes {@link #encode(SensorData, int, int, ByteBuffer)} will write
+     */
+    public static int getSequencedFrameSize(int axisCount) {
+        return SEQUENCED_COUNT_OFFSET + 1 + getSampleSize(axisCount);
+    }
+
+    /**
+     * Calculate how many bytes a sample with the given number of data values needs in a batch frame
+     *
+     * @param axisCount number of data values
+     * @return the number of bytes {@link #appendToBatch(SensorData, ByteBuffer)} will write
+     */
+    public static int getSampleSize(int axisCount) {
+        return SAMPLE_OVERHEAD + 4 * axisCount;
+    }
+
+    /**
+     * Write a frame representing the given sensor data into the buffer, beginning at its current position.
+     *
+     * @param data   the sensor data to encode
+     * @param target where the frame should be written to. The position will be advanced by the frame size.
+     * @throws IOException if the data cannot be represented in a frame or the buffer is too small
+     */
+    public static void encode(SensorData data, ByteBuffer target) throws IOException {
+        encode(data, NO_CLIENT_TOKEN, target);
+    }
+
+    /**
+     * Write a frame representing the given sensor data into the buffer, beginning at its current position.
+     *
+     * @param data        the sensor data to encode
+     * @param clientToken the token the server assigned to this client, or {@link #NO_CLIENT_TOKEN}
+     * @param target      where the frame should be written to. The position will be advanced by the frame size.
+     * @throws IOException if the data cannot be represented in a frame or the buffer is too small
+     */
+    public static void encode(SensorData data, int clientToken, ByteBuffer target) throws IOException {
+        try {
+            // the client token is only written if one is used
+            if (clientToken != NO_CLIENT_TOKEN) {
+                target.put(FRAME_VERSION_2);
+                target.putInt(clientToken);
+            } else
+                target.put(FRAME_VERSION_1);
+
+            writeSample(data, target);
+        } catch (BufferOverflowException e) {
+            throw new IOException("Buffer too small for SensorData frame", e);
+        }
+    }
+
+    /**
+     * Write a sequenced frame containing only the given sensor data into the buffer, beginning at its current position.
+     *
+     * @param data           the sensor data to encode
+     * @param clientToken    the token the server assigned to this client, or {@link #NO_CLIENT_TOKEN}
+     * @param sequenceNumber the sequence number of this datagram; it should be incremented for each datagram sent
+     * @param target         where the frame should be written to. The position will be advanced by the frame size.
+     * @throws IOException if the data cannot be represented in a frame or the buffer is too small
+     */
+    public static void encode(SensorData data, int clientToken, int sequenceNumber, ByteBuffer target) throws IOException {
+        try {
+            target.put(FRAME_VERSION_SEQUENCED);
+            target.putInt(clientToken);
+            target.putInt(sequenceNumber);
+            target.put((byte) 1);
+
+            writeSample(data, target);
+        } catch (BufferOverflowException e) {
+            throw new IOException("Buffer too small for SensorData frame", e);
+        }
+    }
+
+    /**
+     * Create a byte array containing a sequenced frame representing the given sensor data
+     *
+     * @param data           the sensor data to encode
+     * @param clientToken    the token the server assigned to this client, or {@link #NO_CLIENT_TOKEN}
+     * @param sequenceNumber the sequence number of this datagram; it should be incremented for each datagram sent
+     * @return a byte array containing exactly one frame
+     * @throws IOException if the data cannot be represented in a frame
+     */
+    public static byte[] encode(SensorData data, int clientToken, int sequenceNumber) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(getSequencedFrameSize(data.data.length));
+        encode(data, clientToken, sequenceNumber, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Create a byte array containing a frame representing the given sensor data
+     *
+     * @param data the sensor data to encode
+     * @return a byte array containing exactly one frame
+     * @throws IOException if the data cannot be represented in a frame
+     */
+    public static byte[] encode(SensorData data) throws IOException {
+        return encode(data, NO_CLIENT_TOKEN);
+    }
+
+    /**
+     * Create a byte array containing a frame representing the given sensor data
+     *
+     * @param data        the sensor data to encode
+     * @param clientToken the token the server assigned to this client, or {@link #NO_CLIENT_TOKEN}
+     * @return a byte array containing exactly one frame
+     * @throws IOException if the data cannot be represented in a frame
+     */
+    public static byte[] encode(SensorData data, int clientToken) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(getFrameSize(data.data.length, clientToken));
+        encode(data, clientToken, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Begin a new batch frame. The batch frame must begin at index zero of the buffer, so the buffer is cleared.
+     * Samples can then be added using {@link #appendToBatch(SensorData, ByteBuffer)}.
+     *
+     * @param clientToken the token the server assigned to this client, or {@link #NO_CLIENT_TOKEN}
+     * @param target      the buffer the batch frame should be written to
+     */
+    public static void beginBatch(int clientToken, ByteBuffer target) {
+        target.clear();
+        target.put(FRAME_VERSION_BATCH);
+        target.putInt(clientToken);
+
+        // the sample count is updated by appendToBatch
+        target.put((byte) 0);
+    }
+
+    /**
+     * Begin a new sequenced batch frame. The batch frame must begin at index zero of the buffer, so the buffer is
+     * cleared. Samples can then be added using {@link #appendToBatch(SensorData, ByteBuffer)}.
+     *
+     * @param clientToken    the token the server assigned to this client, or {@link #NO_CLIENT_TOKEN}
+     * @param sequenceNumber the sequence number of this datagram; it should be incremented for each datagram sent
+     * @param target         the buffer the batch frame should be written to
+     */
+    public static void beginBatch(int clientToken, int sequenceNumber, ByteBuffer target) {
+        target.clear();
+        target.put(FRAME_VERSION_SEQUENCED);
+        target.putInt(clientToken);
+        target.putInt(sequenceNumber);
+
+        // the sample count is updated by appendToBatch
+        target.put((byte) 0);
+    }
+
+    /**
+     * Add a sample to a batch frame started using {@link #beginBatch(int, ByteBuffer)} or
+     * {@link #beginBatch(int, int, ByteBuffer)}. The buffer contains a valid frame from index zero up to its position
+     * afterwards.
+     *
+     * @param data   the sensor data to add
+     * @param target the buffer containing the batch frame
+     * @throws IOException if the data cannot be represented in a frame, the batch is full or the buffer is too small
+     */
+    public static void appendToBatch(SensorData data, ByteBuffer target) throws IOException {
+        int sampleCount = getBatchSampleCount(target);
+        if (sampleCount >= MAXIMUM_BATCH_SAMPLES)
+            throw new IOException("Batch frame is full");
+
+        // do not leave a partially written sample in the buffer if it is too small
+        int position = target.position();
+        try {
+            writeSample(data, target);
+        } catch (BufferOverflowException e) {
+            target.position(position);
+            throw new IOException("Buffer too small for SensorData batch frame", e);
+        }
+
+        target.put(getBatchCountOffset(target), (byte) (sampleCount + 1));
+    }
+
+    /**
+     * Get the number of samples added to a batch frame
+     *
+     * @param batch the buffer containing the batch frame
+     * @return the number of samples in the batch frame
+     */
+    public static int getBatchSampleCount(ByteBuffer batch) {
+        return batch.get(getBatchCountOffset(batch)) & 0xFF;
+    }
+
+    /**
+     * Get the position of the sample count in a batch frame beginning at index zero of the buffer
+     *
+     * @param batch the buffer containing the batch frame
+     * @return the index of the sample count
+     */
+    private static int getBatchCountOffset(ByteBuffer batch) {
+        return batch.get(0) == FRAME_VERSION_SEQUENCED ? SEQUENCED_COUNT_OFFSET : BATCH_COUNT_OFFSET;
+    }
+
+    /**
+     * Check whether the packet in the buffer was created using java serialization by an older app
+     *
+     * @param source buffer positioned at the start of the packet. The position is not changed.
+     * @return true if the packet is a serialized {@link SensorData} object
+     */
+    public static boolean isLegacyFrame(ByteBuffer source) {
+        return source.remaining() > 0 && source.get(source.position()) == LEGACY_STREAM_MAGIC;
+    }
+
+    /**
+     * Read the client token of the frame in the buffer without decoding it
+     *
+     * @param source buffer positioned at the start of the frame. The position is not changed.
+     * @return the client token, or {@link #NO_CLIENT_TOKEN} if the frame does not contain one
+     */
+    public static int peekClientToken(ByteBuffer source) {
+        int position = source.position();
+
+        // all frames except version 1 frames contain a token
+        if (source.remaining() < 1 + CLIENT_TOKEN_SIZE)
+            return NO_CLIENT_TOKEN;
+
+        byte version = source.get(position);
+        if (version != FRAME_VERSION_2 && version != FRAME_VERSION_BATCH && version != FRAME_VERSION_SEQUENCED)
+            return NO_CLIENT_TOKEN;
+
+        return source.getInt(position + 1);
+    }
+
+    /**
+     * Read the sequence number of the frame in the buffer without decoding it
+     *
+     * @param source buffer positioned at the start of the frame. The position is not changed.
+     * @return the unsigned sequence number, or {@link #NO_SEQUENCE_NUMBER} if the frame does not contain one
+     */
+    public static long peekSequenceNumber(ByteBuffer source) {
+        int position = source.position();
+
+        // only sequenced frames contain a sequence number
+        if (source.remaining() < SEQUENCED_COUNT_OFFSET || source.get(position) != FRAME_VERSION_SEQUENCED)
+            return NO_SEQUENCE_NUMBER;
+
+        return source.getInt(position + 1 + CLIENT_TOKEN_SIZE) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Read a frame containing a single sample from the buffer, beginning at its current position.
+     *
+     * @param source buffer containing the frame. The position will be advanced to the end of the frame.
+     * @param target the decoded values will be written into this instance. Its data array will be reused if its
+     *               length matches the axis count of the frame. May be null, in which case a new instance is created.
+     * @return the decoded data. This is target, unless target was null or the packet was a legacy packet.
+     * @throws IOException if the packet is neither a valid single sample frame nor a serialized {@link SensorData} object
+     */
+    public static SensorData decode(ByteBuffer source, SensorData target) throws IOException {
+        // old apps still send serialized objects
+        if (isLegacyFrame(source))
+            return decodeLegacy(source);
+
+        if (readFrameHeader(source) != 1)
+            throw new StreamCorruptedException("Expected a single sample frame");
+
+        return readSample(source, target);
+    }
+
+    /**
+     * Read the header of a frame, beginning at the current position of the buffer. Afterwards, the samples can be read
+     * using {@link #readSample(ByteBuffer, SensorData)}. Does not support legacy packets; check using
+     * {@link #isLegacyFrame(ByteBuffer)} and use {@link #decode(ByteBuffer, SensorData)} for those.
+     *
+     * @param source buffer containing the frame. The position will be advanced to the first sample.
+     * @return the number of samples in the frame
+     * @throws IOException if the buffer does not contain a valid frame header
+     */
+    public static int readFrameHeader(ByteBuffer source) throws IOException {
+        try {
+            byte version = source.get();
+            if ((version & 0xF0) != FRAME_MAGIC)
+                throw new StreamCorruptedException("Not a SensorData frame");
+
+            switch (version) {
+                case FRAME_VERSION_1:
+                    return 1;
+                case FRAME_VERSION_2:
+                    // skip the client token; it was already used to find the connection, see peekClientToken
+                    source.getInt();
+                    return 1;
+                case FRAME_VERSION_BATCH:
+                    source.getInt();
+                    return source.get() & 0xFF;
+                case FRAME_VERSION_SEQUENCED:
+                    // skip client token and sequence number, see peekSequenceNumber
+                    source.getInt();
+                    source.getInt();
+                    return source.get() & 0xFF;
+                default:
+                    throw new StreamCorruptedException("Unsupported SensorData frame version " + (version & 0x0F));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated SensorData frame");
+        }
+    }
+
+    /**
+     * Read a single sample, beginning at the current position of the buffer
+     *
+     * @param source buffer containing the sample. The position will be advanced to the end of the sample.
+     * @param target the decoded values will be written into this instance. Its data array will be reused if its
+     *               length matches the axis count of the sample. May be null, in which case a new instance is created.
+     * @return the decoded data. This is target, unless target was null.
+     * @throws IOException if the buffer does not contain a valid sample
+     */
+    public static SensorData readSample(ByteBuffer source, SensorData target) throws IOException {
+        if (target == null)
+            target = new SensorData();
+
+        try {
+            int ordinal = source.get() & 0xFF;
+            if (ordinal >= SENSOR_TYPES.length)
+                throw new StreamCorruptedException("Unknown sensor ordinal " + ordinal);
+            target.sensorType = SENSOR_TYPES[ordinal];
+
+            // reuse the data array if possible
+            int axisCount = source.get() & 0xFF;
+            if (target.data == null || target.data.length != axisCount)
+                target.data = new float[axisCount];
+
+            for (int i = 0; i < axisCount; i++)
+                target.data[i] = source.getFloat();
+
+            target.timestamp = source.getLong();
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated SensorData frame");
+        }
+
+        return target;
+    }
+
+    /**
+     * Write a single sample into the buffer, beginning at its current position
+     *
+     * @param data   the sensor data to encode
+     * @param target where the sample should be written to
+     * @throws IOException if the data cannot be represented in a sample
+     */
+    private static void writeSample(SensorData data, ByteBuffer target) throws IOException {
+        // we only have a single byte for the axis count
+        if (data.data.length > 0xFF)
+            throw new StreamCorruptedException("Too many data values for a single frame: " + data.data.length);
+
+        target.put((byte) data.sensorType.ordinal());
+        target.put((byte) data.data.length);
+
+        for (float value : data.data)
+            target.putFloat(value);
+
+        target.putLong(data.timestamp);
+    }
+
+    /**
+     * Read a {@link SensorData} object serialized using an {@link java.io.ObjectOutputStream}
+     *
+     * @param source buffer containing the serialized object. The position will be advanced to its limit.
+     * @return the deserialized object
+     * @throws IOException if the packet did not contain a SensorData object
+     */
+    private static SensorData decodeLegacy(ByteBuffer source) throws IOException {
+        // the object stream needs an array to read from
+        byte[] packet = new byte[source.remaining()];
+        source.get(packet);
+
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(packet))) {
+            return (SensorData) objectInputStream.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new StreamCorruptedException("Legacy packet did not contain SensorData: " + e.getMessage());
+        }
+    }
+}
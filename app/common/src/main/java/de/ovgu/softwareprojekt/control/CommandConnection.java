@@ -1,17 +1,27 @@
 package de.ovgu.softwareprojekt.control;
 
 import de.ovgu.softwareprojekt.control.commands.AbstractCommand;
+import de.ovgu.softwareprojekt.control.commands.CommandBatch;
+import de.ovgu.softwareprojekt.control.commands.CommandCodecRegistry;
+import de.ovgu.softwareprojekt.control.commands.CommandType;
 import de.ovgu.softwareprojekt.discovery.NetworkDevice;
 import de.ovgu.softwareprojekt.misc.ExceptionListener;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * <p>
@@ -24,9 +34,31 @@ import java.net.UnknownHostException;
  * When you want to send commands with it, you need to configure the remote host using {@link #setRemote(InetAddress, int)}
  * first. Then you can use {@link #sendCommand(AbstractCommand)} to send any {@link AbstractCommand} subclass.
  * </p>
+ * <p>
+ * Commands are sent over a persistent tcp connection, which is opened with the first command and reused for all
+ * following ones. If the remote has already connected to us, its connection is used in the other direction too, so
+ * that both ends share a single socket. Each command is framed with its length, so any number of commands can be
+ * sent over one connection. If sending fails, or the remote closes the connection, a new one is opened for the next
+ * command.
+ * </p>
+ * <p>
+ * Commands are delivered at most once. A failed command is not sent again, since part of it may already have arrived,
+ * and a command written just before the remote closed the connection is lost without an error. If you need to know
+ * that a command arrived, wait for an answer of the remote, like the
+ * {@link de.ovgu.softwareprojekt.control.commands.Acknowledgement} sent for commands with a correlation id.
+ * </p>
+ * <p>
+ * Commands are serialized, until both ends have agreed on a binary codec version using
+ * {@link #setCommandCodecVersion(int)}. Both formats are always accepted when receiving.
+ * </p>
  */
 @SuppressWarnings("WeakerAccess")
-public class CommandConnection {
+public class CommandConnection implements CommandSender {
+    /**
+     * How long connecting to the remote may take, in milliseconds
+     */
+    private static final int CONNECT_TIMEOUT = 2000;
+
     /**
      * This listener must be notified of new commands arriving
      */
@@ -52,6 +84,31 @@ public class CommandConnection {
      */
     private ExceptionListener mExceptionListener;
 
+    /**
+     * The persistent connection commands are sent over, or null if it is not open. Guarded by {@link #mSendLock}.
+     */
+    private Socket mSocket;
+
+    /**
+     * Buffered output stream of {@link #mSocket}. Guarded by {@link #mSendLock}.
+     */
+    private DataOutputStream mOutput;
+
+    /**
+     * Serializes sending commands, so that frames are not interleaved
+     */
+    private final Object mSendLock = new Object();
+
+    /**
+     * All open connections, in- and outbound, so that they can be closed with this instance. Guarded by itself.
+     */
+    private final List<Socket> mOpenSockets = new ArrayList<>();
+
+    /**
+     * The codec version used for outgoing commands, see {@link CommandCodecRegistry}
+     */
+    private volatile int mCommandCodecVersion = CommandCodecRegistry.NO_CODEC_VERSION;
+
     /**
      * New control connection. The local listening port can be retrieved using {@link #getLocalPort()} after calling {@link #start()}.
      * The remote host and port may be set using {@link #setRemote(InetAddress, int)}, commands can then be sent there using {@link #sendCommand(AbstractCommand)}
@@ -77,8 +134,14 @@ public class CommandConnection {
      * @param port port the remote is listening on
      */
     public void setRemote(InetAddress host, int port) {
-        mRemoteHost = host;
-        mRemotePort = port;
+        synchronized (mSendLock) {
+            // the open connection goes to the old remote
+            if (!host.equals(mRemoteHost) || port != mRemotePort)
+                closeOutboundConnection();
+
+            mRemoteHost = host;
+            mRemotePort = port;
+        }
     }
 
     /**
@@ -91,22 +154,135 @@ public class CommandConnection {
         setRemote(device.getInetAddress(), device.commandPort);
     }
 
+    /**
+     * Set the codec version used for outgoing commands. It must be supported by the remote, so it should be
+     * negotiated using the {@link de.ovgu.softwareprojekt.control.commands.ConnectionRequest}.
+     *
+     * @param remoteCodecVersion the highest codec version the remote supports. The lower of this and
+     *                           {@link CommandCodecRegistry#CODEC_VERSION} is used.
+     */
+    public void setCommandCodecVersion(int remoteCodecVersion) {
+        mCommandCodecVersion = Math.min(remoteCodecVersion, CommandCodecRegistry.CODEC_VERSION);
+    }
+
+    /**
+     * Get the codec version used for outgoing commands
+     *
+     * @return the codec version, or {@link CommandCodecRegistry#NO_CODEC_VERSION} if commands are serialized
+     */
+    public int getCommandCodecVersion() {
+        return mCommandCodecVersion;
+    }
+
     /**
      * Use this function to send a command to the peer. It will assert that {@link #setRemote(InetAddress, int)} has been
-     * used.
+     * used. The command is sent at most once; see the class documentation.
      *
-     * @param command this command will be received by the peer
-     * @throws IOException some I/O error. A ConnectException with ECONNREFUSED and ETIMEDOUT may also be thrown.
+     * @param command this command will probably be received by the peer
+     * @throws IOException some I/O error, after which the command may or may not have arrived. A ConnectException
+     *                     with ECONNREFUSED and ETIMEDOUT may also be thrown.
      */
+    @Override
     public void sendCommand(AbstractCommand command) throws IOException {
         // ensure that the remote host is properly configured
         // note: this is the common project. it does not recognize androids BuildConfig.DEBUG.
         assert (mRemotePort >= 0 && (mRemoteHost != null));
 
-        // this is a try-with-resources; it will automatically close its resources when finished, whatever happens.
-        try (Socket outboundSocket = new Socket(mRemoteHost, mRemotePort);
-             ObjectOutputStream oos = new ObjectOutputStream(outboundSocket.getOutputStream())) {
-            oos.writeObject(command);
+        // encode outside of the lock, so that other senders are not blocked
+        byte[] frame = CommandFraming.encodeFrame(command, mCommandCodecVersion);
+
+        synchronized (mSendLock) {
+            try {
+                writeFrame(frame);
+            } catch (IOException e) {
+                // part of the frame may have been written, so sending it again could duplicate the command; the next
+                // command is sent over a new connection
+                closeOutboundConnection();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Write a frame to the outbound connection, opening it if required. Must be called while holding {@link #mSendLock}.
+     *
+     * @param frame the encoded command, including its length
+     * @throws IOException if the connection could not be opened, or the frame could not be written
+     */
+    private void writeFrame(byte[] frame) throws IOException {
+        if (mSocket == null)
+            openOutboundConnection();
+
+        mOutput.write(frame);
+        mOutput.flush();
+    }
+
+    /**
+     * Open the outbound connection. If the remote has already connected to us, that connection is reused. Must be
+     * called while holding {@link #mSendLock}.
+     *
+     * @throws IOException if the connection could not be opened
+     */
+    private void openOutboundConnection() throws IOException {
+        Socket socket = findInboundConnection();
+
+        // connect to the remote if it has not connected to us
+        if (socket == null) {
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(mRemoteHost, mRemotePort), CONNECT_TIMEOUT);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+
+            // the remote may answer on this connection
+            new CommandReader(socket).start();
+        }
+
+        mSocket = socket;
+        mOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Find a connection the remote opened to us
+     *
+     * @return an open connection from {@link #mRemoteHost}, or null if there is none
+     */
+    private Socket findInboundConnection() {
+        synchronized (mOpenSockets) {
+            for (Socket socket : mOpenSockets)
+                if (!socket.isClosed() && socket.getInetAddress().equals(mRemoteHost))
+                    return socket;
+        }
+        return null;
+    }
+
+    /**
+     * Close the outbound connection, if it is open. Must be called while holding {@link #mSendLock}.
+     */
+    private void closeOutboundConnection() {
+        if (mSocket != null)
+            closeSocket(mSocket);
+        mSocket = null;
+        mOutput = null;
+    }
+
+    /**
+     * Close a connection and forget about it
+     *
+     * @param socket the connection to be closed
+     */
+    private void closeSocket(Socket socket) {
+        synchronized (mOpenSockets) {
+            mOpenSockets.remove(socket);
+        }
+
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // ignored, because we cannot handle it anyway
         }
     }
 
@@ -115,6 +291,7 @@ public class CommandConnection {
      *
      * @return true if the connection is listening and configured with a remote
      */
+    @Override
     public boolean isRunningAndConfigured() {
         return mIncomingServer.isRunning() && mRemoteHost != null && mRemotePort >= 0;
     }
@@ -126,6 +303,21 @@ public class CommandConnection {
         if (mIncomingServer != null)
             mIncomingServer.shutdown();
         mIncomingServer = null;
+
+        synchronized (mSendLock) {
+            closeOutboundConnection();
+        }
+
+        // close all inbound connections, which stops their readers
+        synchronized (mOpenSockets) {
+            for (Socket socket : mOpenSockets)
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // ignored, because we cannot handle it anyway
+                }
+            mOpenSockets.clear();
+        }
     }
 
     /**
@@ -151,7 +343,16 @@ public class CommandConnection {
     // interface, it would have polluted our public surface with a method that is destined to be used by inner class
     // workings only.
     private void onCommand(InetAddress origin, AbstractCommand command) {
-        mCommandListener.onCommand(origin, command);
+        // connections used only for sending do not have a listener
+        if (mCommandListener == null)
+            return;
+
+        // the contained commands of a batch are handled in order, as if they had arrived separately
+        if (command.getCommandType() == CommandType.CommandBatch) {
+            for (AbstractCommand contained : ((CommandBatch) command).commands)
+                mCommandListener.onCommand(origin, contained);
+        } else
+            mCommandListener.onCommand(origin, command);
     }
 
     /**
@@ -160,12 +361,19 @@ public class CommandConnection {
      * @param remotePort the new command port
      */
     public void setRemotePort(int remotePort) {
-        mRemotePort = remotePort;
+        synchronized (mSendLock) {
+            // the open connection goes to the old port
+            if (remotePort != mRemotePort)
+                closeOutboundConnection();
+
+            mRemotePort = remotePort;
+        }
     }
 
 
     /**
-     * The {@link CommandListener} class is used to listen to incoming commands.
+     * The {@link CommandListener} class is used to accept incoming connections. Each of them is read by its own
+     * {@link CommandReader}.
      */
     private class CommandListener extends Thread {
         /**
@@ -176,12 +384,12 @@ public class CommandConnection {
         /**
          * true if the server should continue running
          */
-        private boolean mKeepRunning = true;
+        private volatile boolean mKeepRunning = true;
 
         /**
          * true while the server has not reached end of thread execution
          */
-        private boolean mIsRunning = false;
+        private volatile boolean mIsRunning = false;
 
         /**
          * Socket we use to listen
@@ -228,23 +436,22 @@ public class CommandConnection {
         }
 
         /**
-         * Listen on socket, forward commands
+         * Accept connections, and start reading commands from them
          */
         public void run() {
             // continue running till shutdown() is called
             mIsRunning = true;
 
             while (mKeepRunning) {
-                // try-with-resource: close the socket after accepting the connection
-                try (Socket connection = mSocket.accept()) {
-                    // create an object input stream from the new connection
-                    ObjectInputStream oinput = new ObjectInputStream(connection.getInputStream());
+                try {
+                    Socket connection = mSocket.accept();
+                    connection.setTcpNoDelay(true);
 
-                    // call listener with new command
-                    mListener.onCommand(connection.getInetAddress(), (AbstractCommand) oinput.readObject());
+                    // the connection stays open; it is read until the remote closes it
+                    new CommandReader(connection).start();
                 } catch (SocketException ignored) {
                     // this exception is thrown if #close() is called before #start(), but it is not relevant.
-                } catch (ClassNotFoundException | IOException e) {
+                } catch (IOException e) {
                     CommandConnection.this.mExceptionListener.onException(CommandConnection.this, e, "Could not listen for commands");
                 }
             }
@@ -269,4 +476,71 @@ public class CommandConnection {
             return mIsRunning;
         }
     }
+
+    /**
+     * The {@link CommandReader} reads the commands arriving on a single connection, until it is closed.
+     */
+    private class CommandReader extends Thread {
+        /**
+         * The connection commands are read from
+         */
+        private final Socket mSocket;
+
+        /**
+         * Create a new reader for a connection
+         *
+         * @param socket the connection to be read from
+         */
+        CommandReader(Socket socket) {
+            super("CommandReader for " + socket.getInetAddress() + ":" + socket.getPort());
+            setDaemon(true);
+            mSocket = socket;
+
+            // remember the connection, so it can be closed with the command connection
+            synchronized (mOpenSockets) {
+                mOpenSockets.add(socket);
+            }
+        }
+
+        /**
+         * Read frames and forward the contained commands until the connection is closed
+         */
+        @Override
+        public void run() {
+            try {
+                DataInputStream input = new DataInputStream(new BufferedInputStream(mSocket.getInputStream()));
+
+                while (true) {
+                    // older peers send a single serialized command per connection
+                    input.mark(4);
+                    int length = input.readInt();
+                    if (length == CommandFraming.LEGACY_STREAM_HEADER) {
+                        input.reset();
+                        onCommand(mSocket.getInetAddress(), (AbstractCommand) new ObjectInputStream(input).readObject());
+                        break;
+                    }
+
+                    if (length < 0 || length > CommandFraming.MAXIMUM_FRAME_LENGTH)
+                        throw new IOException("Invalid command frame length " + length);
+
+                    // read the complete frame before decoding, so a broken command does not desync the stream
+                    byte[] frame = new byte[length];
+                    input.readFully(frame);
+
+                    onCommand(mSocket.getInetAddress(), CommandCodecRegistry.decode(frame, 0, length));
+                }
+            } catch (EOFException | SocketException ignored) {
+                // the connection was closed by either side
+            } catch (ClassNotFoundException | IOException e) {
+                mExceptionListener.onException(CommandConnection.this, e, "Could not read commands");
+            } finally {
+                // the outbound connection must be reopened if it was this one
+                synchronized (mSendLock) {
+                    if (CommandConnection.this.mSocket == mSocket)
+                        closeOutboundConnection();
+                }
+                closeSocket(mSocket);
+            }
+        }
+    }
 }
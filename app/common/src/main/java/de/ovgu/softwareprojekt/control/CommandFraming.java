@@ -0,0 +1,61 @@
+package de.ovgu.softwareprojekt.control;
+
+import de.ovgu.softwareprojekt.control.commands.AbstractCommand;
+import de.ovgu.softwareprojekt.control.commands.CommandCodecRegistry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * This class describes how commands are framed on a command connection: each command is preceded by its length as a
+ * four byte integer, so that any number of commands can be sent over a single tcp connection. The command itself is
+ * encoded using the {@link CommandCodecRegistry}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CommandFraming {
+    /**
+     * Size of the length that precedes each command
+     */
+    public static final int HEADER_SIZE = 4;
+
+    /**
+     * Frames larger than this are considered broken, and the connection they arrived on is closed
+     */
+    public static final int MAXIMUM_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * The first four bytes of a java serialization stream, sent by peers that use one connection per command
+     */
+    public static final int LEGACY_STREAM_HEADER = 0xACED0005;
+
+    /**
+     * No instances, only static functions
+     */
+    private CommandFraming() {
+    }
+
+    /**
+     * Encode a command into a frame
+     *
+     * @param command      the command to be encoded
+     * @param codecVersion the codec version to be used, see {@link CommandCodecRegistry}
+     * @return the frame: the length of the encoded command, followed by the encoded command
+     * @throws IOException if the command could not be encoded
+     */
+    public static byte[] encodeFrame(AbstractCommand command, int codecVersion) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        // reserve space for the length, which is only known after encoding
+        buffer.write(new byte[HEADER_SIZE]);
+        CommandCodecRegistry.encode(command, codecVersion, buffer);
+
+        // write the payload length into the reserved space
+        byte[] result = buffer.toByteArray();
+        int length = result.length - HEADER_SIZE;
+        result[0] = (byte) (length >>> 24);
+        result[1] = (byte) (length >>> 16);
+        result[2] = (byte) (length >>> 8);
+        result[3] = (byte) length;
+        return result;
+    }
+}
@@ -0,0 +1,25 @@
+package de.ovgu.softwareprojekt.control;
+
+import de.ovgu.softwareprojekt.control.commands.AbstractCommand;
+
+import java.io.IOException;
+
+/**
+ * Something that can send commands to a single remote, like a {@link CommandConnection}
+ */
+public interface CommandSender {
+    /**
+     * Send a command to the remote
+     *
+     * @param command this command will be received by the remote
+     * @throws IOException if the command could not be sent
+     */
+    void sendCommand(AbstractCommand command) throws IOException;
+
+    /**
+     * Check whether commands can be sent
+     *
+     * @return true if the sender is running and knows its remote
+     */
+    boolean isRunningAndConfigured();
+}
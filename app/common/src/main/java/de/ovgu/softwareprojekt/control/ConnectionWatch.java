@@ -3,25 +3,30 @@ package de.ovgu.softwareprojekt.control;
 import de.ovgu.softwareprojekt.control.commands.ConnectionAliveCheck;
 import de.ovgu.softwareprojekt.discovery.NetworkDevice;
 import de.ovgu.softwareprojekt.misc.ExceptionListener;
+import de.ovgu.softwareprojekt.misc.SharedScheduler;
 
 import java.io.IOException;
 import java.net.ConnectException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class handles checking the connection age. It schedules itself. <b>You may not schedule
  * this class by yourself, call {@link #start()}.</b>
  * <p>It can be used in active mode with the constructor
- * {@link ConnectionWatch#ConnectionWatch(NetworkDevice, TimeoutListener, CommandConnection, ExceptionListener)},
- * where connection checks will be sent and {@link #onCheckEvent()} must be called when the remote
- * responds.</p>
+ * {@link ConnectionWatch#ConnectionWatch(NetworkDevice, TimeoutListener, CommandSender, ExceptionListener)},
+ * where connection checks will be sent and {@link #onCheckEvent(ConnectionAliveCheck)} must be called when the
+ * remote responds.</p>
  * <p>It can also be used in passive mode with the constructor
  * {@link ConnectionWatch#ConnectionWatch(NetworkDevice, TimeoutListener, ExceptionListener)}.
  * No network requests will be sent, but {@link #onCheckEvent()} must be called when a connection
  * check is requested and has been answered.</p>
+ * <p>Any other sign of life, like received sensor data, may be reported with {@link #onDataEvent()}. In active mode,
+ * checks are then only sent while the data stream is silent, and at a low rate to keep the passive watch of the
+ * remote satisfied.</p>
+ * <p>All watches run on the {@link SharedScheduler}, so they do not need a thread each.</p>
  */
-public class ConnectionWatch extends TimerTask {
+public class ConnectionWatch implements Runnable {
     /**
      * Set this variable true to print the round trip times to System.out
      */
@@ -43,21 +48,59 @@ public class ConnectionWatch extends TimerTask {
         void onTimeout(long responseDelay);
     }
 
+    /**
+     * Callback interface for round trip times measured in active mode
+     */
+    public interface RoundTripListener {
+        /**
+         * Called when the remote answered a connection check
+         *
+         * @param roundTripTime time between sending the check and receiving the answer, in nanoseconds
+         */
+        void onRoundTrip(long roundTripTime);
+    }
+
     /**
      * True if the timer is currently scheduled
      */
     private boolean mIsStarted;
 
     /**
-     * This timer is used for scheduling the "still-alive" requests to our client
+     * The scheduled checks, or null if the watch has not been started
      */
-    private Timer mConnectionCheckTimer = new Timer();
+    private ScheduledFuture<?> mConnectionCheckFuture;
+
+    /**
+     * True once {@link #close()} was called; the watch can not be started afterwards
+     */
+    private boolean mIsClosed;
 
     /**
      * If the time between connection check requests exceeds this time, the connection is deemed dead.
      */
     private static final long MAXIMUM_CLIENT_RESPONSE_DELAY = 10000;// please do not increase this value without talking to me -Arne
 
+    /**
+     * Checks are sent at least this often, even while data arrives, since the remote uses a passive watch that only
+     * sees our checks
+     */
+    private static final long KEEPALIVE_INTERVAL = MAXIMUM_CLIENT_RESPONSE_DELAY / 4;
+
+    /**
+     * Default for {@link #setDataSilenceInterval(long)}, in milliseconds
+     */
+    public static final long DEFAULT_DATA_SILENCE_INTERVAL = 1000;
+
+    /**
+     * Checks are sent at full rate once no data arrived for this long, in milliseconds
+     */
+    private volatile long mDataSilenceInterval = DEFAULT_DATA_SILENCE_INTERVAL;
+
+    /**
+     * The last time data arrived from the remote, or 0 if it never did
+     */
+    private volatile long mLastDataTimestamp;
+
     /**
      * This is the first of two timestamps used to keep check of the delay between sending the request
      * for a connection check and receiving the answer for it. It keeps track of the last time we sent
@@ -76,15 +119,20 @@ public class ConnectionWatch extends TimerTask {
      */
     private final TimeoutListener mTimeoutListener;
 
+    /**
+     * Callback for round trip times, may be null
+     */
+    private volatile RoundTripListener mRoundTripListener;
+
     /**
      * Network device identifying ourselves
      */
     private final NetworkDevice mSelf;
 
     /**
-     * The command connection used for sending the connection check requests
+     * Used for sending the connection check requests
      */
-    private final CommandConnection mOutConnection;
+    private final CommandSender mOutConnection;
 
     /**
      * Callback for exceptions we could not gracefully handle
@@ -98,7 +146,7 @@ public class ConnectionWatch extends TimerTask {
 
     /**
      * Create a new <b>active</b> ConnectionWatch. After {@link #start()} was called, {@link TimeoutListener#onTimeout(long)}
-     * may be called if a timeout is detected. Call {@link #onCheckEvent()} whenever you receive
+     * may be called if a timeout is detected. Call {@link #onCheckEvent(ConnectionAliveCheck)} whenever you receive
      * a connection check response.
      *
      * @param timeoutListener   callback for timeout notifications
@@ -110,7 +158,7 @@ public class ConnectionWatch extends TimerTask {
     public ConnectionWatch(
             NetworkDevice self,
             TimeoutListener timeoutListener,
-            CommandConnection outConnection,
+            CommandSender outConnection,
             ExceptionListener exceptionListener) {
         mTimeoutListener = timeoutListener;
         mSelf = self;
@@ -119,9 +167,6 @@ public class ConnectionWatch extends TimerTask {
 
         // we are in active mode if we have an out connection
         mIsActiveMode = outConnection != null;
-
-        // set informative thread name
-        Thread.currentThread().setName("ConnectionWatch for " + mSelf);
     }
 
     /**
@@ -143,12 +188,16 @@ public class ConnectionWatch extends TimerTask {
     /**
      * Start operations. This will begin sending connection check requests after a short delay.
      */
-    public void start() {
+    public synchronized void start() {
+        // a closed watch must stay closed
+        if (mIsClosed || mIsStarted)
+            return;
+
         // avoid immediate timeout through a zero (eg last response was 1970) here
         mLastCheckEventTimestamp = System.currentTimeMillis() + 900;
         mLastRequestTimestamp = mLastCheckEventTimestamp;
-        // in ~one second, begin requesting a "still-alive" beep from the clients once per second
-        mConnectionCheckTimer.scheduleAtFixedRate(this, 900, 500);
+        // in ~one second, begin requesting a "still-alive" beep from the clients twice per second
+        mConnectionCheckFuture = SharedScheduler.get().scheduleAtFixedRate(this, 900, 500, TimeUnit.MILLISECONDS);
 
         mIsStarted = true;
     }
@@ -160,35 +209,46 @@ public class ConnectionWatch extends TimerTask {
      */
     public void setRemote(NetworkDevice remote) {
         mRemote = remote;
-
-        // set informative thread name
-        Thread.currentThread().setName("ConnectionWatch for " + mSelf);
     }
 
     /**
      * This runs a single iteration of the active mode:<br>
-     * Check whether the client answered within {@link #MAXIMUM_CLIENT_RESPONSE_DELAY}ms
+     * Check whether the client answered or sent data within {@link #MAXIMUM_CLIENT_RESPONSE_DELAY}ms
      * <ul>
-     * <li>if it did, send next {@link ConnectionAliveCheck}</li>
+     * <li>if it did, send next {@link ConnectionAliveCheck} if the data stream is silent or the
+     * {@link #KEEPALIVE_INTERVAL} has passed</li>
      * <li>if not, notify {@link #mTimeoutListener}</li>
      * </ul>
      */
     private void activeModeIteration() {
+        long now = System.currentTimeMillis();
+
         try {
             // check whether the maximum delay has been breached
-            if ((mLastCheckEventTimestamp - mLastRequestTimestamp) > MAXIMUM_CLIENT_RESPONSE_DELAY)
-                mTimeoutListener.onTimeout(mLastCheckEventTimestamp - mLastRequestTimestamp);
+            long silence = now - Math.max(mLastCheckEventTimestamp, mLastDataTimestamp);
+            if (silence > MAXIMUM_CLIENT_RESPONSE_DELAY)
+                mTimeoutListener.onTimeout(silence);
             // connection still alive
             else if (mOutConnection.isRunningAndConfigured()) {
-                // send next connection check
-                mOutConnection.sendCommand(new ConnectionAliveCheck(mSelf));
+                // arriving data already shows that the remote is alive
+                boolean isDataSilent = now - mLastDataTimestamp >= mDataSilenceInterval;
+                boolean isKeepaliveDue = now - mLastRequestTimestamp >= KEEPALIVE_INTERVAL;
+                if (!isDataSilent && !isKeepaliveDue)
+                    return;
+
+                // send next connection check, stamped so that its answer can be timed even if other checks were lost
+                ConnectionAliveCheck check = new ConnectionAliveCheck(mSelf);
+                check.requestTime = System.nanoTime();
+                if (check.requestTime == ConnectionAliveCheck.NO_REQUEST_TIME)
+                    check.requestTime++;
+                mOutConnection.sendCommand(check);
 
                 // possibly print round trip time
                 if(CONNECTION_TIMES_LOG)
                     System.out.println(mLastRequestTimestamp + "," + (mLastCheckEventTimestamp - mLastRequestTimestamp));
 
                 // update the request timestamp
-                mLastRequestTimestamp = System.currentTimeMillis();
+                mLastRequestTimestamp = now;
             }
         } catch (ConnectException e) {
             // as this exception is thrown when the remote does not answer, a timeout is signalled
@@ -205,7 +265,7 @@ public class ConnectionWatch extends TimerTask {
      * than {@link #MAXIMUM_CLIENT_RESPONSE_DELAY} ms in the past.
      */
     private void passiveModeCheck() {
-        long delay = System.currentTimeMillis() - mLastCheckEventTimestamp;
+        long delay = System.currentTimeMillis() - Math.max(mLastCheckEventTimestamp, mLastDataTimestamp);
 
         // true if the system has timed out
         if (delay > MAXIMUM_CLIENT_RESPONSE_DELAY) {
@@ -215,22 +275,29 @@ public class ConnectionWatch extends TimerTask {
     }
 
     /**
-     * This is periodically called since we scheduled ourselves as a {@link TimerTask} in {@link #start()}
+     * This is periodically called since we scheduled ourselves on the {@link SharedScheduler} in {@link #start()}
      */
     @Override
     public void run() {
-        if (mIsActiveMode)
-            activeModeIteration();
-        else
-            passiveModeCheck();
+        try {
+            if (mIsActiveMode)
+                activeModeIteration();
+            else
+                passiveModeCheck();
+        } catch (RuntimeException e) {
+            // an exception would silently stop all further checks
+            mExceptionListener.onException(this, e, "CONNECTION_WATCH_CHECK_FAILED: Connection check crashed");
+        }
     }
 
     /**
      * Stops operations, no more requests will be sent after this, and no more checks will be executed.
      * <b>Does not close its command connection!</b>
      */
-    public void close() {
-        mConnectionCheckTimer.cancel();
+    public synchronized void close() {
+        mIsClosed = true;
+        if (mConnectionCheckFuture != null)
+            mConnectionCheckFuture.cancel(false);
     }
 
     /**
@@ -240,6 +307,55 @@ public class ConnectionWatch extends TimerTask {
         mLastCheckEventTimestamp = System.currentTimeMillis();
     }
 
+    /**
+     * This function is used to notify an active watch that the remote answered one of its checks. The round trip
+     * time is measured from the {@link ConnectionAliveCheck#requestTime} the remote echoed; older remotes do not
+     * echo it, so their answers are not timed.
+     *
+     * @param answer the answered connection check
+     */
+    public void onCheckEvent(ConnectionAliveCheck answer) {
+        long answerNanos = System.nanoTime();
+        onCheckEvent();
+
+        RoundTripListener listener = mRoundTripListener;
+        if (mIsActiveMode && listener != null && answer.requestTime != ConnectionAliveCheck.NO_REQUEST_TIME) {
+            long roundTripTime = answerNanos - answer.requestTime;
+
+            // a time that was not stamped by this process would give nonsense
+            if (roundTripTime >= 0)
+                listener.onRoundTrip(roundTripTime);
+        }
+    }
+
+    /**
+     * Set who should be notified of the round trip time of each answered connection check. Only active watches
+     * measure round trip times.
+     *
+     * @param roundTripListener the listener, or null to stop notifications
+     */
+    public void setRoundTripListener(RoundTripListener roundTripListener) {
+        mRoundTripListener = roundTripListener;
+    }
+
+    /**
+     * This function is used to notify the watch that data arrived from the communication partner. It is cheap
+     * enough to be called for each received packet.
+     */
+    public void onDataEvent() {
+        mLastDataTimestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Set how long the data stream must be silent before checks are sent at full rate. While data arrives, checks
+     * are only sent every {@link #MAXIMUM_CLIENT_RESPONSE_DELAY}/4 ms.
+     *
+     * @param dataSilenceInterval the silence interval in milliseconds
+     */
+    public void setDataSilenceInterval(long dataSilenceInterval) {
+        mDataSilenceInterval = dataSilenceInterval;
+    }
+
     /**
      * Get the running state of this connection watch
      *
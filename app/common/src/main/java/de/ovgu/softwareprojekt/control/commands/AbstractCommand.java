@@ -6,11 +6,28 @@ import java.io.Serializable;
  * The base class for commands. All control messages subclass this so we can send them via a {@link de.ovgu.softwareprojekt.control.CommandConnection}.
  */
 public abstract class AbstractCommand implements Serializable {
+    /**
+     * The version computed for the original field set, so that older apps can still exchange serialized commands; they
+     * ignore the correlation id
+     */
+    private static final long serialVersionUID = -4426726047154584925L;
+
+    /**
+     * Correlation id of commands that do not have to be acknowledged
+     */
+    public static final int NO_CORRELATION_ID = 0;
+
     /**
      * The command type. May not be changed after instantiating a command
      */
     private CommandType mCommandType;
 
+    /**
+     * If not {@link #NO_CORRELATION_ID}, the receiver must answer with an {@link Acknowledgement} carrying this id
+     * after handling the command
+     */
+    private int mCorrelationId = NO_CORRELATION_ID;
+
     /**
      * Create a new command
      *
@@ -29,4 +46,31 @@ public abstract class AbstractCommand implements Serializable {
     public CommandType getCommandType() {
         return mCommandType;
     }
+
+    /**
+     * Get the id used to match this command with its {@link Acknowledgement}
+     *
+     * @return the correlation id, or {@link #NO_CORRELATION_ID} if the command must not be acknowledged
+     */
+    public int getCorrelationId() {
+        return mCorrelationId;
+    }
+
+    /**
+     * Set the id used to match this command with its {@link Acknowledgement}
+     *
+     * @param correlationId the correlation id, or {@link #NO_CORRELATION_ID} if the command must not be acknowledged
+     */
+    public void setCorrelationId(int correlationId) {
+        mCorrelationId = correlationId;
+    }
+
+    /**
+     * Check whether the receiver must answer with an {@link Acknowledgement}
+     *
+     * @return true if the command has a correlation id, and is not an acknowledgement itself
+     */
+    public boolean requiresAcknowledgement() {
+        return mCorrelationId != NO_CORRELATION_ID && mCommandType != CommandType.Acknowledgement;
+    }
 }
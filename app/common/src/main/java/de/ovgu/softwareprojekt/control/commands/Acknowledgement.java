@@ -0,0 +1,17 @@
+package de.ovgu.softwareprojekt.control.commands;
+
+/**
+ * This command confirms that a command with a correlation id was handled. It carries the correlation id of the
+ * handled command.
+ */
+public class Acknowledgement extends AbstractCommand {
+    /**
+     * Create a new acknowledgement
+     *
+     * @param correlationId the correlation id of the handled command
+     */
+    public Acknowledgement(int correlationId) {
+        super(CommandType.Acknowledgement);
+        setCorrelationId(correlationId);
+    }
+}
@@ -0,0 +1,48 @@
+package de.ovgu.softwareprojekt.control.commands;
+
+/**
+ * This command is used to synchronize the sensor clock of a client with the clock of the server, like NTP does. The
+ * server sends it with {@link #serverSendTime}, and the client answers with the same command after filling in
+ * {@link #clientReceiveTime} and {@link #clientSendTime}. Together with the time the answer arrives, the server can
+ * estimate the offset between the clocks and the network delay.
+ */
+public class ClockSync extends AbstractCommand {
+    /**
+     * Used if a time has not been filled in yet
+     */
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    /**
+     * When the server sent the request, on the server clock in nanoseconds
+     */
+    public long serverSendTime;
+
+    /**
+     * When the client received the request, on the clock of its sensor timestamps in nanoseconds
+     */
+    public long clientReceiveTime = NO_TIME;
+
+    /**
+     * When the client sent the answer, on the clock of its sensor timestamps in nanoseconds
+     */
+    public long clientSendTime = NO_TIME;
+
+    /**
+     * Create a new clock synchronization request
+     *
+     * @param serverSendTime when the server sends the request, on the server clock in nanoseconds
+     */
+    public ClockSync(long serverSendTime) {
+        super(CommandType.ClockSync);
+        this.serverSendTime = serverSendTime;
+    }
+
+    /**
+     * Check whether the client has answered this request
+     *
+     * @return true if both client times are filled in
+     */
+    public boolean isAnswered() {
+        return clientReceiveTime != NO_TIME && clientSendTime != NO_TIME;
+    }
+}
@@ -0,0 +1,27 @@
+package de.ovgu.softwareprojekt.control.commands;
+
+import java.util.List;
+
+/**
+ * This command contains multiple commands that are sent together, for example the complete configuration a client
+ * receives when it is accepted. The receiving command connection unpacks the batch, and handles the contained commands
+ * in order, so listeners never see the batch itself.
+ * <p>
+ * Batches may only be sent to peers that agreed on at least {@link CommandCodecRegistry#BATCH_CODEC_VERSION}.
+ */
+public class CommandBatch extends AbstractCommand {
+    /**
+     * The contained commands, in the order they must be handled
+     */
+    public List<AbstractCommand> commands;
+
+    /**
+     * Create a new batch
+     *
+     * @param commands the commands to be sent together, in the order they must be handled. Must not contain batches.
+     */
+    public CommandBatch(List<AbstractCommand> commands) {
+        super(CommandType.CommandBatch);
+        this.commands = commands;
+    }
+}
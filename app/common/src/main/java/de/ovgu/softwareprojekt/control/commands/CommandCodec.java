@@ -0,0 +1,31 @@
+package de.ovgu.softwareprojekt.control.commands;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A hand-written binary encoder and decoder for a single {@link CommandType}. Codecs are registered with the
+ * {@link CommandCodecRegistry}, and used instead of java serialization once both ends have agreed on it.
+ *
+ * @param <T> the command class this codec handles
+ */
+public interface CommandCodec<T extends AbstractCommand> {
+    /**
+     * Write the fields of a command. The command type is written by the registry, and must not be written here.
+     *
+     * @param command the command to be encoded
+     * @param output  where the fields should be written to
+     * @throws IOException if the command could not be written
+     */
+    void encode(T command, DataOutputStream output) throws IOException;
+
+    /**
+     * Read a command written by {@link #encode(AbstractCommand, DataOutputStream)}
+     *
+     * @param input where the fields should be read from
+     * @return the decoded command
+     * @throws IOException if the command could not be read
+     */
+    T decode(DataInputStream input) throws IOException;
+}
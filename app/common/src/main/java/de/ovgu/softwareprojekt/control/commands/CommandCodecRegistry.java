@@ -0,0 +1,640 @@
+package de.ovgu.softwareprojekt.control.commands;
+
+import de.ovgu.softwareprojekt.SensorType;
+import de.ovgu.softwareprojekt.discovery.NetworkDevice;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps a compact binary {@link CommandCodec} for each {@link CommandType}, and encodes commands with them.
+ * Commands without a codec, and all commands sent to peers that have not agreed on a codec version, are serialized
+ * instead.
+ * <p>
+ * The codec version is negotiated when connecting: the client sends its {@link #CODEC_VERSION} in the
+ * {@link ConnectionRequest}, and the server answers with the version both support in the
+ * {@link ConnectionRequestResponse}. Decoding always supports both formats, so the first binary command may arrive
+ * before the response has been handled.
+ * <p>
+ * A binary command starts with {@link #BINARY_COMMAND_MARKER}, followed by the ordinal of its {@link CommandType} and
+ * the fields written by its codec. Commands with a correlation id start with {@link #CORRELATED_COMMAND_MARKER} and
+ * the id instead. Serialized commands start with the serialization stream header, which never begins with a marker.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CommandCodecRegistry {
+    /**
+     * Version used if the peer does not support binary commands
+     */
+    public static final int NO_CODEC_VERSION = 0;
+
+    /**
+     * The codec version supported by this implementation. Must be increased whenever a codec changes.
+     */
+    public static final int CODEC_VERSION = 6;
+
+    /**
+     * The first codec version supporting {@link CommandBatch}
+     */
+    public static final int BATCH_CODEC_VERSION = 2;
+
+    /**
+     * The first codec version supporting correlation ids and {@link Acknowledgement}
+     */
+    public static final int ACKNOWLEDGEMENT_CODEC_VERSION = 3;
+
+    /**
+     * The first codec version supporting {@link ClockSync}
+     */
+    public static final int CLOCK_SYNC_CODEC_VERSION = 4;
+
+    /**
+     * The first codec version writing {@link SetSensorSpeed#samplingPeriodUs}. It is appended to the older format,
+     * which older decoders ignore, so it is sent to all peers.
+     */
+    public static final int SAMPLING_PERIOD_CODEC_VERSION = 5;
+
+    /**
+     * The first codec version writing {@link ConnectionAliveCheck#requestTime}. Like the sampling period, it is
+     * appended to the older format and sent to all peers.
+     */
+    public static final int REQUEST_TIME_CODEC_VERSION = 6;
+
+    /**
+     * The first byte of binary commands
+     */
+    private static final byte BINARY_COMMAND_MARKER = 0x01;
+
+    /**
+     * The first byte of binary commands with a correlation id
+     */
+    private static final byte CORRELATED_COMMAND_MARKER = 0x02;
+
+    /**
+     * Used for encoding all strings
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Cached values of the enums that are encoded as ordinals
+     */
+    private static final CommandType[] COMMAND_TYPES = CommandType.values();
+    private static final SensorType[] SENSOR_TYPES = SensorType.values();
+    private static final SetSensorSpeed.SensorSpeed[] SENSOR_SPEEDS = SetSensorSpeed.SensorSpeed.values();
+
+    /**
+     * The registered codecs, indexed by the ordinal of their {@link CommandType}
+     */
+    private static final CommandCodec<?>[] sCodecs = new CommandCodec<?>[COMMAND_TYPES.length];
+
+    /**
+     * No instances, only static functions
+     */
+    private CommandCodecRegistry() {
+    }
+
+    /**
+     * Register the codec used for a command type, replacing any previously registered one
+     *
+     * @param type  the command type the codec handles
+     * @param codec the codec, or null if commands of this type should be serialized
+     * @param <T>   the command class of the type
+     */
+    public static synchronized <T extends AbstractCommand> void register(CommandType type, CommandCodec<T> codec) {
+        sCodecs[type.ordinal()] = codec;
+    }
+
+    /**
+     * Check whether a command type can be encoded in binary
+     *
+     * @param type the command type to check
+     * @return true if a codec is registered for the type
+     */
+    public static synchronized boolean hasCodec(CommandType type) {
+        return sCodecs[type.ordinal()] != null;
+    }
+
+    /**
+     * Get the codec of a command type
+     *
+     * @param type the command type
+     * @return the registered codec, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    private static synchronized CommandCodec<AbstractCommand> getCodec(CommandType type) {
+        return (CommandCodec<AbstractCommand>) sCodecs[type.ordinal()];
+    }
+
+    /**
+     * Encode a command, using its codec if the peer supports it
+     *
+     * @param command      the command to be encoded
+     * @param codecVersion the codec version agreed on with the peer; if it is {@link #NO_CODEC_VERSION}, the command
+     *                     is serialized
+     * @param target       where the encoded command should be written to
+     * @throws IOException if the command could not be encoded
+     */
+    public static void encode(AbstractCommand command, int codecVersion, OutputStream target) throws IOException {
+        CommandCodec<AbstractCommand> codec = getCodec(command.getCommandType());
+
+        // fall back to serialization if binary commands are not possible
+        if (codecVersion == NO_CODEC_VERSION || codec == null) {
+            ObjectOutputStream oos = new ObjectOutputStream(target);
+            oos.writeObject(command);
+            oos.flush();
+            return;
+        }
+
+        DataOutputStream output = new DataOutputStream(target);
+        if (command.getCorrelationId() == AbstractCommand.NO_CORRELATION_ID)
+            output.writeByte(BINARY_COMMAND_MARKER);
+        else {
+            output.writeByte(CORRELATED_COMMAND_MARKER);
+            output.writeInt(command.getCorrelationId());
+        }
+        output.writeByte(command.getCommandType().ordinal());
+        codec.encode(command, output);
+        output.flush();
+    }
+
+    /**
+     * Decode a command that was encoded using {@link #encode(AbstractCommand, int, OutputStream)}
+     *
+     * @param frame  buffer containing the encoded command
+     * @param offset where the command begins in the buffer
+     * @param length length of the encoded command
+     * @return the decoded command
+     * @throws IOException            if the command could not be decoded
+     * @throws ClassNotFoundException if a serialized command has an unknown class
+     */
+    public static AbstractCommand decode(byte[] frame, int offset, int length) throws IOException, ClassNotFoundException {
+        ByteArrayInputStream input = new ByteArrayInputStream(frame, offset, length);
+
+        // serialized commands begin with the stream header
+        if (length == 0 || (frame[offset] != BINARY_COMMAND_MARKER && frame[offset] != CORRELATED_COMMAND_MARKER))
+            return (AbstractCommand) new ObjectInputStream(input).readObject();
+
+        DataInputStream dataInput = new DataInputStream(input);
+        boolean isCorrelated = dataInput.readByte() == CORRELATED_COMMAND_MARKER;
+        int correlationId = isCorrelated ? dataInput.readInt() : AbstractCommand.NO_CORRELATION_ID;
+
+        // find the codec of the command type
+        int ordinal = dataInput.readUnsignedByte();
+        if (ordinal >= COMMAND_TYPES.length)
+            throw new StreamCorruptedException("Unknown command type " + ordinal);
+        CommandCodec<AbstractCommand> codec = getCodec(COMMAND_TYPES[ordinal]);
+        if (codec == null)
+            throw new StreamCorruptedException("No codec for command type " + COMMAND_TYPES[ordinal]);
+
+        AbstractCommand command = codec.decode(dataInput);
+        command.setCorrelationId(correlationId);
+        return command;
+    }
+
+    /**
+     * Write a string that may be null and may be longer than {@link DataOutputStream#writeUTF(String)} allows
+     *
+     * @param value  the string to be written, or null
+     * @param output where the string should be written to
+     * @throws IOException if the string could not be written
+     */
+    public static void writeString(String value, DataOutputStream output) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * Read a string written by {@link #writeString(String, DataOutputStream)}
+     *
+     * @param input where the string should be read from
+     * @return the string, or null
+     * @throws IOException if the string could not be read
+     */
+    public static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0)
+            return null;
+
+        // do not trust the length before allocating
+        if (length > input.available())
+            throw new StreamCorruptedException("String length " + length + " exceeds command size");
+
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Write a {@link SensorType}
+     *
+     * @param type   the sensor type to be written, or null
+     * @param output where the sensor type should be written to
+     * @throws IOException if the sensor type could not be written
+     */
+    public static void writeSensorType(SensorType type, DataOutputStream output) throws IOException {
+        output.writeByte(type != null ? type.ordinal() : -1);
+    }
+
+    /**
+     * Read a {@link SensorType} written by {@link #writeSensorType(SensorType, DataOutputStream)}
+     *
+     * @param input where the sensor type should be read from
+     * @return the sensor type, or null
+     * @throws IOException if the sensor type could not be read
+     */
+    public static SensorType readSensorType(DataInputStream input) throws IOException {
+        int ordinal = input.readByte();
+        if (ordinal < 0)
+            return null;
+        if (ordinal >= SENSOR_TYPES.length)
+            throw new StreamCorruptedException("Unknown sensor type " + ordinal);
+        return SENSOR_TYPES[ordinal];
+    }
+
+    /**
+     * Write a {@link NetworkDevice}
+     *
+     * @param device the device to be written, or null
+     * @param output where the device should be written to
+     * @throws IOException if the device could not be written
+     */
+    public static void writeNetworkDevice(NetworkDevice device, DataOutputStream output) throws IOException {
+        output.writeBoolean(device != null);
+        if (device == null)
+            return;
+
+        writeString(device.name, output);
+        output.writeInt(device.discoveryPort);
+        output.writeInt(device.commandPort);
+        output.writeInt(device.dataPort);
+        writeString(device.address, output);
+    }
+
+    /**
+     * Read a {@link NetworkDevice} written by {@link #writeNetworkDevice(NetworkDevice, DataOutputStream)}
+     *
+     * @param input where the device should be read from
+     * @return the device, or null
+     * @throws IOException if the device could not be read
+     */
+    public static NetworkDevice readNetworkDevice(DataInputStream input) throws IOException {
+        if (!input.readBoolean())
+            return null;
+
+        String name = readString(input);
+        int discoveryPort = input.readInt();
+        int commandPort = input.readInt();
+        int dataPort = input.readInt();
+        return new NetworkDevice(name, discoveryPort, commandPort, dataPort, readString(input));
+    }
+
+    // register the codecs of all built-in commands
+    static {
+        register(CommandType.ConnectionRequest, new CommandCodec<ConnectionRequest>() {
+            @Override
+            public void encode(ConnectionRequest command, DataOutputStream output) throws IOException {
+                writeNetworkDevice(command.self, output);
+                output.writeInt(command.commandCodecVersion);
+            }
+
+            @Override
+            public ConnectionRequest decode(DataInputStream input) throws IOException {
+                ConnectionRequest command = new ConnectionRequest(readNetworkDevice(input));
+                command.commandCodecVersion = input.readInt();
+                return command;
+            }
+        });
+
+        register(CommandType.ConnectionRequestResponse, new CommandCodec<ConnectionRequestResponse>() {
+            @Override
+            public void encode(ConnectionRequestResponse command, DataOutputStream output) throws IOException {
+                output.writeBoolean(command.grant);
+                output.writeInt(command.dataToken);
+                output.writeInt(command.commandCodecVersion);
+            }
+
+            @Override
+            public ConnectionRequestResponse decode(DataInputStream input) throws IOException {
+                boolean grant = input.readBoolean();
+                int dataToken = input.readInt();
+                return new ConnectionRequestResponse(grant, dataToken, input.readInt());
+            }
+        });
+
+        register(CommandType.SetSensor, new CommandCodec<SetSensorCommand>() {
+            @Override
+            public void encode(SetSensorCommand command, DataOutputStream output) throws IOException {
+                output.writeShort(command.requiredSensors.size());
+                for (SensorType sensor : command.requiredSensors)
+                    writeSensorType(sensor, output);
+            }
+
+            @Override
+            public SetSensorCommand decode(DataInputStream input) throws IOException {
+                int count = input.readUnsignedShort();
+                List<SensorType> sensors = new ArrayList<>(count);
+                for (int i = 0; i < count; i++)
+                    sensors.add(readSensorType(input));
+                return new SetSensorCommand(sensors);
+            }
+        });
+
+        register(CommandType.EndConnection, new CommandCodec<EndConnection>() {
+            @Override
+            public void encode(EndConnection command, DataOutputStream output) throws IOException {
+                writeNetworkDevice(command.self, output);
+            }
+
+            @Override
+            public EndConnection decode(DataInputStream input) throws IOException {
+                return new EndConnection(readNetworkDevice(input));
+            }
+        });
+
+        register(CommandType.ButtonClick, new CommandCodec<ButtonClick>() {
+            @Override
+            public void encode(ButtonClick command, DataOutputStream output) throws IOException {
+                output.writeInt(command.id);
+                output.writeBoolean(command.isPressed);
+            }
+
+            @Override
+            public ButtonClick decode(DataInputStream input) throws IOException {
+                int id = input.readInt();
+                return new ButtonClick(id, input.readBoolean());
+            }
+        });
+
+        register(CommandType.ChangeSensorSensitivity, new CommandCodec<ChangeSensorSensitivity>() {
+            @Override
+            public void encode(ChangeSensorSensitivity command, DataOutputStream output) throws IOException {
+                writeSensorType(command.sensorType, output);
+                output.writeInt(command.sensitivity);
+            }
+
+            @Override
+            public ChangeSensorSensitivity decode(DataInputStream input) throws IOException {
+                SensorType sensor = readSensorType(input);
+                return new ChangeSensorSensitivity(sensor, input.readInt());
+            }
+        });
+
+        register(CommandType.ResetToCenter, new CommandCodec<ResetToCenter>() {
+            @Override
+            public void encode(ResetToCenter command, DataOutputStream output) {
+                // no fields
+            }
+
+            @Override
+            public ResetToCenter decode(DataInputStream input) {
+                return new ResetToCenter();
+            }
+        });
+
+        register(CommandType.ConnectionAliveCheck, new CommandCodec<ConnectionAliveCheck>() {
+            @Override
+            public void encode(ConnectionAliveCheck command, DataOutputStream output) throws IOException {
+                writeNetworkDevice(command.requester, output);
+                writeNetworkDevice(command.answerer, output);
+                output.writeLong(command.requestTime);
+            }
+
+            @Override
+            public ConnectionAliveCheck decode(DataInputStream input) throws IOException {
+                ConnectionAliveCheck command = new ConnectionAliveCheck(readNetworkDevice(input));
+                command.answerer = readNetworkDevice(input);
+
+                // peers older than REQUEST_TIME_CODEC_VERSION do not write the request time
+                if (input.available() >= 8)
+                    command.requestTime = input.readLong();
+                return command;
+            }
+        });
+
+        register(CommandType.SensorRangeNotification, new CommandCodec<SensorRangeNotification>() {
+            @Override
+            public void encode(SensorRangeNotification command, DataOutputStream output) throws IOException {
+                writeSensorType(command.type, output);
+                output.writeFloat(command.range);
+            }
+
+            @Override
+            public SensorRangeNotification decode(DataInputStream input) throws IOException {
+                SensorType sensor = readSensorType(input);
+                return new SensorRangeNotification(sensor, input.readFloat());
+            }
+        });
+
+        register(CommandType.UpdateButtonsMap, new CommandCodec<UpdateButtonsMap>() {
+            @Override
+            public void encode(UpdateButtonsMap command, DataOutputStream output) throws IOException {
+                output.writeInt(command.buttons.size());
+                for (Map.Entry<Integer, String> button : command.buttons.entrySet()) {
+                    output.writeInt(button.getKey());
+                    writeString(button.getValue(), output);
+                }
+            }
+
+            @Override
+            public UpdateButtonsMap decode(DataInputStream input) throws IOException {
+                int count = input.readInt();
+                Map<Integer, String> buttons = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    int id = input.readInt();
+                    buttons.put(id, readString(input));
+                }
+                return new UpdateButtonsMap(buttons);
+            }
+        });
+
+        register(CommandType.UpdateButtonsXML, new CommandCodec<UpdateButtonsXML>() {
+            @Override
+            public void encode(UpdateButtonsXML command, DataOutputStream output) throws IOException {
+                writeString(command.xmlContent, output);
+            }
+
+            @Override
+            public UpdateButtonsXML decode(DataInputStream input) throws IOException {
+                return new UpdateButtonsXML(readString(input));
+            }
+        });
+
+        register(CommandType.SetSensorSpeed, new CommandCodec<SetSensorSpeed>() {
+            @Override
+            public void encode(SetSensorSpeed command, DataOutputStream output) throws IOException {
+                writeSensorType(command.affectedSensor, output);
+                output.writeByte(command.sensorSpeed.ordinal());
+                output.writeInt(command.samplingPeriodUs);
+            }
+
+            @Override
+            public SetSensorSpeed decode(DataInputStream input) throws IOException {
+                SensorType sensor = readSensorType(input);
+                int speed = input.readUnsignedByte();
+                if (speed >= SENSOR_SPEEDS.length)
+                    throw new StreamCorruptedException("Unknown sensor speed " + speed);
+
+                // older peers do not send the sampling period
+                int samplingPeriod = input.available() >= 4 ? input.readInt() : SetSensorSpeed.USE_SENSOR_SPEED;
+                return new SetSensorSpeed(sensor, SENSOR_SPEEDS[speed], samplingPeriod);
+            }
+        });
+
+        register(CommandType.DisplayNotification, new CommandCodec<DisplayNotification>() {
+            @Override
+            public void encode(DisplayNotification command, DataOutputStream output) throws IOException {
+                output.writeInt(command.id);
+                writeString(command.title, output);
+                writeString(command.content, output);
+            }
+
+            @Override
+            public DisplayNotification decode(DataInputStream input) throws IOException {
+                int id = input.readInt();
+                String title = readString(input);
+                return new DisplayNotification(id, title, readString(input));
+            }
+        });
+
+        register(CommandType.RemapPorts, new CommandCodec<RemapPorts>() {
+            @Override
+            public void encode(RemapPorts command, DataOutputStream output) throws IOException {
+                output.writeInt(command.newDataPort);
+                output.writeInt(command.newCommandPort);
+            }
+
+            @Override
+            public RemapPorts decode(DataInputStream input) throws IOException {
+                int dataPort = input.readInt();
+                return new RemapPorts(dataPort, input.readInt());
+            }
+        });
+
+        register(CommandType.SensorDescription, new CommandCodec<SensorDescription>() {
+            @Override
+            public void encode(SensorDescription command, DataOutputStream output) throws IOException {
+                writeSensorType(command.usedSensor, output);
+                writeString(command.sensorDescription, output);
+            }
+
+            @Override
+            public SensorDescription decode(DataInputStream input) throws IOException {
+                SensorType sensor = readSensorType(input);
+                return new SensorDescription(sensor, readString(input));
+            }
+        });
+
+        register(CommandType.HideReset, new CommandCodec<HideReset>() {
+            @Override
+            public void encode(HideReset command, DataOutputStream output) throws IOException {
+                output.writeBoolean(command.isHidden());
+            }
+
+            @Override
+            public HideReset decode(DataInputStream input) throws IOException {
+                return new HideReset(input.readBoolean());
+            }
+        });
+
+        register(CommandType.SetDataBatching, new CommandCodec<SetDataBatching>() {
+            @Override
+            public void encode(SetDataBatching command, DataOutputStream output) throws IOException {
+                output.writeInt(command.maximumSamples);
+                output.writeInt(command.flushInterval);
+            }
+
+            @Override
+            public SetDataBatching decode(DataInputStream input) throws IOException {
+                int maximumSamples = input.readInt();
+                return new SetDataBatching(maximumSamples, input.readInt());
+            }
+        });
+
+        register(CommandType.CommandBatch, new CommandCodec<CommandBatch>() {
+            @Override
+            public void encode(CommandBatch command, DataOutputStream output) throws IOException {
+                output.writeInt(command.commands.size());
+
+                // each command is prefixed with its length, since serialized commands do not have a known length
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                for (AbstractCommand contained : command.commands) {
+                    buffer.reset();
+                    CommandCodecRegistry.encode(contained, CODEC_VERSION, buffer);
+                    output.writeInt(buffer.size());
+                    buffer.writeTo(output);
+                }
+            }
+
+            @Override
+            public CommandBatch decode(DataInputStream input) throws IOException {
+                // do not trust the lengths before allocating; each command needs at least its length prefix
+                int count = input.readInt();
+                if (count < 0 || count > input.available() / 4)
+                    throw new StreamCorruptedException("Batch command count " + count + " does not fit the batch size");
+
+                List<AbstractCommand> commands = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    int length = input.readInt();
+                    if (length < 0 || length > input.available())
+                        throw new StreamCorruptedException("Batched command length " + length + " exceeds batch size");
+
+                    byte[] encoded = new byte[length];
+                    input.readFully(encoded);
+
+                    try {
+                        commands.add(CommandCodecRegistry.decode(encoded, 0, encoded.length));
+                    } catch (ClassNotFoundException e) {
+                        throw new IOException("Unknown command class in batch", e);
+                    }
+                }
+                return new CommandBatch(commands);
+            }
+        });
+
+        register(CommandType.Acknowledgement, new CommandCodec<Acknowledgement>() {
+            @Override
+            public void encode(Acknowledgement command, DataOutputStream output) throws IOException {
+                // the correlation id is written by the registry
+            }
+
+            @Override
+            public Acknowledgement decode(DataInputStream input) throws IOException {
+                return new Acknowledgement(AbstractCommand.NO_CORRELATION_ID);
+            }
+        });
+
+        register(CommandType.ClockSync, new CommandCodec<ClockSync>() {
+            @Override
+            public void encode(ClockSync command, DataOutputStream output) throws IOException {
+                output.writeLong(command.serverSendTime);
+                output.writeLong(command.clientReceiveTime);
+                output.writeLong(command.clientSendTime);
+            }
+
+            @Override
+            public ClockSync decode(DataInputStream input) throws IOException {
+                ClockSync command = new ClockSync(input.readLong());
+                command.clientReceiveTime = input.readLong();
+                command.clientSendTime = input.readLong();
+                return command;
+            }
+        });
+    }
+}
@@ -19,6 +19,9 @@ public enum CommandType {
     DisplayNotification,
     RemapPorts,
     SensorDescription,
-    HideReset
-
+    HideReset,
+    SetDataBatching,
+    CommandBatch,
+    Acknowledgement,
+    ClockSync
 }
@@ -9,6 +9,17 @@ import de.ovgu.softwareprojekt.discovery.NetworkDevice;
  * This command is used to check the connection, by requiring an answer to be sent if it is received
  */
 public class ConnectionAliveCheck extends AbstractCommand {
+    /**
+     * The version computed for the original field set, so that older apps can still deserialize this command; they
+     * do not echo {@link #requestTime}
+     */
+    private static final long serialVersionUID = -7198436425088657684L;
+
+    /**
+     * Value of {@link #requestTime} if the requester did not stamp the check, or the answerer did not echo it
+     */
+    public static final long NO_REQUEST_TIME = 0;
+
     /**
      * The network device that is requesting the connection check
      */
@@ -19,6 +30,12 @@ public class ConnectionAliveCheck extends AbstractCommand {
      */
     public NetworkDevice answerer = null;
 
+    /**
+     * When the requester sent this check, see {@link System#nanoTime()}, or {@link #NO_REQUEST_TIME}. The answerer
+     * sends it back unchanged, so the requester can measure the round trip time of each answer.
+     */
+    public long requestTime = NO_REQUEST_TIME;
+
     /**
      * Create a new connection check packet
      *
@@ -7,11 +7,23 @@ import de.ovgu.softwareprojekt.discovery.NetworkDevice;
  */
 @SuppressWarnings("WeakerAccess")
 public class ConnectionRequest extends AbstractCommand {
+    /**
+     * The version computed for the original field set, so that older apps can still connect; their requests leave
+     * {@link #commandCodecVersion} at {@link CommandCodecRegistry#NO_CODEC_VERSION}
+     */
+    private static final long serialVersionUID = -3174211046797123818L;
+
     /**
      * Identify the device trying to connect. The net address is most probably not set!
      */
     public NetworkDevice self;
 
+    /**
+     * The highest {@link CommandCodecRegistry#CODEC_VERSION codec version} the client supports. Older clients do not
+     * send this, which leaves it at {@link CommandCodecRegistry#NO_CODEC_VERSION}.
+     */
+    public int commandCodecVersion;
+
     /**
      * Create a new connection request
      * @param self identify the network device trying to connect. Must have at least command and data port set to be useful.
@@ -19,5 +31,6 @@ public class ConnectionRequest extends AbstractCommand {
     public ConnectionRequest(NetworkDevice self) {
         super(CommandType.ConnectionRequest);
         this.self = self;
+        this.commandCodecVersion = CommandCodecRegistry.CODEC_VERSION;
     }
 }
@@ -1,21 +1,62 @@
 package de.ovgu.softwareprojekt.control.commands;
 
+import de.ovgu.softwareprojekt.SensorDataCodec;
+
 /**
  * This command is sent as an answer to {@link ConnectionRequest} commands, to notify of the decision
  * to accept the client (or not).
  */
 public class ConnectionRequestResponse extends AbstractCommand {
+    /**
+     * The version computed for the original field set, so that older apps can still read the response; they ignore the
+     * data token and the codec version
+     */
+    private static final long serialVersionUID = -7675099181922388413L;
+
     /**
      * Whether the request was granted or not
      */
     public boolean grant;
 
+    /**
+     * The token the client must put into its data frames, or {@link SensorDataCodec#NO_CLIENT_TOKEN} if the server
+     * does not need one.
+     */
+    public int dataToken;
+
+    /**
+     * The {@link CommandCodecRegistry codec version} both sides support. The client should use it for all further
+     * commands; it is {@link CommandCodecRegistry#NO_CODEC_VERSION} if commands must be serialized.
+     */
+    public int commandCodecVersion;
+
     /**
      * Create a new response for a connection request
      * @param grant Whether the connection request was granted or not
      */
     public ConnectionRequestResponse(boolean grant) {
+        this(grant, SensorDataCodec.NO_CLIENT_TOKEN);
+    }
+
+    /**
+     * Create a new response for a connection request
+     * @param grant     Whether the connection request was granted or not
+     * @param dataToken the token the client must put into its data frames
+     */
+    public ConnectionRequestResponse(boolean grant, int dataToken) {
+        this(grant, dataToken, CommandCodecRegistry.NO_CODEC_VERSION);
+    }
+
+    /**
+     * Create a new response for a connection request
+     * @param grant               Whether the connection request was granted or not
+     * @param dataToken           the token the client must put into its data frames
+     * @param commandCodecVersion the codec version the client should use for its commands
+     */
+    public ConnectionRequestResponse(boolean grant, int dataToken, int commandCodecVersion) {
         super(CommandType.ConnectionRequestResponse);
         this.grant = grant;
+        this.dataToken = dataToken;
+        this.commandCodecVersion = commandCodecVersion;
     }
 }
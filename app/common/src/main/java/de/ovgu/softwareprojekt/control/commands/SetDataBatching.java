@@ -0,0 +1,39 @@
+package de.ovgu.softwareprojekt.control.commands;
+
+/**
+ * This command tells the client how to batch its sensor data. If batching is enabled, the client packs multiple
+ * samples into a single udp datagram, which is sent once it contains {@link #maximumSamples} samples, is full, or the
+ * first sample in it is {@link #flushInterval} milliseconds old.
+ */
+public class SetDataBatching extends AbstractCommand {
+    /**
+     * How many samples may be put into a single datagram at most. Batching is disabled if this is 1 or less.
+     */
+    public int maximumSamples;
+
+    /**
+     * How long a sample may wait in a batch before the batch is sent, in milliseconds
+     */
+    public int flushInterval;
+
+    /**
+     * Create a new batching configuration command
+     *
+     * @param maximumSamples how many samples may be put into a single datagram at most; 1 disables batching
+     * @param flushInterval  how long a sample may wait in a batch before the batch is sent, in milliseconds
+     */
+    public SetDataBatching(int maximumSamples, int flushInterval) {
+        super(CommandType.SetDataBatching);
+        this.maximumSamples = maximumSamples;
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Check whether batching is enabled by this configuration
+     *
+     * @return true if multiple samples may be sent in a single datagram
+     */
+    public boolean isEnabled() {
+        return maximumSamples > 1;
+    }
+}
@@ -7,6 +7,12 @@ import de.ovgu.softwareprojekt.SensorType;
  */
 @SuppressWarnings("WeakerAccess")
 public class SetSensorSpeed extends AbstractCommand {
+    /**
+     * The version computed for the original field set, so that older apps can still deserialize this command; they
+     * ignore {@link #samplingPeriodUs}
+     */
+    private static final long serialVersionUID = 8567382691561659726L;
+
     /**
      * These are the sensor speeds made available by the android framework.
      *
@@ -20,6 +26,17 @@ public class SetSensorSpeed extends AbstractCommand {
         SENSOR_DELAY_UI
     }
 
+    /**
+     * Value of {@link #samplingPeriodUs} if only the {@link #sensorSpeed} should be used
+     */
+    public static final int USE_SENSOR_SPEED = -1;
+
+    /**
+     * The sampling periods android uses for {@link SensorSpeed#SENSOR_DELAY_GAME}, {@link SensorSpeed#SENSOR_DELAY_UI}
+     * and {@link SensorSpeed#SENSOR_DELAY_NORMAL}, in microseconds
+     */
+    private static final int GAME_PERIOD = 20000, UI_PERIOD = 66667, NORMAL_PERIOD = 200000;
+
     /**
      * The sensor whose speed is to be changed to {@link #sensorSpeed}
      */
@@ -30,6 +47,12 @@ public class SetSensorSpeed extends AbstractCommand {
      */
     public SensorSpeed sensorSpeed;
 
+    /**
+     * Requested time between two samples of {@link #affectedSensor} in microseconds, or {@link #USE_SENSOR_SPEED}.
+     * Apps that do not know this field use {@link #sensorSpeed}, so it must be at least as fast.
+     */
+    public int samplingPeriodUs = USE_SENSOR_SPEED;
+
     /**
      * Create a new command for setting sensor speed
      */
@@ -38,4 +61,40 @@ public class SetSensorSpeed extends AbstractCommand {
         affectedSensor = affected;
         sensorSpeed = speed;
     }
+
+    /**
+     * Create a new command for setting sensor speed, with an exact sampling period
+     *
+     * @param affected         the sensor whose speed is to be changed
+     * @param speed            the speed used by apps that do not support sampling periods
+     * @param samplingPeriodUs the time between two samples in microseconds, or {@link #USE_SENSOR_SPEED}
+     */
+    public SetSensorSpeed(SensorType affected, SensorSpeed speed, int samplingPeriodUs) {
+        this(affected, speed);
+        this.samplingPeriodUs = samplingPeriodUs;
+    }
+
+    /**
+     * Create a command requesting a sensor to sample at a given rate. Apps that do not support sampling periods
+     * get the slowest sensor speed that is still fast enough.
+     *
+     * @param affected the sensor whose speed is to be changed
+     * @param rate     the required sample rate in Hz; must be positive
+     * @return the command
+     */
+    public static SetSensorSpeed forRate(SensorType affected, float rate) {
+        int samplingPeriod = (int) Math.min(Integer.MAX_VALUE, 1000000 / rate);
+
+        SensorSpeed speed;
+        if (samplingPeriod >= NORMAL_PERIOD)
+            speed = SensorSpeed.SENSOR_DELAY_NORMAL;
+        else if (samplingPeriod >= UI_PERIOD)
+            speed = SensorSpeed.SENSOR_DELAY_UI;
+        else if (samplingPeriod >= GAME_PERIOD)
+            speed = SensorSpeed.SENSOR_DELAY_GAME;
+        else
+            speed = SensorSpeed.SENSOR_DELAY_FASTEST;
+
+        return new SetSensorSpeed(affected, speed, samplingPeriod);
+    }
 }
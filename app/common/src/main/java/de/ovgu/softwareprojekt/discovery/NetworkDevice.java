@@ -9,6 +9,12 @@ import java.net.UnknownHostException;
  */
 @SuppressWarnings("WeakerAccess")
 public class NetworkDevice implements Serializable {
+    /**
+     * The version computed for the original class, so that older apps sending serialized devices stay compatible
+     * with the slot accessors
+     */
+    private static final long serialVersionUID = 5086411932860639829L;
+
     /**
      * A human-readable name
      */
@@ -34,6 +40,17 @@ public class NetworkDevice implements Serializable {
      */
     public String address;
 
+    /**
+     * Returned by {@link #getSlot()} if the device is not a connected client of this server
+     */
+    public static final int NO_SLOT = -1;
+
+    /**
+     * The slot of the client plus one, so that the default of zero means no slot. Transient, because the slot only
+     * has a meaning on the server that assigned it.
+     */
+    private transient int mSlot = 0;
+
     /**
      * Create a new, fully defined, NetworkDevice using the given parameters
      * @param name human readable name
@@ -58,6 +75,45 @@ public class NetworkDevice implements Serializable {
         return name;
     }
 
+    /**
+     * Get the slot the server assigned to this client. Slots are small integers, starting at zero, that are unique
+     * among the connected clients and reused after a client disconnected, so per-client state can be kept in arrays
+     * instead of maps.
+     *
+     * @return the slot, or {@link #NO_SLOT} if this instance is not a connected client. Copies of a client, for
+     * example those created by deserialization, have no slot.
+     */
+    public int getSlot() {
+        return mSlot - 1;
+    }
+
+    /**
+     * Set the slot of this client. Only to be called by the server accepting or removing the client.
+     *
+     * @param slot the slot, or {@link #NO_SLOT} once the client is no longer connected
+     */
+    public void setSlot(int slot) {
+        mSlot = slot + 1;
+    }
+
+    /**
+     * Check whether data from the given device belongs to this device. Two connected clients are only the same
+     * if they are the same instance, which avoids comparing strings; otherwise, this is {@link #equals(Object)}.
+     *
+     * @param other the other device
+     * @return true if both identify the same client
+     */
+    public boolean isSameClient(NetworkDevice other) {
+        if (this == other)
+            return true;
+
+        // each connection has its own slot, so different instances with slots are different clients
+        if (mSlot != 0 && other.mSlot != 0)
+            return false;
+
+        return equals(other);
+    }
+
     /**j
      * Create a new NetworkDevice which will announce itself as "name" who may be contacted using commandPort and dataPort
      * @param name human readable name
@@ -0,0 +1,76 @@
+package de.ovgu.softwareprojekt.misc;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class provides a single scheduler for all periodic and delayed tasks, like connection checks, batch flushes
+ * and measurement resets. Using it instead of a {@link java.util.Timer} or executor per task keeps the thread count
+ * constant, no matter how many connections are open.
+ * <p>
+ * Tasks run on a small pool of daemon threads, and must not block for long. Cancelled tasks are purged from the
+ * queue every few seconds, so frequently rescheduled tasks do not pile up. Never shut the scheduler down; cancel the
+ * {@link java.util.concurrent.ScheduledFuture futures} of your tasks instead.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class SharedScheduler {
+    /**
+     * How many threads run the scheduled tasks
+     */
+    private static final int THREAD_COUNT = 2;
+
+    /**
+     * How often cancelled tasks are removed from the queue, in milliseconds
+     */
+    private static final long PURGE_INTERVAL = 5000;
+
+    /**
+     * The scheduler, created when first used
+     */
+    private static ScheduledThreadPoolExecutor sExecutor;
+
+    /**
+     * No instances, only static functions
+     */
+    private SharedScheduler() {
+    }
+
+    /**
+     * Get the shared scheduler
+     *
+     * @return the scheduler all periodic and delayed tasks should use
+     */
+    public static synchronized ScheduledExecutorService get() {
+        if (sExecutor == null) {
+            sExecutor = new ScheduledThreadPoolExecutor(THREAD_COUNT, new ThreadFactory() {
+                /**
+                 * Used to give each thread a unique name
+                 */
+                private final AtomicInteger mThreadNumber = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SharedScheduler " + mThreadNumber.getAndIncrement());
+
+                    // scheduled tasks should not keep the jvm alive
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            // cancelled tasks would otherwise stay queued until they would have run. setRemoveOnCancelPolicy() does
+            // this at once, but is not available before android api 21.
+            final ScheduledThreadPoolExecutor executor = sExecutor;
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    executor.purge();
+                }
+            }, PURGE_INTERVAL, PURGE_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        return sExecutor;
+    }
+}
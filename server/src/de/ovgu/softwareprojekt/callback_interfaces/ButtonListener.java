@@ -13,6 +13,8 @@ public interface ButtonListener {
      * <p>
      * You may add buttons using {@link AbstractPsychicServer#addButton(String, int) addButton(String, id)}
      * or {@link AbstractPsychicServer#setButtonLayout(String) setButtonLayout(String)}
+     * <p>
+     * Called on the thread handling the commands of all clients, so it must not block.
      *
      * @param click  event object specifying details like button id
      * @param origin the network device that sent the button click
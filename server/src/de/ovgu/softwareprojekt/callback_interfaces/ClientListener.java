@@ -11,6 +11,8 @@ import de.ovgu.softwareprojekt.discovery.NetworkDevice;
  * <li>{@link #onClientDisconnected(NetworkDevice)} when a client leaves, or lost connection</li>
  * <li>{@link #onClientTimeout(NetworkDevice)} when a client no longer responds</li>
  * </ul>
+ * <p>
+ * The callbacks are called on threads shared by all clients, so they must not block.
  */
 public interface ClientListener {
     /**
@@ -7,7 +7,8 @@ import de.ovgu.softwareprojekt.discovery.NetworkDevice;
  */
 public interface ResetListener {
     /**
-     * Called when the user presses the reset position button
+     * Called when the user presses the reset position button. Called on the thread handling the commands of all
+     * clients, so it must not block.
      *
      * @param origin which device pressed the button
      */
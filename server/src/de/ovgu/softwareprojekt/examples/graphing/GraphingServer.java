@@ -4,6 +4,7 @@ import de.ovgu.softwareprojekt.networking.NetworkDataSink;
 import de.ovgu.softwareprojekt.SensorType;
 import de.ovgu.softwareprojekt.control.commands.ButtonClick;
 import de.ovgu.softwareprojekt.discovery.NetworkDevice;
+import de.ovgu.softwareprojekt.misc.SharedScheduler;
 import de.ovgu.softwareprojekt.pipeline.FilterPipelineBuilder;
 import de.ovgu.softwareprojekt.pipeline.ThroughputMeasurer;
 import de.ovgu.softwareprojekt.networking.AbstractPsychicServer;
@@ -12,8 +13,8 @@ import javax.swing.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
-import java.util.*;
-import java.util.Timer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A server for live graphing of sensor data
@@ -75,22 +76,18 @@ public class GraphingServer extends AbstractPsychicServer {
      */
     private void scheduleThroughputUpdates(GraphPanel panel, ThroughputMeasurer measurer) {
         // schedule regular throughput updates
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                panel.setThroughput(measurer.getThroughput());
-                panel.repaint();
-            }
-        }, 0, 1000);
+        ScheduledFuture<?> updates = SharedScheduler.get().scheduleAtFixedRate(() -> {
+            panel.setThroughput(measurer.getThroughput());
+            panel.repaint();
+        }, 0, 1000, TimeUnit.MILLISECONDS);
 
-        // cancel the timer if the panel is closed
+        // cancel the updates if the panel is closed
         JFrame parentFrame = (JFrame) SwingUtilities.getWindowAncestor(panel);
         parentFrame.addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent windowEvent) {
                 super.windowClosing(windowEvent);
-                timer.cancel();
+                updates.cancel(false);
             }
         });
     }
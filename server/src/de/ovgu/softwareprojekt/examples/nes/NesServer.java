@@ -9,13 +9,13 @@ import de.ovgu.softwareprojekt.discovery.NetworkDevice;
 import de.ovgu.softwareprojekt.pipeline.FilterPipelineBuilder;
 import de.ovgu.softwareprojekt.pipeline.filters.AveragingFilter;
 import de.ovgu.softwareprojekt.pipeline.filters.ScalingFilter;
-import de.ovgu.softwareprojekt.pipeline.splitters.ClientSplitter;
+import de.ovgu.softwareprojekt.pipeline.splitters.ClientSensorSplitter;
 import de.ovgu.softwareprojekt.util.FileUtils;
 
 import java.awt.*;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.PriorityQueue;
 import java.util.Properties;
 
@@ -24,16 +24,16 @@ import java.util.Properties;
  */
 public class NesServer extends AbstractPsychicServer {
     /**
-     * This variable stores our steering wheels, mapped from network devices so we
+     * This variable stores our steering wheels, indexed by the slot of the network devices so we
      * can easily access the correct one.
      */
-    private HashMap<NetworkDevice, SteeringWheel> mSteeringWheels = new HashMap<>();
+    private SteeringWheel[] mSteeringWheels = new SteeringWheel[4];
 
     /**
-     * This variable stores our acceleration phase detectors, mapped from network devices
+     * This variable stores our acceleration phase detectors, indexed by the slot of the network devices
      * so we can easily access the one responsible for any given network device
      */
-    private HashMap<NetworkDevice, NetworkDataSink> mAccPhaseDetectors = new HashMap<>();
+    private NetworkDataSink[] mAccPhaseDetectors = new NetworkDataSink[4];
 
     /**
      * This priority queue stores all available button configs. they will get taken out as more
@@ -43,14 +43,9 @@ public class NesServer extends AbstractPsychicServer {
     private PriorityQueue<ButtonConfig> mButtonConfigs = new PriorityQueue<>();
 
     /**
-     * This client splitter makes sure that linear acceleration data is only sent to the correct pipeline
+     * This splitter makes sure that gravity and linear acceleration data is only sent to the correct pipeline
      */
-    private ClientSplitter mLinearAccelerationSplitter = new ClientSplitter();
-
-    /**
-     * This client splitter makes sure that gravity data is only sent to the correct pipeline
-     */
-    private ClientSplitter mGravitySplitter = new ClientSplitter();
+    private ClientSensorSplitter mClientSensorSplitter = new ClientSensorSplitter();
 
     /**
      * This value represents an id number which is used by the Android NotificationManager to identify notifications
@@ -68,7 +63,7 @@ public class NesServer extends AbstractPsychicServer {
         super(serverName);
 
         // normalize both utilized sensors
-        NetworkDataSink gravityPipeline = new ScalingFilter(333f, 10f, mGravitySplitter);
+        NetworkDataSink gravityPipeline = new ScalingFilter(333f, 10f, mClientSensorSplitter);
 
         // load button mappings: which player presses what when
         loadButtonMappings();
@@ -78,7 +73,7 @@ public class NesServer extends AbstractPsychicServer {
 
         // register our data splitters for sensor data
         registerDataSink(gravityPipeline, SensorType.Gravity);
-        registerDataSink(mLinearAccelerationSplitter, SensorType.LinearAcceleration);
+        registerDataSink(mClientSensorSplitter, SensorType.LinearAcceleration);
     }
 
     /**
@@ -153,15 +148,17 @@ public class NesServer extends AbstractPsychicServer {
             NetworkDataSink apd = getAccelerationPhaseDetection(wheel);
 
             // add the new client as a target for data
-            mGravitySplitter.addDataSink(newClient, wheel);
-            mLinearAccelerationSplitter.addDataSink(newClient, apd);
-
-            // store a mapping from this network device to the new control stuff
-            mSteeringWheels.put(newClient, wheel);
-            mAccPhaseDetectors.put(newClient, apd);
-
-            // add the steering wheel to the list of network devices
-            mSteeringWheels.put(newClient, wheel);
+            mClientSensorSplitter.addDataSink(newClient, SensorType.Gravity, wheel);
+            mClientSensorSplitter.addDataSink(newClient, SensorType.LinearAcceleration, apd);
+
+            // store the new control stuff in the slot of this network device
+            int slot = newClient.getSlot();
+            if (slot >= mSteeringWheels.length) {
+                mSteeringWheels = Arrays.copyOf(mSteeringWheels, slot + 1);
+                mAccPhaseDetectors = Arrays.copyOf(mAccPhaseDetectors, slot + 1);
+            }
+            mSteeringWheels[slot] = wheel;
+            mAccPhaseDetectors[slot] = apd;
         } catch (AWTException e) {
             System.out.println("Your device does not support java virtual input, which is required.");
             return false;
@@ -195,27 +192,32 @@ public class NesServer extends AbstractPsychicServer {
      * @param removeClient the client to be removed
      */
     private void removeClient(NetworkDevice removeClient) {
-        SteeringWheel wheel = mSteeringWheels.get(removeClient);
+        // clients that were never accepted have nothing to remove
+        int slot = removeClient.getSlot();
+        if (slot == NetworkDevice.NO_SLOT || slot >= mSteeringWheels.length)
+            return;
+
+        SteeringWheel wheel = mSteeringWheels[slot];
         if (wheel != null) {
             // put back the button config that was used by the removed client
             mButtonConfigs.add(wheel.getButtonConfig());
             wheel.releaseAllKeys();
             wheel.close();
 
-            // delete the steering wheel
-            mSteeringWheels.remove(removeClient);
-
             // remove the client from the splitter
-            mLinearAccelerationSplitter.remove(removeClient);
-            mGravitySplitter.remove(removeClient);
+            mClientSensorSplitter.remove(removeClient);
         }
 
         // unregister its data sinks
         try {
-            unregisterDataSink(mAccPhaseDetectors.get(removeClient), SensorType.LinearAcceleration);
-            unregisterDataSink(mSteeringWheels.get(removeClient), SensorType.Gravity);
+            unregisterDataSink(mAccPhaseDetectors[slot], SensorType.LinearAcceleration);
+            unregisterDataSink(wheel, SensorType.Gravity);
         } catch (IOException | NullPointerException ignored) {
         }
+
+        // free the slot for the next client
+        mSteeringWheels[slot] = null;
+        mAccPhaseDetectors[slot] = null;
     }
 
     @Override
@@ -223,8 +225,12 @@ public class NesServer extends AbstractPsychicServer {
         super.close();
 
         // close all steering wheels
-        mSteeringWheels.forEach((networkDevice, wheel) -> wheel.close());
-        mAccPhaseDetectors.forEach((networkDevice, apd) -> apd.close());
+        for (SteeringWheel wheel : mSteeringWheels)
+            if (wheel != null)
+                wheel.close();
+        for (NetworkDataSink apd : mAccPhaseDetectors)
+            if (apd != null)
+                apd.close();
     }
 
     /**
@@ -244,7 +250,7 @@ public class NesServer extends AbstractPsychicServer {
      */
     @Override
     public void onButtonClick(ButtonClick click, NetworkDevice origin) {
-        mSteeringWheels.get(origin).controllerInput(click.getId(), click.isPressed());
+        mSteeringWheels[origin.getSlot()].controllerInput(click.getId(), click.isPressed());
     }
 
     /**
@@ -255,7 +261,7 @@ public class NesServer extends AbstractPsychicServer {
     @Override
     public void onClientAccepted(NetworkDevice connectedClient) {
         // Get playerID and add 1, because IDs start with zero
-        int playerID = mSteeringWheels.get(connectedClient).getButtonConfig().getPlayerID() + 1;
+        int playerID = mSteeringWheels[connectedClient.getSlot()].getButtonConfig().getPlayerID() + 1;
 
         try {
             //tells player which id they have
@@ -1,28 +1,37 @@
 package de.ovgu.softwareprojekt.networking;
 
 import com.sun.istack.internal.Nullable;
+import de.ovgu.softwareprojekt.SensorData;
 import de.ovgu.softwareprojekt.SensorType;
 import de.ovgu.softwareprojekt.callback_interfaces.ButtonListener;
 import de.ovgu.softwareprojekt.callback_interfaces.ClientListener;
 import de.ovgu.softwareprojekt.callback_interfaces.ResetListener;
+import de.ovgu.softwareprojekt.control.ConnectionWatch;
 import de.ovgu.softwareprojekt.control.OnCommandListener;
 import de.ovgu.softwareprojekt.control.commands.*;
 import de.ovgu.softwareprojekt.discovery.NetworkDevice;
 import de.ovgu.softwareprojekt.misc.ExceptionListener;
+import de.ovgu.softwareprojekt.util.LatencyHistogram;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * This class encapsulates the whole server system:
  * <p>
  * <ol>
  * <li>A DiscoveryServer used to make clients able to find this server</li>
- * <li>A CommandConnection to be able to reliable communicate about important stuff, like enabling sensors</li>
+ * <li>A CommandServer to be able to reliable communicate about important stuff, like enabling sensors</li>
  * <li>A DataConnection to rapidly transmit sensor data</li>
  * </ol>
+ * <p>
+ * The commands of all clients are handled by a single thread, which also calls {@link #acceptClient(NetworkDevice)},
+ * {@link #onClientAccepted(NetworkDevice)}, {@link #onButtonClick(ButtonClick, NetworkDevice)} and
+ * {@link #onResetPosition(NetworkDevice)}. These must return quickly; hand longer work to a thread of your own, since
+ * no client's commands or connection checks are handled while they run.
  */
 @SuppressWarnings({"unused", "WeakerAccess", "SameParameterValue"})
 public abstract class AbstractPsychicServer implements
@@ -63,6 +72,11 @@ public abstract class AbstractPsychicServer implements
      */
     private DataMapper mDataMapper = new DataMapper();
 
+    /**
+     * How long {@link #sendRequest(NetworkDevice, AbstractCommand)} waits for an acknowledgement, in milliseconds
+     */
+    public static final long DEFAULT_REQUEST_TIMEOUT = 2000;
+
     /**
      * The maximum number of clients allowed on the server
      */
@@ -141,6 +155,8 @@ public abstract class AbstractPsychicServer implements
         System.out.println("Closing down");
         mClientManager.closeAll();
         mCurrentUnboundClientConnection.close();
+        mClientManager.closeDataChannels();
+        mClientManager.closeCommandServer();
         System.out.println("All ClientConnections closed");
         mDiscoveryServer.close();
         System.out.println("Discovery server closed");
@@ -178,12 +194,17 @@ public abstract class AbstractPsychicServer implements
                 // update the request source address
                 request.self.address = origin.getHostAddress();
 
+                // assign the slot before asking the subclass, so it can already set up per-slot state
+                mClientManager.assignSlot(request.self);
+
                 // accept the client if the client maximum has not been reached and the subclass allows it
                 boolean acceptClient = !isClientMaximumReached() && acceptClient(request.self);
+                if (!acceptClient)
+                    mClientManager.releaseSlot(request.self);
 
                 // reply to the client, either accepting or denying his request
                 try {
-                    mCurrentUnboundClientConnection.handleConnectionRequest(request.self, acceptClient);
+                    mCurrentUnboundClientConnection.handleConnectionRequest(request.self, request.commandCodecVersion, acceptClient);
                 } catch (UnknownHostException e) {
                     onException(this, e, "Could not parse address of incoming connection request. This is bad.");
                 }
@@ -283,7 +304,8 @@ public abstract class AbstractPsychicServer implements
     }
 
     /**
-     * Register a new data sink to be included in the data stream. Only data from a single client and sensor will arrive.
+     * Register a new data sink to be included in the data stream. Only data from a single client and sensor will arrive,
+     * and only that client is asked to enable the sensor.
      *
      * @param dataSink        where new data from the sensor should go
      * @param origin          the network device which is allowed to send to this sink
@@ -294,6 +316,36 @@ public abstract class AbstractPsychicServer implements
         mDataMapper.registerDataSink(requestedSensor, origin, dataSink);
     }
 
+    /**
+     * Register a new data sink to be included in the data stream, declaring the sample rate it needs. The clients
+     * are asked to sample each sensor at the highest rate its sinks need, instead of the speed set by
+     * {@link #setSensorSpeed(SensorType, SetSensorSpeed.SensorSpeed)}; if any sink of the sensor did not declare a
+     * rate, that speed is used. Registering an already registered sink again changes its rate.
+     *
+     * @param dataSink        where new data from the sensor should go
+     * @param requestedSensor which sensors events are relevant
+     * @param rate            the sample rate the sink needs, in Hz
+     * @throws IOException if a client could not be notified of the sensor change
+     */
+    public void registerDataSink(NetworkDataSink dataSink, SensorType requestedSensor, float rate) throws IOException {
+        mDataMapper.registerDataSink(requestedSensor, null, dataSink, rate);
+    }
+
+    /**
+     * Register a new data sink to be included in the data stream, declaring the sample rate it needs. Only data from
+     * a single client and sensor will arrive, and only that client is asked to sample the sensor at the rate. See
+     * {@link #registerDataSink(NetworkDataSink, SensorType, float)}.
+     *
+     * @param dataSink        where new data from the sensor should go
+     * @param origin          the network device which is allowed to send to this sink
+     * @param requestedSensor which sensor events are relevant
+     * @param rate            the sample rate the sink needs, in Hz
+     * @throws IOException if a client could not be notified of the sensor change
+     */
+    public void registerDataSink(NetworkDataSink dataSink, NetworkDevice origin, SensorType requestedSensor, float rate) throws IOException {
+        mDataMapper.registerDataSink(requestedSensor, origin, dataSink, rate);
+    }
+
     /**
      * Unregister a data sink from all sensors
      *
@@ -360,7 +412,8 @@ public abstract class AbstractPsychicServer implements
     }
 
     /**
-     * Change the speed of a sensor. The default speed is the SENSOR_DELAY_GAME speed.
+     * Change the speed of a sensor. The default speed is the SENSOR_DELAY_GAME speed. Clients whose sinks for the
+     * sensor all declared a sample rate use that rate instead.
      *
      * @param sensor the sensor to change
      * @param speed  the speed to use for sensor
@@ -370,6 +423,46 @@ public abstract class AbstractPsychicServer implements
         mClientManager.setSensorSpeed(sensor, speed);
     }
 
+    /**
+     * Let the clients pack multiple samples into a single udp datagram. A datagram is sent once it contains
+     * maximumSamples samples, no further sample fits into it, or its first sample has waited flushInterval
+     * milliseconds. This greatly reduces the packet rate at high sensor speeds, at the cost of up to flushInterval
+     * milliseconds of additional latency. Batching is disabled by default.
+     *
+     * @param maximumSamples how many samples may be sent in a single datagram; 1 disables batching
+     * @param flushInterval  how long a sample may wait in a batch, in milliseconds
+     * @throws IOException if a client could not be notified of the changed batching configuration
+     */
+    public void setDataBatching(int maximumSamples, int flushInterval) throws IOException {
+        mClientManager.setDataBatching(maximumSamples, flushInterval);
+    }
+
+    /**
+     * Get statistics about the sensor data stream of a client: how many datagrams were received, lost, duplicated or
+     * reordered, and the inter-arrival jitter. The returned object is updated live as data arrives.
+     *
+     * @param device the client whose statistics should be returned
+     * @return the statistics of the client, or null if the client is not connected
+     */
+    public DataStreamStatistics getDataStreamStatistics(NetworkDevice device) {
+        ClientConnection connection = mClientManager.getClientHandler(device);
+        return connection != null ? connection.getDataStreamStatistics() : null;
+    }
+
+    /**
+     * Get the round trip times of the connection checks sent to a client. Use {@link LatencyHistogram#getSnapshot()}
+     * for the percentiles since the client connected, or {@link LatencyHistogram#snapshotAndReset()} to get them per
+     * interval. While a client streams data, its connection is only checked every few seconds, see
+     * {@link #setDataSilenceInterval(long)}.
+     *
+     * @param device the client whose round trip times should be returned
+     * @return the live histogram of the client, or null if the client is not connected
+     */
+    public LatencyHistogram getRoundTripTimes(NetworkDevice device) {
+        ClientConnection connection = mClientManager.getClientHandler(device);
+        return connection != null ? connection.getRoundTripTimes() : null;
+    }
+
     /**
      * Retrieve the sensor range of a sensor on a specified device
      *
@@ -442,6 +535,146 @@ public abstract class AbstractPsychicServer implements
         mClientMaximum = Integer.MAX_VALUE;
     }
 
+    /**
+     * Receive the sensor data of all clients on a single udp port instead of a random port per client. The clients
+     * are told a token they must include in their data, which is used together with their address to assign the data
+     * to the right client. This makes it possible to use the server behind firewalls or in containers, where only a
+     * few known ports can be opened.
+     * <p>
+     * Must be called before {@link #start()}.
+     *
+     * @param port the port all clients should send their data to, or 0 to use a random port per client (the default)
+     */
+    public void setSharedDataPort(int port) {
+        setSharedDataPort(port, 1);
+    }
+
+    /**
+     * Receive the sensor data of all clients on a single udp port, using multiple receiver threads. The receiver
+     * threads each bind the port using SO_REUSEPORT, so that the kernel distributes the clients across them; the data
+     * of a single client is always handled by the same thread. Use this if a single thread cannot keep up with the
+     * incoming data, for example with a lot of clients using the fastest sensor speed.
+     * <p>
+     * SO_REUSEPORT is only available on java 9 or newer and supporting platforms; otherwise, a single receiver
+     * thread is used. Data sinks must be thread safe if more than one receiver thread is used. Must be called before
+     * {@link #start()}.
+     *
+     * @param port            the port all clients should send their data to, or 0 to use a random port per client
+     * @param receiverThreads how many receiver threads should be used
+     * @see #setSharedDataPort(int)
+     */
+    public void setSharedDataPort(int port, int receiverThreads) {
+        mClientManager.setSharedDataPort(port, receiverThreads);
+    }
+
+    /**
+     * Limit the number of commands queued for each client. Commands are sent asynchronously; if a client does not
+     * read them fast enough, for example because its wifi connection stalled, they pile up in its
+     * {@link CommandOutbox}. By default, up to {@link CommandOutbox#DEFAULT_CAPACITY} commands are queued, and the
+     * client is disconnected if it falls further behind.
+     *
+     * @param capacity       the maximum number of queued commands per client
+     * @param overflowPolicy what happens if a client does not read its commands fast enough
+     */
+    public void setCommandOutboxLimits(int capacity, CommandOutbox.OverflowPolicy overflowPolicy) {
+        mClientManager.setCommandOutboxLimits(capacity, overflowPolicy);
+
+        // the currently advertised connection is not yet managed by the client manager
+        if (mCurrentUnboundClientConnection != null)
+            mCurrentUnboundClientConnection.setCommandOutboxLimits(capacity, overflowPolicy);
+    }
+
+    /**
+     * Set how long the data stream of a client must be silent before the server checks the connection twice per
+     * second. While a client sends data, that data shows that it is alive, and the connection is only checked every
+     * few seconds. Defaults to {@link ConnectionWatch#DEFAULT_DATA_SILENCE_INTERVAL}.
+     *
+     * @param dataSilenceInterval the silence interval in milliseconds
+     */
+    public void setDataSilenceInterval(long dataSilenceInterval) {
+        mClientManager.setDataSilenceInterval(dataSilenceInterval);
+
+        // the currently advertised connection is not yet managed by the client manager
+        if (mCurrentUnboundClientConnection != null)
+            mCurrentUnboundClientConnection.setDataSilenceInterval(dataSilenceInterval);
+    }
+
+    /**
+     * Send a command to a client, and get notified once the client has handled it, for example to know when a
+     * {@link SetSensorSpeed} has taken effect. This does not block, and any number of requests may be outstanding.
+     *
+     * @param device  the client
+     * @param command the command to be sent. It must not be sent to another client at the same time.
+     * @param timeout how long to wait for the acknowledgement, in milliseconds
+     * @return a future that completes when the client has handled the command. It fails with a
+     * {@link java.util.concurrent.TimeoutException} if the client did not answer in time, with an
+     * {@link UnsupportedOperationException} if the client app is too old to acknowledge commands, or with an
+     * {@link IOException} if the client is not connected or disconnects.
+     */
+    public CompletableFuture<Void> sendRequest(NetworkDevice device, AbstractCommand command, long timeout) {
+        ClientConnection connection = mClientManager.getClientHandler(device);
+
+        if (connection == null) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new IOException(device + " is not connected"));
+            return future;
+        }
+
+        return connection.sendRequest(command, timeout);
+    }
+
+    /**
+     * Send a command to a client, and get notified once the client has handled it. Waits up to
+     * {@link #DEFAULT_REQUEST_TIMEOUT} milliseconds for the acknowledgement.
+     *
+     * @param device  the client
+     * @param command the command to be sent. It must not be sent to another client at the same time.
+     * @return a future that completes when the client has handled the command
+     * @see #sendRequest(NetworkDevice, AbstractCommand, long)
+     */
+    public CompletableFuture<Void> sendRequest(NetworkDevice device, AbstractCommand command) {
+        return sendRequest(device, command, DEFAULT_REQUEST_TIMEOUT);
+    }
+
+    /**
+     * Get the outbox of a client, which contains its queued commands and metrics about its command traffic
+     *
+     * @param device the client
+     * @return the outbox of the client, or null if the client is not connected
+     */
+    public CommandOutbox getCommandOutbox(NetworkDevice device) {
+        ClientConnection connection = mClientManager.getClientHandler(device);
+        return connection != null ? connection.getCommandOutbox() : null;
+    }
+
+    /**
+     * Receive the commands of all clients on a fixed tcp port. All command connections are handled by a single
+     * selector thread. By default, a random free port is used, which is advertised to the clients by the discovery
+     * server. Must be called before {@link #start()}.
+     *
+     * @param port the port all clients should send their commands to, or 0 to use a random port (the default)
+     */
+    public void setCommandPort(int port) {
+        mClientManager.setCommandPort(port);
+    }
+
+    /**
+     * Enable or disable reusing {@link SensorData} instances on the data path. This avoids allocating a new object
+     * for each received sample, which reduces garbage collection pauses at high sensor speeds and client counts.
+     * <p>
+     * If enabled, data sinks must not keep references to the {@link SensorData} objects they receive or their data
+     * arrays after onData returned; use {@link SensorData#clone()} if you need to store data. Disabled by default.
+     *
+     * @param useSensorDataPool true if {@link SensorData} instances should be reused
+     */
+    public void setSensorDataPoolEnabled(boolean useSensorDataPool) {
+        mClientManager.setSensorDataPoolEnabled(useSensorDataPool);
+
+        // the currently advertised connection is not yet managed by the client manager
+        if (mCurrentUnboundClientConnection != null)
+            mCurrentUnboundClientConnection.setSensorDataPoolEnabled(useSensorDataPool);
+    }
+
     /**
      * Hide the reset button on all clients
      *
@@ -4,28 +4,34 @@ import com.sun.istack.internal.NotNull;
 import de.ovgu.softwareprojekt.SensorData;
 import de.ovgu.softwareprojekt.SensorType;
 import de.ovgu.softwareprojekt.callback_interfaces.ClientListener;
-import de.ovgu.softwareprojekt.control.CommandConnection;
+import de.ovgu.softwareprojekt.control.CommandSender;
 import de.ovgu.softwareprojekt.control.ConnectionWatch;
 import de.ovgu.softwareprojekt.control.OnCommandListener;
 import de.ovgu.softwareprojekt.control.commands.*;
 import de.ovgu.softwareprojekt.discovery.NetworkDevice;
 import de.ovgu.softwareprojekt.misc.ExceptionListener;
+import de.ovgu.softwareprojekt.misc.SharedScheduler;
+import de.ovgu.softwareprojekt.util.LatencyHistogram;
 
 import java.io.IOException;
-import java.net.ConnectException;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class manages the command- and data connection for a single client. It intercepts the following commands:
  * {@link ConnectionAliveCheck} and {@link ChangeSensorSensitivity} and {@link SensorRangeNotification} and
- * {@link EndConnection}, never notifying the command listener of receiving them or converting them to listener calls.
+ * {@link Acknowledgement} and {@link ClockSync} and {@link EndConnection}, never notifying the command listener of receiving them or converting them to listener calls.
  * When a {@link EndConnection} command is received, all ports are closed, and the command is forwarded; no other
  * command can be sent to the client after that.
+ * <p>
+ * Commands are exchanged over a {@link CommandChannel} of the {@link CommandServer} shared by all client connections.
  */
-class ClientConnection implements OnCommandListener, NetworkDataSink, ConnectionWatch.TimeoutListener {
+class ClientConnection implements OnCommandListener, NetworkDataSink, ConnectionWatch.TimeoutListener, CommandSender {
     /**
      * This listener is to be called when we get commands from an unknown client
      */
@@ -52,9 +58,30 @@ class ClientConnection implements OnCommandListener, NetworkDataSink, Connection
     private DataConnection mDataConnection;
 
     /**
-     * Two-way communication for basically everything non-data, like enabling sensors or requesting connections
+     * The server handling the command traffic of all clients
      */
-    private CommandConnection mCommandConnection;
+    private final CommandServer mCommandServer;
+
+    /**
+     * Two-way communication for basically everything non-data, like enabling sensors or requesting connections. Null
+     * until a client requested a connection.
+     */
+    private volatile CommandChannel mCommandChannel;
+
+    /**
+     * The commands sent to the client that have not been acknowledged yet
+     */
+    private final PendingRequests mPendingRequests = new PendingRequests();
+
+    /**
+     * The maximum number of commands queued for the client
+     */
+    private int mOutboxCapacity = CommandOutbox.DEFAULT_CAPACITY;
+
+    /**
+     * What happens if the client does not read its commands fast enough
+     */
+    private CommandOutbox.OverflowPolicy mOutboxOverflowPolicy = CommandOutbox.OverflowPolicy.DISCONNECT;
 
     /**
      * Where to put data
@@ -76,6 +103,41 @@ class ClientConnection implements OnCommandListener, NetworkDataSink, Connection
      */
     private final ConnectionWatch mConnectionWatch;
 
+    /**
+     * The round trip times of the connection checks of {@link #mConnectionWatch}
+     */
+    private final LatencyHistogram mRoundTripTimes = new LatencyHistogram();
+
+    /**
+     * How many clock synchronization exchanges are done in quick succession after connecting
+     */
+    private static final int CLOCK_SYNC_BURST_COUNT = 8;
+
+    /**
+     * Delay between the first clock synchronization exchanges, in milliseconds
+     */
+    private static final long CLOCK_SYNC_BURST_INTERVAL = 250;
+
+    /**
+     * Delay between the later clock synchronization exchanges, in milliseconds
+     */
+    private static final long CLOCK_SYNC_INTERVAL = 10000;
+
+    /**
+     * Estimates the sensor clock of the client from the {@link ClockSync} exchanges
+     */
+    private final ClockOffsetEstimator mClockOffsetEstimator = new ClockOffsetEstimator();
+
+    /**
+     * Number of {@link ClockSync} requests sent
+     */
+    private int mClockSyncCount = 0;
+
+    /**
+     * The next scheduled {@link ClockSync} request, or null if clock synchronization has not started
+     */
+    private volatile ScheduledFuture<?> mClockSyncTask;
+
     /**
      * Contains the scaling filters that have to be applied for each sensors
      */
@@ -92,8 +154,8 @@ class ClientConnection implements OnCommandListener, NetworkDataSink, Connection
     private InetAddress mClientAddress;
 
     /**
-     * Create a new client connection handler, which will immediately begin listening on random ports. They may be retrieved
-     * using {@link #getCommandPort()} and {@link #getDataPort()}.
+     * Create a new client connection handler, which will immediately begin listening for data. The ports may be
+     * retrieved using {@link #getCommandPort()} and {@link #getDataPort()}.
      *
      * @param serverName               how the client connection should identify the server
      * @param exceptionListener        Who to notify about unhandleable exceptions
@@ -101,6 +163,8 @@ class ClientConnection implements OnCommandListener, NetworkDataSink, Connection
      * @param dataSink                 Where to put data
      * @param clientListener           who to notify of client events
      * @param unexpectedClientListener Who to notify if commands arrive from a foreign client
+     * @param dataConnection           the (not yet started) connection the client will send its data to
+     * @param commandServer            the running server the client will send its commands to
      * @throws IOException when the listening process could not be started
      */
     ClientConnection(
@@ -109,51 +173,151 @@ class ClientConnection implements OnCommandListener, NetworkDataSink, Connection
             OnCommandListener commandListener,
             ClientListener clientListener,
             NetworkDataSink dataSink,
-            UnexpectedClientListener unexpectedClientListener) throws IOException {
+            UnexpectedClientListener unexpectedClientListener,
+            DataConnection dataConnection,
+            CommandServer commandServer) throws IOException {
         // store arguments
         mExceptionListener = exceptionListener;
         mCommandListener = commandListener;
         mClientListener = clientListener;
         mDataSink = dataSink;
         mUnexpectedClientListener = unexpectedClientListener;
+        mCommandServer = commandServer;
 
         // store default sensitivity for all sensors
         for (SensorType sensorType : SensorType.values())
             mUserSensitivity.put(sensorType, 50f);
 
         // init connection classes
-        initialiseCommandConnection();
-        initialiseDataConnection();
+        initialiseDataConnection(dataConnection);
 
         //NetworkDevice identifying this client handler (eg name, data, command port)
-        NetworkDevice self = new NetworkDevice(serverName, mCommandConnection.getLocalPort(), mDataConnection.getLocalPort());
-        mConnectionWatch = new ConnectionWatch(self, this, mCommandConnection, exceptionListener);
+        NetworkDevice self = new NetworkDevice(serverName, getCommandPort(), mDataConnection.getLocalPort());
+        mConnectionWatch = new ConnectionWatch(self, this, this, exceptionListener);
+
+        // data from the client shows that it is alive, so checks are only needed while it is silent
+        mDataConnection.setConnectionWatch(mConnectionWatch);
+
+        // keep track of how long the client takes to answer
+        mConnectionWatch.setRoundTripListener(mRoundTripTimes::record);
+
+        // the data connection converts the sensor timestamps once the client clock is known
+        mDataConnection.setClockOffsetEstimator(mClockOffsetEstimator);
     }
 
     /**
-     * Send a command to this client
+     * Send a command to this client. The command is only queued; if the client cannot be reached anymore, the
+     * {@link ConnectionWatch} will detect the timeout. If the outbox of the client overflows with the
+     * {@link CommandOutbox.OverflowPolicy#DISCONNECT} policy, the client is disconnected.
      *
      * @param command the command to be sent
-     * @throws IOException if an error <b>other than</b> {@link ConnectException} occurred. If a {@link ConnectException}
-     *                     occurred, the client is likely listening no longer.
+     * @throws IOException if the command could not be encoded
      */
-    @SuppressWarnings("WeakerAccess")
-    void sendCommand(AbstractCommand command) throws IOException {
-        if (mIsConnected) {
+    @Override
+    public void sendCommand(AbstractCommand command) throws IOException {
+        sendCommand(new EncodedCommand(command));
+    }
+
+    /**
+     * Send a command that may also be sent to other clients. It is encoded only once for all of them.
+     *
+     * @param command the command to be sent
+     * @throws IOException if the command could not be encoded
+     * @see #sendCommand(AbstractCommand)
+     */
+    void sendCommand(EncodedCommand command) throws IOException {
+        CommandChannel channel = mCommandChannel;
+        if (mIsConnected && channel != null) {
+            try {
+                channel.sendCommand(command);
+            } catch (CommandOutbox.OverflowException e) {
+                // the client does not read its commands anymore, so it most probably is down
+                if (mIsConnected)
+                    mClientListener.onClientDisconnected(mClient);
+
+                close();
+            }
+        }
+    }
+
+    /**
+     * Send a command to this client, and wait for the client to acknowledge it without blocking. Any number of requests
+     * may be outstanding at the same time.
+     *
+     * @param command the command to be sent. It must not be sent to another client at the same time, since its
+     *                correlation id is changed.
+     * @param timeout how long to wait for the acknowledgement, in milliseconds
+     * @return a future that completes when the client has handled the command. It fails with a
+     * {@link java.util.concurrent.TimeoutException} if the client did not answer in time, with an
+     * {@link UnsupportedOperationException} if the client cannot acknowledge commands, or with an
+     * {@link IOException} if the command could not be sent or the client disconnected.
+     */
+    CompletableFuture<Void> sendRequest(AbstractCommand command, long timeout) {
+        // older apps do not acknowledge commands, so the command is only sent
+        if (!supportsAcknowledgements()) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
             try {
-                mCommandConnection.sendCommand(command);
-            } catch (ConnectException e) {
-                // if the client does not listen anymore, it most probably is down
-                if (e.getMessage().contains("Connection refused")) {
-                    // notify client listener only if we have not been closed
-                    if (mIsConnected)
-                        mClientListener.onClientDisconnected(mClient);
-
-                    // closeAndSignalClient self
-                    close();
-                }
+                command.setCorrelationId(AbstractCommand.NO_CORRELATION_ID);
+                sendCommand(command);
+                future.completeExceptionally(new UnsupportedOperationException("The client cannot acknowledge commands"));
+            } catch (IOException e) {
+                future.completeExceptionally(e);
             }
+            return future;
         }
+
+        CompletableFuture<Void> future = mPendingRequests.register(command, timeout);
+        try {
+            sendCommand(command);
+
+            // the request can never be acknowledged if this connection is closed
+            if (!mIsConnected)
+                mPendingRequests.fail(command.getCorrelationId(), new IOException("The client is not connected"));
+        } catch (IOException e) {
+            mPendingRequests.fail(command.getCorrelationId(), e);
+        }
+        return future;
+    }
+
+    /**
+     * Check whether the client answers commands with a correlation id with an {@link Acknowledgement}
+     *
+     * @return true if the client agreed on a codec version supporting acknowledgements
+     */
+    boolean supportsAcknowledgements() {
+        CommandChannel channel = mCommandChannel;
+        return channel != null && channel.getCommandCodecVersion() >= CommandCodecRegistry.ACKNOWLEDGEMENT_CODEC_VERSION;
+    }
+
+    /**
+     * Send multiple commands to this client. If the client supports it, they are sent as a single
+     * {@link CommandBatch}.
+     *
+     * @param commands the commands to be sent, in the order they must be handled
+     * @throws IOException if a command could not be encoded
+     */
+    void sendCommands(List<AbstractCommand> commands) throws IOException {
+        if (commands.size() > 1 && supportsCommandBatches())
+            sendCommand(new CommandBatch(commands));
+        else
+            for (AbstractCommand command : commands)
+                sendCommand(command);
+    }
+
+    /**
+     * Check whether the client can unpack {@link CommandBatch} commands
+     *
+     * @return true if the client agreed on a codec version supporting batches
+     */
+    boolean supportsCommandBatches() {
+        CommandChannel channel = mCommandChannel;
+        return channel != null && channel.getCommandCodecVersion() >= CommandCodecRegistry.BATCH_CODEC_VERSION;
+    }
+
+    @Override
+    public boolean isRunningAndConfigured() {
+        CommandChannel channel = mCommandChannel;
+        return channel != null && channel.isRunningAndConfigured();
     }
 
     /**
@@ -170,16 +334,22 @@ class ClientConnection implements OnCommandListener, NetworkDataSink, Connection
      * Handle a connection request to this client connection. If acceptClient is true, this instance may not be used to
      * handle another client.
      *
-     * @param client       the client that wants to connect
-     * @param acceptClient true if the client should be accepted, and this instance be bound to it
+     * @param client              the client that wants to connect
+     * @param commandCodecVersion the highest command codec version the client supports
+     * @param acceptClient        true if the client should be accepted, and this instance be bound to it
      * @throws UnknownHostException if the clients address could not be parsed to an {@link java.net.InetAddress}. Unlikely...
      */
-    void handleConnectionRequest(NetworkDevice client, boolean acceptClient) throws UnknownHostException {
+    void handleConnectionRequest(NetworkDevice client, int commandCodecVersion, boolean acceptClient) throws UnknownHostException {
         // if mClient is not null, we already handled a client, but we cannot handle another one.
         assert mClient == null;
 
         // initialise the connection to be able to send the request answer
-        mCommandConnection.setRemote(client.getInetAddress(), client.commandPort);
+        CommandChannel channel = mCommandServer.getChannel(new InetSocketAddress(client.getInetAddress(), client.commandPort));
+
+        // use binary commands if the client supports them
+        channel.setCommandCodecVersion(commandCodecVersion);
+        channel.getOutbox().setLimits(mOutboxCapacity, mOutboxOverflowPolicy);
+        mCommandChannel = channel;
 
         // accept or reject the client
         if (acceptClient)
@@ -201,9 +371,15 @@ class ClientConnection implements OnCommandListener, NetworkDataSink, Connection
      */
     public void close() {
         mIsConnected = false;
-        mCommandConnection.close();
+        if (mCommandChannel != null)
+            mCommandChannel.close();
+        mPendingRequests.failAll(new IOException("The connection to the client was closed"));
         mDataConnection.close();
         mConnectionWatch.close();
+
+        ScheduledFuture<?> clockSyncTask = mClockSyncTask;
+        if (clockSyncTask != null)
+            clockSyncTask.cancel(false);
     }
 
     /**
@@ -237,52 +413,88 @@ class ClientConnection implements OnCommandListener, NetworkDataSink, Connection
             // store client address
             mClientAddress = client.getInetAddress();
 
-            // accept the client
-            sendCommand(new ConnectionRequestResponse(true));
+            // accept the client, telling it which token to put into its data frames and which codec to use
+            sendCommand(new ConnectionRequestResponse(
+                    true,
+                    mDataConnection.getClientToken(),
+                    mCommandChannel.getCommandCodecVersion()));
 
             // give the connection watch the device it watches
             mConnectionWatch.setRemote(client);
 
             // start the connection watch
             mConnectionWatch.start();
+
+            // older apps do not know how to answer clock synchronization requests
+            if (supportsClockSync())
+                scheduleClockSync(CLOCK_SYNC_BURST_INTERVAL);
         } catch (IOException e) {
             mExceptionListener.onException(this, e, "could not accept client");
         }
     }
 
     /**
-     * Notify a client of its rejection. This instance may continue to be used for another client.
+     * Check whether the client can answer {@link ClockSync} requests
+     *
+     * @return true if the agreed codec version supports clock synchronization
      */
-    private void onClientRejected() {
+    private boolean supportsClockSync() {
+        CommandChannel channel = mCommandChannel;
+        return channel != null && channel.getCommandCodecVersion() >= CommandCodecRegistry.CLOCK_SYNC_CODEC_VERSION;
+    }
+
+    /**
+     * Schedule the next {@link ClockSync} request
+     *
+     * @param delay delay until the request is sent, in milliseconds
+     */
+    private void scheduleClockSync(long delay) {
+        mClockSyncTask = SharedScheduler.get().schedule(this::sendClockSync, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send a {@link ClockSync} request, and schedule the next one. A few requests are sent quickly after connecting
+     * to get a first estimate, and later ones track the drift of the client clock.
+     */
+    private void sendClockSync() {
+        if (!mIsConnected)
+            return;
+
         try {
-            // deny the client
-            mCommandConnection.sendCommand(new ConnectionRequestResponse(false));
+            sendCommand(new ClockSync(System.nanoTime()));
         } catch (IOException e) {
-            mExceptionListener.onException(this, e, "could not reject client");
+            mExceptionListener.onException(this, e, "could not synchronize the clock of " + mClient);
         }
+
+        mClockSyncCount++;
+        scheduleClockSync(mClockSyncCount < CLOCK_SYNC_BURST_COUNT ? CLOCK_SYNC_BURST_INTERVAL : CLOCK_SYNC_INTERVAL);
     }
 
     /**
-     * Instantiate the command connection (with this as listener) and start listening for command packets
-     *
-     * @throws IOException if no free port could be found, or the command connection could not be started
+     * Notify a client of its rejection. This instance may continue to be used for another client.
      */
-    private void initialiseCommandConnection() throws IOException {
-        // begin a new command connection, set this as callback
-        mCommandConnection = new CommandConnection(this, mExceptionListener);
+    private void onClientRejected() {
+        try {
+            // deny the client
+            mCommandChannel.sendCommand(new ConnectionRequestResponse(false));
+        } catch (IOException e) {
+            mExceptionListener.onException(this, e, "could not reject client");
+        }
 
-        // begin listening for commands
-        mCommandConnection.start();
+        // the channel is closed once the answer was sent, so this instance can handle the next request
+        mCommandChannel.close();
+        mCommandChannel = null;
     }
 
     /**
-     * Instantiate the data connection (with this as listener) and start listening for data packets
+     * Store the data connection, set this as its listener and start listening for data packets
      *
-     * @throws SocketException if no free data port could be found
+     * @param dataConnection the connection the client will send its data to
+     * @throws IOException if the data connection could not be started
      */
-    private void initialiseDataConnection() throws SocketException {
-        // begin a new data connection
-        mDataConnection = new DataConnection(mExceptionListener);
+    private void initialiseDataConnection(DataConnection dataConnection) throws IOException {
+        // store the data connection
+        mDataConnection = dataConnection;
 
         // register a callback for data objects
         mDataConnection.setDataSink(this);
@@ -292,56 +504,83 @@ class ClientConnection implements OnCommandListener, NetworkDataSink, Connection
     }
 
     /**
-     * Notify the client of all required buttons
-     * will overwrite any settings made by {@link #updateButtons(String)}
+     * Notify the client of all required sensors
      *
-     * @param buttonList a mapping of required (psychic button id {@literal ->} button text) buttons
+     * @param requiredSensors a set of sensors that the client must activate
      * @throws IOException if the command could not be sent
      */
-    void updateButtons(Map<Integer, String> buttonList) throws IOException {
-        // if the button list was changed, we need to update the clients buttons
-        sendCommand(new UpdateButtonsMap(buttonList));
+    void updateSensors(Set<SensorType> requiredSensors) throws IOException {
+        sendCommand(new SetSensorCommand(new ArrayList<>(requiredSensors)));
+    }
+
+    /**
+     * Enable or disable reusing {@link SensorData} instances for data received from this client
+     *
+     * @param useSensorDataPool true if {@link SensorData} instances should be reused after the data sink returned
+     */
+    void setSensorDataPoolEnabled(boolean useSensorDataPool) {
+        mDataConnection.setSensorDataPoolEnabled(useSensorDataPool);
     }
 
     /**
-     * Send client custom xml button layout
-     * will overwrite any settings made by {@link #updateButtons(Map)}
+     * Set how long the data stream of this client must be silent before connection checks are sent at full rate
      *
-     * @param xml valid android XML layout using only linear layout and button
-     * @throws IOException if the command could not be sent
+     * @param dataSilenceInterval the silence interval in milliseconds
      */
-    void updateButtons(String xml) throws IOException {
-        sendCommand((new UpdateButtonsXML(xml)));
+    void setDataSilenceInterval(long dataSilenceInterval) {
+        mConnectionWatch.setDataSilenceInterval(dataSilenceInterval);
     }
 
     /**
-     * Notify the client of all required sensors
+     * Limit the number of commands queued for this client
      *
-     * @param requiredSensors a set of sensors that the client must activate
-     * @throws IOException if the command could not be sent
+     * @param capacity       the maximum number of queued commands
+     * @param overflowPolicy what happens if the client does not read its commands fast enough
      */
-    void updateSensors(Set<SensorType> requiredSensors) throws IOException {
-        sendCommand(new SetSensorCommand(new ArrayList<>(requiredSensors)));
+    void setCommandOutboxLimits(int capacity, CommandOutbox.OverflowPolicy overflowPolicy) {
+        mOutboxCapacity = capacity;
+        mOutboxOverflowPolicy = overflowPolicy;
+
+        CommandChannel channel = mCommandChannel;
+        if (channel != null)
+            channel.getOutbox().setLimits(capacity, overflowPolicy);
     }
 
     /**
-     * Update the desired sensor speeds on all clients
+     * Get the outbox containing the commands waiting to be sent to this client
      *
-     * @param speedSet desired sensor speed set
-     * @throws IOException if the command could not be sent
+     * @return the outbox of the client, or null if no client requested a connection yet
+     */
+    CommandOutbox getCommandOutbox() {
+        CommandChannel channel = mCommandChannel;
+        return channel != null ? channel.getOutbox() : null;
+    }
+
+    /**
+     * Get the statistics about the data stream of this client
+     *
+     * @return the live statistics of the data connection
      */
-    void updateSpeeds(Set<Map.Entry<SensorType, SetSensorSpeed.SensorSpeed>> speedSet) throws IOException {
-        for (Map.Entry<SensorType, SetSensorSpeed.SensorSpeed> sensorSpeedMapping : speedSet)
-            sendCommand(new SetSensorSpeed(sensorSpeedMapping.getKey(), sensorSpeedMapping.getValue()));
+    DataStreamStatistics getDataStreamStatistics() {
+        return mDataConnection.getStatistics();
     }
 
     /**
-     * Get the port the {@link CommandConnection} is listening on
+     * Get the round trip times of the connection checks sent to this client
      *
-     * @return the port the {@link CommandConnection} is listening on
+     * @return the live histogram of round trip times
+     */
+    LatencyHistogram getRoundTripTimes() {
+        return mRoundTripTimes;
+    }
+
+    /**
+     * Get the port the {@link CommandServer} is listening on
+     *
+     * @return the port the {@link CommandServer} is listening on
      */
     int getCommandPort() {
-        return mCommandConnection.getLocalPort();
+        return mCommandServer.getLocalPort();
     }
 
     /**
@@ -381,7 +620,19 @@ class ClientConnection implements OnCommandListener, NetworkDataSink, Connection
                 mSensorRange.put(notification.type, notification.range);
                 break;
             case ConnectionAliveCheck:
-                mConnectionWatch.onCheckEvent();
+                mConnectionWatch.onCheckEvent((ConnectionAliveCheck) command);
+                break;
+            case Acknowledgement:
+                mPendingRequests.onAcknowledgement(command.getCorrelationId());
+                break;
+            case ClockSync:
+                ClockSync clockSync = (ClockSync) command;
+                if (clockSync.isAnswered())
+                    mClockOffsetEstimator.addSample(
+                            clockSync.serverSendTime,
+                            clockSync.clientReceiveTime,
+                            clockSync.clientSendTime,
+                            System.nanoTime());
                 break;
             case EndConnection:
                 if (mIsConnected)
@@ -438,25 +689,4 @@ class ClientConnection implements OnCommandListener, NetworkDataSink, Connection
     void displayNotification(int id, String title, String content) throws IOException {
         sendCommand(new DisplayNotification(id, title, content));
     }
-
-    /**
-     * sends a description for the sensortype
-     *
-     * @param type        affected sensor
-     * @param description description for the affected sensor
-     * @throws IOException if the sensor description could not be sent
-     */
-    void sendSensorDescription(SensorType type, String description) throws IOException {
-        sendCommand(new SensorDescription(type, description));
-    }
-
-    /**
-     * Hide the reset button on the client managed by this instance
-     *
-     * @param isHidden true if the button should be hidden
-     * @throws IOException is thrown if command could not be sent
-     */
-    void hideResetButton(boolean isHidden) throws IOException {
-        sendCommand(new HideReset(isHidden));
-    }
 }
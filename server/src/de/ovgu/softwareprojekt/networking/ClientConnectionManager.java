@@ -3,10 +3,9 @@ package de.ovgu.softwareprojekt.networking;
 import com.sun.istack.internal.Nullable;
 import de.ovgu.softwareprojekt.SensorType;
 import de.ovgu.softwareprojekt.callback_interfaces.ClientListener;
+import de.ovgu.softwareprojekt.control.ConnectionWatch;
 import de.ovgu.softwareprojekt.control.OnCommandListener;
-import de.ovgu.softwareprojekt.control.commands.AbstractCommand;
-import de.ovgu.softwareprojekt.control.commands.CommandType;
-import de.ovgu.softwareprojekt.control.commands.SetSensorSpeed;
+import de.ovgu.softwareprojekt.control.commands.*;
 import de.ovgu.softwareprojekt.discovery.NetworkDevice;
 import de.ovgu.softwareprojekt.misc.ExceptionListener;
 
@@ -26,7 +25,7 @@ import java.util.*;
  * </ul>
  */
 @SuppressWarnings("WeakerAccess")
-class ClientConnectionManager implements ClientListener, UnexpectedClientListener {
+class ClientConnectionManager implements ClientListener, UnexpectedClientListener, CommandRouter {
     /**
      * This interface must be called if a client is lost to allow the {@link AbstractPsychicServer} to react
      */
@@ -38,14 +37,24 @@ class ClientConnectionManager implements ClientListener, UnexpectedClientListene
     private String mServerName;
 
     /**
-     * Sensors required on the android devices
+     * Sensors required on the android devices, per client
      */
-    private Set<SensorType> mRequiredSensors;
+    private volatile SensorRequirements mSensorRequirements = SensorRequirements.NONE;
 
     /**
-     * Store requested speeds for all data sinks
+     * Sends the required sensors to the clients whenever they change
      */
-    private EnumMap<SensorType, SetSensorSpeed.SensorSpeed> mSensorSpeeds = new EnumMap<>(SensorType.class);
+    private final SensorRequirementReconciler mSensorReconciler;
+
+    /**
+     * The speed the clients use for sensors that were not given another speed
+     */
+    static final SetSensorSpeed.SensorSpeed DEFAULT_SENSOR_SPEED = SetSensorSpeed.SensorSpeed.SENSOR_DELAY_GAME;
+
+    /**
+     * Store requested speeds for all data sinks. Guarded by itself.
+     */
+    private final EnumMap<SensorType, SetSensorSpeed.SensorSpeed> mSensorSpeeds = new EnumMap<>(SensorType.class);
 
     /**
      * list of buttons that should be displayed on all clients
@@ -57,6 +66,11 @@ class ClientConnectionManager implements ClientListener, UnexpectedClientListene
      */
     private final List<ClientConnection> mClientConnections = new ArrayList<>();
 
+    /**
+     * The slots currently assigned to clients, see {@link NetworkDevice#getSlot()}. Guarded by itself.
+     */
+    private final BitSet mUsedSlots = new BitSet();
+
     /**
      * Who to notify about unhandleable exceptions
      */
@@ -82,6 +96,76 @@ class ClientConnectionManager implements ClientListener, UnexpectedClientListene
      */
     private String mButtonXML = null;
 
+    /**
+     * How many samples the clients may send in a single datagram; 1 disables batching
+     */
+    private int mBatchMaximumSamples = 1;
+
+    /**
+     * How long a sample may wait in a batch on the clients, in milliseconds
+     */
+    private int mBatchFlushInterval = 0;
+
+    /**
+     * True if the data connections should reuse {@link de.ovgu.softwareprojekt.SensorData} instances
+     */
+    private boolean mUseSensorDataPool = false;
+
+    /**
+     * The selectors dispatching the data of all client connections. They are created when first needed.
+     */
+    private final DataChannelSelector[] mDataChannelSelectors =
+            new DataChannelSelector[Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2))];
+
+    /**
+     * Index of the selector the next client connection will use
+     */
+    private int mNextDataChannelSelector = 0;
+
+    /**
+     * If not zero, all clients send their data to this port instead of using a port per client
+     */
+    private int mSharedDataPort = 0;
+
+    /**
+     * How many receiver threads the shared data channel should use
+     */
+    private int mSharedDataShardCount = 1;
+
+    /**
+     * The channel receiving the data of all clients if {@link #mSharedDataPort} is set. Created when first needed.
+     */
+    private SharedDataChannel mSharedDataChannel;
+
+    /**
+     * The port all clients send their commands to, or 0 to use a random free port
+     */
+    private int mCommandPort = 0;
+
+    /**
+     * The server handling the command traffic of all clients. Created when first needed.
+     */
+    private CommandServer mCommandServer;
+
+    /**
+     * The most recently created unbound handler, which receives the commands of clients that are not yet bound
+     */
+    private volatile ClientConnection mUnboundHandler;
+
+    /**
+     * The maximum number of commands queued for each client
+     */
+    private int mOutboxCapacity = CommandOutbox.DEFAULT_CAPACITY;
+
+    /**
+     * What happens if a client does not read its commands fast enough
+     */
+    private CommandOutbox.OverflowPolicy mOutboxOverflowPolicy = CommandOutbox.OverflowPolicy.DISCONNECT;
+
+    /**
+     * How long the data stream of a client must be silent before connection checks are sent at full rate
+     */
+    private long mDataSilenceInterval = ConnectionWatch.DEFAULT_DATA_SILENCE_INTERVAL;
 
     /**
      * Create a new ClientConnectionManager
@@ -105,6 +189,7 @@ class ClientConnectionManager implements ClientListener, UnexpectedClientListene
         mClientListener = clientListener;
         mDataSink = dataSink;
         mClientLossListener = clientLossListener;
+        mSensorReconciler = new SensorRequirementReconciler(this, exceptionListener);
     }
 
     /**
@@ -115,13 +200,203 @@ class ClientConnectionManager implements ClientListener, UnexpectedClientListene
      * @throws IOException if the handler could not be initialized
      */
     ClientConnection getUnboundHandler() throws IOException {
-        return new ClientConnection(
+        ClientConnection handler = new ClientConnection(
                 mServerName,
                 mExceptionListener,
                 mCommandListener,
                 this,
                 mDataSink,
-                this);
+                this,
+                createDataConnection(),
+                getCommandServer());
+
+        // apply the current receive mode and command limits
+        handler.setSensorDataPoolEnabled(mUseSensorDataPool);
+        handler.setCommandOutboxLimits(mOutboxCapacity, mOutboxOverflowPolicy);
+        handler.setDataSilenceInterval(mDataSilenceInterval);
+
+        // commands of unknown clients, like connection requests, now go to the new handler
+        mUnboundHandler = handler;
+        return handler;
+    }
+
+    /**
+     * Get the server handling the command traffic of all clients, starting it on first use
+     *
+     * @return a running {@link CommandServer}
+     * @throws IOException if the command port could not be bound
+     */
+    private synchronized CommandServer getCommandServer() throws IOException {
+        if (mCommandServer == null) {
+            mCommandServer = new CommandServer(mCommandPort, this, mExceptionListener);
+            mCommandServer.start();
+        }
+        return mCommandServer;
+    }
+
+    /**
+     * Set the port all clients send their commands to. Only has an effect before the first client connection was
+     * created.
+     *
+     * @param port the command port, or 0 to use a random free port
+     */
+    synchronized void setCommandPort(int port) {
+        mCommandPort = port;
+    }
+
+    /**
+     * Stop the command server. No commands will be sent or received afterwards.
+     */
+    synchronized void closeCommandServer() {
+        // sensor updates cannot be sent anymore
+        mSensorReconciler.close();
+
+        if (mCommandServer != null)
+            mCommandServer.close();
+        mCommandServer = null;
+    }
+
+    /**
+     * Commands of bound clients go to their handler, while those of unknown clients go to the current unbound handler
+     *
+     * @param origin the address the commands came from
+     * @return the handler responsible for the client
+     */
+    @Override
+    public OnCommandListener getCommandListener(InetAddress origin) {
+        ClientConnection handler = getClientHandler(origin);
+        return handler != null ? handler : mUnboundHandler;
+    }
+
+    /**
+     * Get the selector that should dispatch the data of the next client connection. The selectors are assigned
+     * round-robin to spread the clients across their threads.
+     *
+     * @return a running {@link DataChannelSelector}
+     * @throws IOException if a new selector could not be opened
+     */
+    private synchronized DataChannelSelector getNextDataChannelSelector() throws IOException {
+        int index = mNextDataChannelSelector;
+        mNextDataChannelSelector = (mNextDataChannelSelector + 1) % mDataChannelSelectors.length;
+
+        // start the selector on first use
+        if (mDataChannelSelectors[index] == null) {
+            mDataChannelSelectors[index] = new DataChannelSelector("DataChannelSelector " + index, mExceptionListener);
+            mDataChannelSelectors[index].start();
+        }
+
+        return mDataChannelSelectors[index];
+    }
+
+    /**
+     * Create a new data connection for the next client. If a shared data port was configured, the connection will be
+     * attached to the shared data channel, otherwise it will bind a random port.
+     *
+     * @return a data connection that has not yet been started
+     * @throws IOException if the data connection could not be created
+     */
+    private synchronized DataConnection createDataConnection() throws IOException {
+        if (mSharedDataPort == 0)
+            return new DataConnection(getNextDataChannelSelector(), mExceptionListener);
+
+        // bind the shared port on first use
+        if (mSharedDataChannel == null)
+            mSharedDataChannel = new SharedDataChannel(mSharedDataPort, mSharedDataShardCount, mExceptionListener);
+
+        return new DataConnection(mSharedDataChannel, mExceptionListener);
+    }
+
+    /**
+     * Receive the data of all clients on a single port. Only affects client connections created afterwards.
+     *
+     * @param port       the port all clients should send their data to, or 0 to use a random port per client
+     * @param shardCount how many receiver threads should share the port; more than one requires SO_REUSEPORT
+     */
+    synchronized void setSharedDataPort(int port, int shardCount) {
+        mSharedDataPort = port;
+        mSharedDataShardCount = shardCount;
+    }
+
+    /**
+     * Stop all data selector threads and close the shared data channel. No data will be received afterwards.
+     */
+    synchronized void closeDataChannels() {
+        if (mSharedDataChannel != null)
+            mSharedDataChannel.close();
+        mSharedDataChannel = null;
+
+        for (int i = 0; i < mDataChannelSelectors.length; i++) {
+            if (mDataChannelSelectors[i] != null)
+                mDataChannelSelectors[i].close();
+            mDataChannelSelectors[i] = null;
+        }
+    }
+
+    /**
+     * Enable or disable reusing {@link de.ovgu.softwareprojekt.SensorData} instances on all current and future
+     * client connections
+     *
+     * @param useSensorDataPool true if received instances should be reused after the data sinks returned
+     */
+    void setSensorDataPoolEnabled(boolean useSensorDataPool) {
+        mUseSensorDataPool = useSensorDataPool;
+
+        synchronized (mClientConnections) {
+            for (ClientConnection connection : mClientConnections)
+                connection.setSensorDataPoolEnabled(useSensorDataPool);
+        }
+    }
+
+    /**
+     * Limit the number of commands queued for each current and future client
+     *
+     * @param capacity       the maximum number of queued commands per client
+     * @param overflowPolicy what happens if a client does not read its commands fast enough
+     */
+    void setCommandOutboxLimits(int capacity, CommandOutbox.OverflowPolicy overflowPolicy) {
+        mOutboxCapacity = capacity;
+        mOutboxOverflowPolicy = overflowPolicy;
+
+        for (ClientConnection connection : getClientConnections())
+            connection.setCommandOutboxLimits(capacity, overflowPolicy);
+    }
+
+    /**
+     * Set how long the data stream of current and future clients must be silent before connection checks are sent
+     * at full rate
+     *
+     * @param dataSilenceInterval the silence interval in milliseconds
+     */
+    void setDataSilenceInterval(long dataSilenceInterval) {
+        mDataSilenceInterval = dataSilenceInterval;
+
+        for (ClientConnection connection : getClientConnections())
+            connection.setDataSilenceInterval(dataSilenceInterval);
+    }
+
+    /**
+     * Get a copy of the list of bound handlers. Broadcasts iterate over the copy, so that they neither hold the lock
+     * while sending nor break if a client is removed because of an overflowing outbox.
+     *
+     * @return a snapshot of the bound handlers
+     */
+    List<ClientConnection> getClientConnections() {
+        synchronized (mClientConnections) {
+            return new ArrayList<>(mClientConnections);
+        }
+    }
+
+    /**
+     * Send a command to all bound clients. The command is encoded only once per codec version, and the encoded frame
+     * is shared by all clients.
+     *
+     * @param command the command to be sent
+     * @throws IOException if the command could not be sent to a client
+     */
+    private void broadcast(AbstractCommand command) throws IOException {
+        EncodedCommand encodedCommand = new EncodedCommand(command);
+        for (ClientConnection client : getClientConnections())
+            client.sendCommand(encodedCommand);
     }
 
     /**
@@ -135,10 +410,50 @@ class ClientConnectionManager implements ClientListener, UnexpectedClientListene
             mClientConnections.add(handler);
         }
 
-        // send the sensor- and button requirements to the new client
-        handler.updateSensors(mRequiredSensors);
-        updateButtons();
-        handler.updateSpeeds(mSensorSpeeds.entrySet());
+        // send the complete configuration to the new client at once; the reconciler adds the required sensors
+        mSensorReconciler.configureClient(handler, getConfigurationCommands());
+    }
+
+    /**
+     * Get the commands that configure a new client, except for the required sensors and their speeds: buttons and
+     * data batching
+     *
+     * @return the configuration commands, in the order they should be handled
+     */
+    private List<AbstractCommand> getConfigurationCommands() {
+        List<AbstractCommand> commands = new ArrayList<>();
+
+        // send the button requirements
+        if (mButtonXML != null)
+            commands.add(new UpdateButtonsXML(mButtonXML));
+        else
+            commands.add(new UpdateButtonsMap(mButtonMap));
+
+        // clients do not batch by default, so only tell them if batching is enabled
+        if (mBatchMaximumSamples > 1)
+            commands.add(new SetDataBatching(mBatchMaximumSamples, mBatchFlushInterval));
+
+        return commands;
+    }
+
+    /**
+     * Get the speed a client should use for a sensor: the rate its data sinks need if all of them declared one,
+     * otherwise the speed set for the sensor
+     *
+     * @param client the client
+     * @param sensor the sensor
+     * @return a command setting the speed
+     */
+    SetSensorSpeed getSensorSpeed(ClientConnection client, SensorType sensor) {
+        float rate = mSensorRequirements.getRequiredRate(client.getClient(), sensor);
+        if (rate > 0)
+            return SetSensorSpeed.forRate(sensor, rate);
+
+        SetSensorSpeed.SensorSpeed speed;
+        synchronized (mSensorSpeeds) {
+            speed = mSensorSpeeds.get(sensor);
+        }
+        return new SetSensorSpeed(sensor, speed != null ? speed : DEFAULT_SENSOR_SPEED);
     }
 
     /**
@@ -152,10 +467,42 @@ class ClientConnectionManager implements ClientListener, UnexpectedClientListene
                 ClientConnection connection = it.next();
                 connection.closeAndSignalClient();
                 it.remove();
+                releaseSlot(connection.getClient());
             }
         }
     }
 
+    /**
+     * Assign the lowest free slot to a client that is about to be accepted, so that it is available to all
+     * callbacks concerning the client
+     *
+     * @param client the new client
+     */
+    void assignSlot(NetworkDevice client) {
+        synchronized (mUsedSlots) {
+            int slot = mUsedSlots.nextClearBit(0);
+            mUsedSlots.set(slot);
+            client.setSlot(slot);
+        }
+    }
+
+    /**
+     * Free the slot of a client that was rejected or removed. Calling this again for the same instance does
+     * nothing, so a slot that was already given to another client is never freed twice.
+     *
+     * @param client the client
+     */
+    void releaseSlot(NetworkDevice client) {
+        synchronized (mUsedSlots) {
+            int slot = client.getSlot();
+            if (slot == NetworkDevice.NO_SLOT)
+                return;
+
+            mUsedSlots.clear(slot);
+            client.setSlot(NetworkDevice.NO_SLOT);
+        }
+    }
+
     /**
      * This function find the connection handler that is managing a certain client, which is identified only by
      * his address
@@ -237,18 +584,35 @@ class ClientConnectionManager implements ClientListener, UnexpectedClientListene
     }
 
     /**
-     * Change the speed of a sensor. The default speed is the GAME speed.
+     * Change the speed of a sensor. The default speed is the GAME speed. The clients are updated shortly afterwards,
+     * unless the data sinks of the sensor declared the rate they need.
      *
      * @param sensor the sensor to change
      * @param speed  the speed to use for sensor
-     * @throws IOException if the required command could not be sent to all clients
      */
-    void setSensorSpeed(SensorType sensor, SetSensorSpeed.SensorSpeed speed) throws IOException {
+    void setSensorSpeed(SensorType sensor, SetSensorSpeed.SensorSpeed speed) {
         // change the speed for sensor x
-        mSensorSpeeds.put(sensor, speed);
+        synchronized (mSensorSpeeds) {
+            mSensorSpeeds.put(sensor, speed);
+        }
+
+        // update on all clients
+        mSensorReconciler.requestUpdate();
+    }
+
+    /**
+     * Change how the clients batch their sensor data
+     *
+     * @param maximumSamples how many samples may be sent in a single datagram; 1 disables batching
+     * @param flushInterval  how long a sample may wait in a batch, in milliseconds
+     * @throws IOException if the required command could not be sent to all clients
+     */
+    void setDataBatching(int maximumSamples, int flushInterval) throws IOException {
+        mBatchMaximumSamples = maximumSamples;
+        mBatchFlushInterval = flushInterval;
 
         // update on all clients
-        updateSensorSpeeds();
+        broadcast(new SetDataBatching(maximumSamples, flushInterval));
     }
 
     /**
@@ -287,6 +651,7 @@ class ClientConnectionManager implements ClientListener, UnexpectedClientListene
 
         // closeAndSignalClient the client connection
         connectionHandler.closeAndSignalClient();
+        releaseSlot(connectionHandler.getClient());
         return true;
     }
 
@@ -298,26 +663,10 @@ class ClientConnectionManager implements ClientListener, UnexpectedClientListene
      * @throws IOException if the update command could not be sent to a client
      */
     private void updateButtons() throws IOException {
-        synchronized (mClientConnections) {
-            for (ClientConnection client : mClientConnections) {
-                if (mButtonXML != null) {
-                    client.updateButtons(mButtonXML);
-                } else if (mButtonMap != null) {
-                    client.updateButtons(mButtonMap);
-                }
-            }
-        }
-    }
-
-    /**
-     * Force each client to update the sensor speeds
-     *
-     * @throws IOException if an update command could not be sent
-     */
-    private void updateSensorSpeeds() throws IOException {
-        synchronized (mClientConnections) {
-            for (ClientConnection client : mClientConnections)
-                client.updateSpeeds(mSensorSpeeds.entrySet());
+        if (mButtonXML != null) {
+            broadcast(new UpdateButtonsXML(mButtonXML));
+        } else if (mButtonMap != null) {
+            broadcast(new UpdateButtonsMap(mButtonMap));
         }
     }
 
@@ -330,22 +679,28 @@ class ClientConnectionManager implements ClientListener, UnexpectedClientListene
      * @throws IOException if a device could not be requested to display the notification
      */
     public void displayNotification(int id, String title, String content) throws IOException {
-        for (ClientConnection connection : mClientConnections)
-            connection.displayNotification(id, title, content);
+        broadcast(new DisplayNotification(id, title, content));
     }
 
     /**
-     * Force each client to update his required sensors
+     * Change the sensors the clients must enable, and the rates they must provide. The clients are updated shortly
+     * afterwards, and only if their required sensors or speeds actually changed.
      *
-     * @param requiredSensors a set of sensors that each client must enable
-     * @throws IOException if the required command could not be sent to all clients
+     * @param sensorRequirements the sensors each client must enable
      */
-    synchronized void updateSensors(Set<SensorType> requiredSensors) throws IOException {
-        mRequiredSensors = requiredSensors;
-        synchronized (mClientConnections) {
-            for (ClientConnection client : mClientConnections)
-                client.updateSensors(mRequiredSensors);
-        }
+    void updateSensors(SensorRequirements sensorRequirements) {
+        mSensorRequirements = sensorRequirements;
+        mSensorReconciler.requestUpdate();
+    }
+
+    /**
+     * Get the sensors a client must enable
+     *
+     * @param client the client
+     * @return a set of sensors the client must enable; must not be changed
+     */
+    EnumSet<SensorType> getRequiredSensors(ClientConnection client) {
+        return mSensorRequirements.getRequiredSensors(client.getClient());
     }
 
     /**
@@ -374,6 +729,9 @@ class ClientConnectionManager implements ClientListener, UnexpectedClientListene
         // forwardData the disconnect
         mClientListener.onClientDisconnected(disconnectedClient);
 
+        // the slot is freed only now, so the listener can still use it to clean up
+        releaseSlot(disconnectedClient);
+
         // notify client loss listener
         mClientLossListener.onClientLoss();
     }
@@ -393,6 +751,9 @@ class ClientConnectionManager implements ClientListener, UnexpectedClientListene
         // forwardData the timeout
         mClientListener.onClientTimeout(timeoutClient);
 
+        // the slot is freed only now, so the listener can still use it to clean up
+        releaseSlot(timeoutClient);
+
         // notify loss listener
         mClientLossListener.onClientLoss();
     }
@@ -408,6 +769,11 @@ class ClientConnectionManager implements ClientListener, UnexpectedClientListene
         // let the client register as usual, so only respond to other commands
         if (command.getCommandType() != CommandType.ConnectionRequest) {
             ClientConnection actualConnection = getClientHandler(badClient);
+
+            // the client is not known at all, so there are no ports to enforce
+            if (actualConnection == null)
+                return;
+
             System.out.println("remapped " + badClient);
             try {
                 actualConnection.enforcePorts();
@@ -435,10 +801,7 @@ class ClientConnectionManager implements ClientListener, UnexpectedClientListene
      * @throws IOException if the sensor description could not be sent
      */
     public void sendSensorDescription(SensorType type, String description) throws IOException {
-        synchronized (mClientConnections) {
-            for (ClientConnection con : mClientConnections)
-                con.sendSensorDescription(type, description);
-        }
+        broadcast(new SensorDescription(type, description));
     }
 
     /**
@@ -448,10 +811,7 @@ class ClientConnectionManager implements ClientListener, UnexpectedClientListene
      * @throws IOException is thrown if command could not be sent
      */
     public void hideResetButton(boolean hide) throws IOException{
-        synchronized (mClientConnections) {
-            for (ClientConnection con : mClientConnections)
-                con.hideResetButton(hide);
-        }
+        broadcast(new HideReset(hide));
     }
 
     /**
@@ -0,0 +1,202 @@
+package de.ovgu.softwareprojekt.networking;
+
+import java.util.Arrays;
+
+/**
+ * This class estimates the offset and drift between the sensor clock of a client and {@link System#nanoTime()} on
+ * the server, from the four timestamps of each {@link de.ovgu.softwareprojekt.control.commands.ClockSync} exchange,
+ * like NTP does.
+ * <p>
+ * Exchanges that were delayed on the network or in a queue give bad offsets, so only the faster half of the recent
+ * exchanges is used. Once they span enough time, a line is fitted through their offsets to account for the clocks
+ * running at slightly different rates.
+ * <p>
+ * Samples are added by the command thread, while {@link #toServerTime(long)} is called by the data thread for each
+ * sample; it only reads an immutable estimate and does not lock.
+ */
+class ClockOffsetEstimator {
+    /**
+     * Returned by {@link #toServerTime(long)} while no estimate is available
+     */
+    static final long UNKNOWN = 0;
+
+    /**
+     * How many recent exchanges are kept
+     */
+    private static final int WINDOW_SIZE = 32;
+
+    /**
+     * The drift is only estimated once the used exchanges span this long, in nanoseconds
+     */
+    private static final long MINIMUM_DRIFT_SPAN = 10L * 1000 * 1000 * 1000;
+
+    /**
+     * Larger drift estimates are considered measurement errors; real clocks are within a few dozen ppm
+     */
+    private static final double MAXIMUM_DRIFT = 500e-6;
+
+    /**
+     * The server times of the exchanges (the middle of request and answer), in a ring buffer
+     */
+    private final long[] mTimes = new long[WINDOW_SIZE];
+
+    /**
+     * The offsets of the exchanges (client minus server), in a ring buffer
+     */
+    private final long[] mOffsets = new long[WINDOW_SIZE];
+
+    /**
+     * The round trip delays of the exchanges, in a ring buffer
+     */
+    private final long[] mDelays = new long[WINDOW_SIZE];
+
+    /**
+     * Used to find the median delay without allocating
+     */
+    private final long[] mSortedDelays = new long[WINDOW_SIZE];
+
+    /**
+     * Number of exchanges stored
+     */
+    private int mCount = 0;
+
+    /**
+     * Where the next exchange is stored
+     */
+    private int mNext = 0;
+
+    /**
+     * The current estimate, or null if there was no valid exchange yet
+     */
+    private volatile Estimate mEstimate;
+
+    /**
+     * Add the result of a clock synchronization exchange
+     *
+     * @param serverSendTime    when the server sent the request, see {@link System#nanoTime()}
+     * @param clientReceiveTime when the client received the request, on its sensor clock
+     * @param clientSendTime    when the client sent the answer, on its sensor clock
+     * @param serverReceiveTime when the server received the answer, see {@link System#nanoTime()}
+     */
+    synchronized void addSample(long serverSendTime, long clientReceiveTime, long clientSendTime, long serverReceiveTime) {
+        long delay = (serverReceiveTime - serverSendTime) - (clientSendTime - clientReceiveTime);
+
+        // the client must not have taken longer than the whole exchange
+        if (delay < 0)
+            return;
+
+        mTimes[mNext] = serverSendTime + (serverReceiveTime - serverSendTime) / 2;
+        mOffsets[mNext] = ((clientReceiveTime - serverSendTime) + (clientSendTime - serverReceiveTime)) / 2;
+        mDelays[mNext] = delay;
+        mNext = (mNext + 1) % WINDOW_SIZE;
+        mCount = Math.min(mCount + 1, WINDOW_SIZE);
+
+        mEstimate = estimate();
+    }
+
+    /**
+     * Compute a new estimate from the stored exchanges
+     *
+     * @return the new estimate
+     */
+    private Estimate estimate() {
+        // find the fastest exchange
+        int fastest = 0;
+        for (int i = 1; i < mCount; i++)
+            if (mDelays[i] < mDelays[fastest])
+                fastest = i;
+
+        // only the faster half of the exchanges is trustworthy
+        System.arraycopy(mDelays, 0, mSortedDelays, 0, mCount);
+        Arrays.sort(mSortedDelays, 0, mCount);
+        long maximumDelay = mSortedDelays[(mCount - 1) / 2];
+
+        // the exchanges are fitted relative to the fastest one to keep the numbers small
+        long referenceTime = mTimes[fastest];
+        long referenceOffset = mOffsets[fastest];
+        int used = 0;
+        double sumTime = 0, sumOffset = 0;
+        long firstTime = Long.MAX_VALUE, lastTime = Long.MIN_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            if (mDelays[i] > maximumDelay)
+                continue;
+            used++;
+            sumTime += mTimes[i] - referenceTime;
+            sumOffset += mOffsets[i] - referenceOffset;
+            firstTime = Math.min(firstTime, mTimes[i]);
+            lastTime = Math.max(lastTime, mTimes[i]);
+        }
+
+        // without enough history, the fastest exchange is the best guess
+        if (used < 4 || lastTime - firstTime < MINIMUM_DRIFT_SPAN)
+            return new Estimate(referenceTime, referenceOffset, 0);
+
+        // least squares fit of offset over time
+        double meanTime = sumTime / used, meanOffset = sumOffset / used;
+        double covariance = 0, variance = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (mDelays[i] > maximumDelay)
+                continue;
+            double time = mTimes[i] - referenceTime - meanTime;
+            covariance += time * (mOffsets[i] - referenceOffset - meanOffset);
+            variance += time * time;
+        }
+        double drift = Math.max(-MAXIMUM_DRIFT, Math.min(MAXIMUM_DRIFT, covariance / variance));
+
+        // move the reference to the center of the fit, where it is most accurate
+        return new Estimate(
+                referenceTime + Math.round(meanTime),
+                referenceOffset + Math.round(meanOffset),
+                drift);
+    }
+
+    /**
+     * Convert a timestamp of the client sensor clock to the server clock
+     *
+     * @param clientTime the timestamp on the client sensor clock, in nanoseconds
+     * @return the corresponding {@link System#nanoTime()} on the server, or {@link #UNKNOWN} if no exchange has been
+     * completed yet
+     */
+    long toServerTime(long clientTime) {
+        Estimate estimate = mEstimate;
+        if (estimate == null)
+            return UNKNOWN;
+
+        // solve serverTime = clientTime - (offset + drift * (serverTime - referenceTime)) relative to the reference
+        long relative = clientTime - estimate.offset - estimate.time;
+        return estimate.time + Math.round(relative / (1 + estimate.drift));
+    }
+
+    /**
+     * An immutable estimate of the client clock: its offset at a point in time, and how fast the offset changes
+     */
+    private static final class Estimate {
+        /**
+         * The server time the offset was estimated for
+         */
+        final long time;
+
+        /**
+         * The offset of the client clock at {@link #time}, client minus server
+         */
+        final long offset;
+
+        /**
+         * How much the offset changes per nanosecond of server time
+         */
+        final double drift;
+
+        /**
+         * Create a new estimate
+         *
+         * @param time   the server time the offset was estimated for
+         * @param offset the offset of the client clock at that time, client minus server
+         * @param drift  how much the offset changes per nanosecond of server time
+         */
+        Estimate(long time, long offset, double drift) {
+            this.time = time;
+            this.offset = offset;
+            this.drift = drift;
+        }
+    }
+}
@@ -0,0 +1,553 @@
+package de.ovgu.softwareprojekt.networking;
+
+import de.ovgu.softwareprojekt.control.CommandFraming;
+import de.ovgu.softwareprojekt.control.CommandSender;
+import de.ovgu.softwareprojekt.control.OnCommandListener;
+import de.ovgu.softwareprojekt.control.commands.AbstractCommand;
+import de.ovgu.softwareprojekt.control.commands.CommandBatch;
+import de.ovgu.softwareprojekt.control.commands.CommandCodecRegistry;
+import de.ovgu.softwareprojekt.control.commands.CommandType;
+import de.ovgu.softwareprojekt.control.commands.ConnectionRequest;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class is the command connection to a single client on a {@link CommandServer}. Commands can be sent from any
+ * thread; they are queued and written by the selector thread as soon as the connection accepts them, so sending never
+ * blocks. If the client has not connected to us yet, or the connection was lost, a new connection to the command
+ * port of the client is opened.
+ * <p>
+ * Commands are read from every connection the client opens, but only written to the one it most recently sent a
+ * framed command over, or the one we opened ourselves. All fields not marked otherwise are only used by the selector
+ * thread.
+ */
+class CommandChannel implements CommandSender {
+    /**
+     * Initial size of the receive buffer; it grows if larger commands arrive
+     */
+    private static final int INITIAL_READ_BUFFER_SIZE = 4096;
+
+    /**
+     * The server this channel belongs to
+     */
+    private final CommandServer mServer;
+
+    /**
+     * The address of the client
+     */
+    private final InetAddress mAddress;
+
+    /**
+     * Encoded frames waiting to be written, in order. Used by all threads.
+     */
+    private final CommandOutbox mOutbox = new CommandOutbox();
+
+    /**
+     * True if a flush has been scheduled on the selector thread, but has not yet run. Used by all threads.
+     */
+    private final AtomicBoolean mIsFlushScheduled = new AtomicBoolean(false);
+
+    /**
+     * The command port of the client, or -1 if it is not known. Used by all threads.
+     */
+    private volatile int mRemotePort = -1;
+
+    /**
+     * The codec version used for outgoing commands, see {@link CommandCodecRegistry}. Used by all threads.
+     */
+    private volatile int mCommandCodecVersion = CommandCodecRegistry.NO_CODEC_VERSION;
+
+    /**
+     * True once {@link #close()} was called; the connection is closed after all queued frames were written. Used by
+     * all threads.
+     */
+    private volatile boolean mIsClosing = false;
+
+    /**
+     * True while a connection for sending to the client is established. Used by all threads.
+     */
+    private volatile boolean mIsConnected = false;
+
+    /**
+     * All open connections to the client
+     */
+    private final List<Connection> mConnections = new ArrayList<>();
+
+    /**
+     * The connection commands are written to, or null
+     */
+    private Connection mWriteConnection;
+
+    /**
+     * The frame currently being written, already removed from the outbox, or null
+     */
+    private ByteBuffer mCurrentFrame;
+
+    /**
+     * Create a new channel. Use {@link CommandServer#getChannel(InetSocketAddress)} instead.
+     *
+     * @param server  the server handling the connection
+     * @param address the address of the client
+     */
+    CommandChannel(CommandServer server, InetAddress address) {
+        mServer = server;
+        mAddress = address;
+    }
+
+    /**
+     * Set the command port of the client, which is used if the client has not connected to us
+     *
+     * @param remotePort the port the client listens for commands on
+     */
+    void setRemotePort(int remotePort) {
+        mRemotePort = remotePort;
+    }
+
+    /**
+     * Set the codec version used for outgoing commands
+     *
+     * @param remoteCodecVersion the highest codec version the client supports. The lower of this and
+     *                           {@link CommandCodecRegistry#CODEC_VERSION} is used.
+     */
+    void setCommandCodecVersion(int remoteCodecVersion) {
+        mCommandCodecVersion = Math.min(remoteCodecVersion, CommandCodecRegistry.CODEC_VERSION);
+    }
+
+    /**
+     * Get the codec version used for outgoing commands
+     *
+     * @return the codec version, or {@link CommandCodecRegistry#NO_CODEC_VERSION} if commands are serialized
+     */
+    int getCommandCodecVersion() {
+        return mCommandCodecVersion;
+    }
+
+    /**
+     * Get the outbox of this channel
+     *
+     * @return the outbox containing the commands waiting to be sent
+     */
+    CommandOutbox getOutbox() {
+        return mOutbox;
+    }
+
+    /**
+     * Queue a command for sending. This does not block; the command is written by the selector thread.
+     *
+     * @param command this command will be received by the client
+     * @throws IOException if the command could not be encoded, or the channel was closed
+     * @throws CommandOutbox.OverflowException if the outbox is full and the client should be disconnected
+     */
+    @Override
+    public void sendCommand(AbstractCommand command) throws IOException {
+        sendCommand(new EncodedCommand(command));
+    }
+
+    /**
+     * Queue a command for sending, reusing its frame if it was already encoded for another client
+     *
+     * @param command this command will be received by the client
+     * @throws IOException if the command could not be encoded, or the channel was closed
+     * @throws CommandOutbox.OverflowException if the outbox is full and the client should be disconnected
+     */
+    void sendCommand(EncodedCommand command) throws IOException {
+        if (mIsClosing)
+            throw new IOException("The command channel to " + mAddress + " was closed");
+
+        if (!mOutbox.offer(command.getFrame(mCommandCodecVersion)))
+            throw new CommandOutbox.OverflowException(mOutbox.getCapacity());
+
+        // a single flush handles all frames queued until it runs
+        if (mIsFlushScheduled.compareAndSet(false, true))
+            mServer.runOnSelectorThread(this::flush);
+    }
+
+    @Override
+    public boolean isRunningAndConfigured() {
+        return mServer.isRunning() && !mIsClosing && (mIsConnected || mRemotePort >= 0);
+    }
+
+    /**
+     * Close the connection once all queued commands have been written, and forget about this channel
+     */
+    void close() {
+        mIsClosing = true;
+        mServer.removeChannel(this);
+        mServer.runOnSelectorThread(this::flush);
+    }
+
+    /**
+     * Attach a connection the client opened to us. It is used for sending once the client sent a framed command over
+     * it. Called by the selector thread.
+     *
+     * @param socket the new connection
+     * @throws IOException if the connection could not be registered
+     */
+    void attach(SocketChannel socket) throws IOException {
+        Connection connection = new Connection(socket);
+        connection.mKey = mServer.register(socket, SelectionKey.OP_READ, connection);
+        mConnections.add(connection);
+    }
+
+    /**
+     * Write queued frames, opening a connection if required. Called by the selector thread.
+     */
+    private void flush() {
+        mIsFlushScheduled.set(false);
+
+        if (mWriteConnection == null) {
+            // nothing can be sent after closing if the client is not connected
+            if (mIsClosing) {
+                dropQueuedFrames();
+                closeConnections();
+                return;
+            }
+
+            // wait until the client connects if its port is unknown
+            if (hasQueuedFrames() && mRemotePort >= 0)
+                connect();
+            return;
+        }
+
+        // still connecting; the frames will be written once the connection is established
+        if (mWriteConnection.mSocket.isConnected())
+            write();
+    }
+
+    /**
+     * Open a connection to the command port of the client, and use it for sending. Called by the selector thread.
+     */
+    private void connect() {
+        Connection connection = null;
+        try {
+            connection = new Connection(SocketChannel.open());
+            mConnections.add(connection);
+            mWriteConnection = connection;
+
+            SocketChannel socket = connection.mSocket;
+            socket.configureBlocking(false);
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            // the connection is usually not established immediately
+            if (socket.connect(new InetSocketAddress(mAddress, mRemotePort))) {
+                connection.mKey = mServer.register(socket, SelectionKey.OP_READ | SelectionKey.OP_WRITE, connection);
+                mIsConnected = true;
+            } else
+                connection.mKey = mServer.register(socket, SelectionKey.OP_CONNECT, connection);
+        } catch (IOException e) {
+            onConnectFailed(connection);
+        }
+    }
+
+    /**
+     * Drop the queued commands after the client could not be reached. The connection watch will notice that the
+     * client is gone.
+     *
+     * @param connection the connection that could not be established, or null if the socket could not be opened
+     */
+    private void onConnectFailed(Connection connection) {
+        dropQueuedFrames();
+        if (connection != null)
+            connection.close();
+    }
+
+    /**
+     * Use a connection for sending. The previous connection is kept open for reading, since the client may still send
+     * commands over it. Called by the selector thread.
+     *
+     * @param connection the connection the client is using
+     */
+    private void adopt(Connection connection) {
+        if (connection == mWriteConnection)
+            return;
+
+        // a partially written frame is written again completely on the new connection
+        if (mCurrentFrame != null)
+            mCurrentFrame.rewind();
+
+        mWriteConnection = connection;
+        mIsConnected = true;
+
+        // send everything that was queued while the client was not connected
+        if (hasQueuedFrames())
+            write();
+    }
+
+    /**
+     * Check whether frames are waiting to be written. Called by the selector thread.
+     *
+     * @return true if the current frame or the outbox is not empty
+     */
+    private boolean hasQueuedFrames() {
+        return mCurrentFrame != null || !mOutbox.isEmpty();
+    }
+
+    /**
+     * Discard all frames waiting to be written. Called by the selector thread.
+     */
+    private void dropQueuedFrames() {
+        if (mCurrentFrame != null)
+            mOutbox.onDropped();
+        mCurrentFrame = null;
+        mOutbox.clear();
+    }
+
+    /**
+     * Write as many queued frames as possible to the write connection. Called by the selector thread.
+     */
+    private void write() {
+        Connection connection = mWriteConnection;
+        try {
+            // the frame is removed from the outbox before writing, so overflow handling cannot drop it halfway
+            while (mCurrentFrame != null || (mCurrentFrame = mOutbox.poll()) != null) {
+                connection.mSocket.write(mCurrentFrame);
+
+                // the socket buffer is full; continue when it has space again
+                if (mCurrentFrame.hasRemaining()) {
+                    connection.mKey.interestOps(connection.mKey.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+
+                mCurrentFrame = null;
+                mOutbox.onSent();
+            }
+
+            // all frames were written
+            connection.mKey.interestOps(connection.mKey.interestOps() & ~SelectionKey.OP_WRITE);
+            if (mIsClosing)
+                closeConnections();
+        } catch (IOException e) {
+            // the frames are kept, and sent over a new connection
+            connection.close();
+        }
+    }
+
+    /**
+     * Forward a command to the listener the router chooses
+     *
+     * @param command the received command
+     */
+    private void dispatch(AbstractCommand command) {
+        // the contained commands of a batch are handled in order, as if they had arrived separately
+        if (command.getCommandType() == CommandType.CommandBatch) {
+            for (AbstractCommand contained : ((CommandBatch) command).commands)
+                dispatch(contained);
+            return;
+        }
+
+        // the request tells us which app opened this connection
+        if (command.getCommandType() == CommandType.ConnectionRequest && mRemotePort < 0)
+            mServer.bindChannel(this, new InetSocketAddress(mAddress, ((ConnectionRequest) command).self.commandPort));
+
+        OnCommandListener listener = mServer.getRouter().getCommandListener(mAddress);
+        if (listener == null)
+            return;
+
+        try {
+            listener.onCommand(mAddress, command);
+        } catch (RuntimeException e) {
+            // a broken listener must not stop the command traffic of all other clients
+            mServer.getExceptionListener().onException(this, e, "Command listener failed on " + command.getCommandType());
+        }
+    }
+
+    /**
+     * Close all connections to the client. Called by the selector thread.
+     */
+    void closeConnections() {
+        // iterate over a copy, since closing removes the connection
+        for (Connection connection : new ArrayList<>(mConnections))
+            connection.close();
+    }
+
+    /**
+     * A single tcp connection to the client. Commands are read from all connections, but only written to the
+     * {@link #mWriteConnection}.
+     */
+    class Connection {
+        /**
+         * The socket of this connection
+         */
+        private final SocketChannel mSocket;
+
+        /**
+         * The selection key of {@link #mSocket}
+         */
+        private SelectionKey mKey;
+
+        /**
+         * Contains the received bytes that do not yet form a complete frame
+         */
+        private ByteBuffer mReadBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+
+        /**
+         * True if the client sent a single serialized command without framing, as older apps do
+         */
+        private boolean mIsLegacyStream = false;
+
+        /**
+         * Create a new connection
+         *
+         * @param socket the socket of the connection
+         */
+        private Connection(SocketChannel socket) {
+            mSocket = socket;
+        }
+
+        /**
+         * Called by the selector thread when the connection attempt has finished
+         */
+        void onConnectable() {
+            try {
+                mSocket.finishConnect();
+                mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+                // the client may have connected to us in the meantime
+                if (this == mWriteConnection)
+                    mIsConnected = true;
+            } catch (IOException e) {
+                onConnectFailed(this);
+            }
+        }
+
+        /**
+         * Called by the selector thread when data can be written
+         */
+        void onWritable() {
+            if (this == mWriteConnection)
+                write();
+            else
+                mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Called by the selector thread when data has arrived. Reads it and dispatches all complete commands.
+         */
+        void onReadable() {
+            try {
+                // the client closed the connection
+                if (mSocket.read(mReadBuffer) < 0) {
+                    if (mIsLegacyStream)
+                        dispatchLegacyCommand();
+                    close();
+                    return;
+                }
+
+                dispatchFrames();
+            } catch (IOException | ClassNotFoundException e) {
+                mServer.getExceptionListener().onException(CommandChannel.this, e, "Could not read commands from " + mAddress);
+                close();
+            }
+        }
+
+        /**
+         * Dispatch all complete frames in the read buffer, and keep the rest
+         *
+         * @throws IOException            if a frame is broken
+         * @throws ClassNotFoundException if a serialized command has an unknown class
+         */
+        private void dispatchFrames() throws IOException, ClassNotFoundException {
+            mReadBuffer.flip();
+
+            while (!mIsLegacyStream && mReadBuffer.remaining() >= CommandFraming.HEADER_SIZE) {
+                int length = mReadBuffer.getInt(mReadBuffer.position());
+
+                // older apps send a single serialized command and close the connection afterwards
+                if (length == CommandFraming.LEGACY_STREAM_HEADER) {
+                    mIsLegacyStream = true;
+                    break;
+                }
+
+                if (length < 0 || length > CommandFraming.MAXIMUM_FRAME_LENGTH)
+                    throw new IOException("Invalid command frame length " + length);
+
+                // wait for the rest of the frame, making sure it will fit into the buffer
+                int frameSize = CommandFraming.HEADER_SIZE + length;
+                if (mReadBuffer.remaining() < frameSize) {
+                    if (mReadBuffer.capacity() < frameSize) {
+                        ByteBuffer larger = ByteBuffer.allocate(frameSize);
+                        larger.put(mReadBuffer);
+                        mReadBuffer = larger;
+                        return;
+                    }
+                    break;
+                }
+
+                int offset = mReadBuffer.arrayOffset() + mReadBuffer.position() + CommandFraming.HEADER_SIZE;
+                AbstractCommand command = CommandCodecRegistry.decode(mReadBuffer.array(), offset, length);
+                mReadBuffer.position(mReadBuffer.position() + frameSize);
+
+                // the client keeps this connection open, so answers can be sent over it
+                adopt(this);
+                dispatch(command);
+            }
+
+            // the legacy stream is decoded as a whole when the client closes it
+            if (mIsLegacyStream && mReadBuffer.limit() == mReadBuffer.capacity()) {
+                if (mReadBuffer.capacity() >= CommandFraming.MAXIMUM_FRAME_LENGTH)
+                    throw new IOException("Serialized command is too long");
+
+                ByteBuffer larger = ByteBuffer.allocate(mReadBuffer.capacity() * 2);
+                larger.put(mReadBuffer);
+                mReadBuffer = larger;
+                return;
+            }
+
+            mReadBuffer.compact();
+        }
+
+        /**
+         * Decode the single serialized command sent by an older app
+         *
+         * @throws IOException            if the command is broken
+         * @throws ClassNotFoundException if the command has an unknown class
+         */
+        private void dispatchLegacyCommand() throws IOException, ClassNotFoundException {
+            mReadBuffer.flip();
+            dispatch(CommandCodecRegistry.decode(
+                    mReadBuffer.array(),
+                    mReadBuffer.arrayOffset() + mReadBuffer.position(),
+                    mReadBuffer.remaining()));
+        }
+
+        /**
+         * Close this connection. If it was used for sending, queued commands are sent over a new connection.
+         */
+        void close() {
+            if (mKey != null)
+                mKey.cancel();
+            try {
+                mSocket.close();
+            } catch (IOException ignored) {
+                // ignored, because we cannot handle it anyway
+            }
+            mConnections.remove(this);
+
+            // nobody can send over the channel of a connection whose client never identified itself
+            if (mConnections.isEmpty() && mRemotePort < 0)
+                mServer.removeChannel(CommandChannel.this);
+
+            if (this == mWriteConnection) {
+                mWriteConnection = null;
+                mIsConnected = false;
+
+                // a partially written frame must be sent completely on the next connection
+                if (mCurrentFrame != null)
+                    mCurrentFrame.rewind();
+
+                // reconnect if commands are still waiting
+                if (hasQueuedFrames() && !mIsClosing && mRemotePort >= 0)
+                    connect();
+            }
+        }
+    }
+}
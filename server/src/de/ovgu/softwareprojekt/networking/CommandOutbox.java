@@ -0,0 +1,295 @@
+package de.ovgu.softwareprojekt.networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is the bounded queue of encoded commands waiting to be sent to a single client. Any thread may add
+ * commands without blocking or locking; the {@link CommandServer} thread removes and writes them. If a client does not
+ * read its commands fast enough, the outbox fills up, and the {@link OverflowPolicy} decides what happens.
+ * <p>
+ * The metrics can be read from any thread. Retrieve the outbox of a client using
+ * {@link AbstractPsychicServer#getCommandOutbox(de.ovgu.softwareprojekt.discovery.NetworkDevice)}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CommandOutbox {
+    /**
+     * The default maximum number of queued commands
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * What to do with a command that does not fit into a full outbox
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the new command
+         */
+        DROP_NEWEST,
+
+        /**
+         * Discard the oldest queued command to make room for the new one
+         */
+        DROP_OLDEST,
+
+        /**
+         * Consider the client lost, and disconnect it
+         */
+        DISCONNECT
+    }
+
+    /**
+     * Thrown by {@link CommandChannel#sendCommand(de.ovgu.softwareprojekt.control.commands.AbstractCommand)} if the
+     * outbox overflowed with the {@link OverflowPolicy#DISCONNECT} policy
+     */
+    static class OverflowException extends IOException {
+        /**
+         * Create a new overflow exception
+         *
+         * @param capacity the capacity of the full outbox
+         */
+        OverflowException(int capacity) {
+            super("Command outbox overflowed with " + capacity + " queued commands");
+        }
+    }
+
+    /**
+     * The queued frames, oldest first
+     */
+    private final Queue<ByteBuffer> mFrames = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of frames in {@link #mFrames}, since the size of a {@link ConcurrentLinkedQueue} is not constant time
+     */
+    private final AtomicInteger mSize = new AtomicInteger();
+
+    /**
+     * Number of commands that were added
+     */
+    private final AtomicLong mEnqueued = new AtomicLong();
+
+    /**
+     * Number of commands that were completely written to the client
+     */
+    private final AtomicLong mSent = new AtomicLong();
+
+    /**
+     * Number of commands that were discarded, either due to overflow or because the client could not be reached
+     */
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * Number of times the outbox was full when a command was added
+     */
+    private final AtomicLong mOverflows = new AtomicLong();
+
+    /**
+     * The highest number of queued commands seen
+     */
+    private final AtomicInteger mHighWaterMark = new AtomicInteger();
+
+    /**
+     * The maximum number of queued commands
+     */
+    private volatile int mCapacity = DEFAULT_CAPACITY;
+
+    /**
+     * What happens if the outbox is full
+     */
+    private volatile OverflowPolicy mOverflowPolicy = OverflowPolicy.DISCONNECT;
+
+    /**
+     * Package-private, as only the command channels create outboxes
+     */
+    CommandOutbox() {
+    }
+
+    /**
+     * Change the limits of this outbox. Commands already queued beyond a lower capacity are kept.
+     *
+     * @param capacity       the maximum number of queued commands
+     * @param overflowPolicy what happens if the outbox is full
+     */
+    void setLimits(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("The outbox capacity must be at least 1");
+
+        mCapacity = capacity;
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Add a frame to the outbox
+     *
+     * @param frame the encoded command
+     * @return false if the outbox overflowed and the client must be disconnected
+     */
+    boolean offer(ByteBuffer frame) {
+        mEnqueued.incrementAndGet();
+
+        // reserve a place in the outbox
+        int size = mSize.incrementAndGet();
+        if (size > mCapacity) {
+            mSize.decrementAndGet();
+            mOverflows.incrementAndGet();
+
+            switch (mOverflowPolicy) {
+                case DROP_NEWEST:
+                    mDropped.incrementAndGet();
+                    return true;
+                case DISCONNECT:
+                    mDropped.incrementAndGet();
+                    return false;
+                case DROP_OLDEST:
+                    // the selector thread may have emptied the outbox in the meantime
+                    if (poll() != null)
+                        mDropped.incrementAndGet();
+                    size = mSize.incrementAndGet();
+                    break;
+            }
+        }
+
+        mFrames.add(frame);
+        updateHighWaterMark(size);
+        return true;
+    }
+
+    /**
+     * Remove the oldest frame
+     *
+     * @return the oldest frame, or null if the outbox is empty
+     */
+    ByteBuffer poll() {
+        ByteBuffer frame = mFrames.poll();
+        if (frame != null)
+            mSize.decrementAndGet();
+        return frame;
+    }
+
+    /**
+     * Check whether frames are waiting
+     *
+     * @return true if no frames are queued
+     */
+    boolean isEmpty() {
+        return mFrames.isEmpty();
+    }
+
+    /**
+     * Count a frame as completely written
+     */
+    void onSent() {
+        mSent.incrementAndGet();
+    }
+
+    /**
+     * Count a frame that was removed using {@link #poll()} as discarded
+     */
+    void onDropped() {
+        mDropped.incrementAndGet();
+    }
+
+    /**
+     * Discard all queued frames
+     */
+    void clear() {
+        while (poll() != null)
+            mDropped.incrementAndGet();
+    }
+
+    /**
+     * Raise the high water mark if required
+     *
+     * @param size the current number of queued frames
+     */
+    private void updateHighWaterMark(int size) {
+        int highWaterMark;
+        do {
+            highWaterMark = mHighWaterMark.get();
+        } while (size > highWaterMark && !mHighWaterMark.compareAndSet(highWaterMark, size));
+    }
+
+    /**
+     * Get the maximum number of queued commands
+     *
+     * @return the capacity of this outbox
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Get what happens if the outbox is full
+     *
+     * @return the overflow policy of this outbox
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /**
+     * Get the number of commands waiting to be sent
+     *
+     * @return the current number of queued commands
+     */
+    public int getQueuedCount() {
+        return Math.max(0, mSize.get());
+    }
+
+    /**
+     * Get the highest number of commands that were waiting at the same time
+     *
+     * @return the high water mark of the outbox
+     */
+    public int getHighWaterMark() {
+        return mHighWaterMark.get();
+    }
+
+    /**
+     * Get the number of commands that were added to the outbox
+     *
+     * @return the number of commands that were sent or queued
+     */
+    public long getEnqueuedCount() {
+        return mEnqueued.get();
+    }
+
+    /**
+     * Get the number of commands that were completely written to the client
+     *
+     * @return the number of sent commands
+     */
+    public long getSentCount() {
+        return mSent.get();
+    }
+
+    /**
+     * Get the number of commands that were discarded
+     *
+     * @return the number of commands dropped due to overflow or an unreachable client
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Get the number of times a command was added to a full outbox
+     *
+     * @return the number of overflows
+     */
+    public long getOverflowCount() {
+        return mOverflows.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "queued %d/%d (max %d), enqueued %d, sent %d, dropped %d, overflows %d",
+                getQueuedCount(), getCapacity(), getHighWaterMark(), getEnqueuedCount(),
+                getSentCount(), getDroppedCount(), getOverflowCount());
+    }
+}
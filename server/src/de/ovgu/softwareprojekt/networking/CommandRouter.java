@@ -0,0 +1,18 @@
+package de.ovgu.softwareprojekt.networking;
+
+import de.ovgu.softwareprojekt.control.OnCommandListener;
+
+import java.net.InetAddress;
+
+/**
+ * The {@link CommandServer} uses this interface to find out who should handle the commands of a client
+ */
+interface CommandRouter {
+    /**
+     * Find the listener for the commands of a client
+     *
+     * @param origin the address the commands came from
+     * @return the listener that should handle the commands, or null if they should be dropped
+     */
+    OnCommandListener getCommandListener(InetAddress origin);
+}
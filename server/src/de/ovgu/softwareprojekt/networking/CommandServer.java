@@ -0,0 +1,299 @@
+package de.ovgu.softwareprojekt.networking;
+
+import de.ovgu.softwareprojekt.misc.ExceptionListener;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This thread handles the command traffic of all clients on a single tcp port. Accepting, reading and writing is
+ * done using non-blocking channels on a single selector, so neither the thread count nor the number of listening
+ * sockets grows with the number of clients.
+ * <p>
+ * Each client is represented by a {@link CommandChannel}, identified by the address and command port of the client, so
+ * that several apps on the same host or behind the same NAT get channels of their own. A connection the client opens
+ * to us gets a channel keyed by its remote address and port, until a
+ * {@link de.ovgu.softwareprojekt.control.commands.ConnectionRequest} sent over it tells us the command port of the
+ * client. Received commands are dispatched from this thread to the
+ * {@link de.ovgu.softwareprojekt.control.OnCommandListener} the {@link CommandRouter} returns for the client, so
+ * listeners must not block for long: while one does, no client's commands are read or written, and connection checks
+ * are not answered. A connection that sends a broken command is closed, without affecting the other clients.
+ */
+class CommandServer extends Thread {
+    /**
+     * The selector used to wait for all channel events
+     */
+    private final Selector mSelector;
+
+    /**
+     * The channel new clients connect to
+     */
+    private final ServerSocketChannel mServerChannel;
+
+    /**
+     * The channels of all known clients, by their command endpoint. Channels of connections whose client has not
+     * identified itself yet are keyed by the remote address of the connection.
+     */
+    private final ConcurrentHashMap<InetSocketAddress, CommandChannel> mChannels = new ConcurrentHashMap<>();
+
+    /**
+     * Tasks that must be run on the selector thread, like registering channels or changing their interest sets,
+     * since {@link SelectableChannel#register(Selector, int, Object)} blocks while selecting.
+     */
+    private final Queue<Runnable> mPendingTasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Decides who handles the commands of a client
+     */
+    private final CommandRouter mRouter;
+
+    /**
+     * Who to report bad exceptions to
+     */
+    private final ExceptionListener mExceptionListener;
+
+    /**
+     * true as long as the selector should keep running
+     */
+    private volatile boolean mKeepRunning = true;
+
+    /**
+     * Bind a new command server. Connections are only handled after {@link #start()} is called.
+     *
+     * @param port              the port clients should send their commands to, or 0 to use a random free port
+     * @param router            decides who handles the commands of a client
+     * @param exceptionListener the {@link ExceptionListener} called when a (possibly threaded) exception occurs
+     * @throws IOException if the port could not be bound
+     */
+    CommandServer(int port, CommandRouter router, ExceptionListener exceptionListener) throws IOException {
+        super("CommandServer");
+        mRouter = router;
+        mExceptionListener = exceptionListener;
+
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        try {
+            mServerChannel.configureBlocking(false);
+            mServerChannel.bind(new InetSocketAddress(port));
+            mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            mServerChannel.close();
+            mSelector.close();
+            throw e;
+        }
+
+        // the selector should not keep the jvm alive
+        setDaemon(true);
+    }
+
+    /**
+     * Get the port this server listens on
+     *
+     * @return the port clients should send their commands to
+     */
+    int getLocalPort() {
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Check whether commands can be handled
+     *
+     * @return true if the server has not been closed
+     */
+    boolean isRunning() {
+        return mKeepRunning;
+    }
+
+    /**
+     * Get the channel of a client, creating it if required
+     *
+     * @param client the address of the client, and the port it listens for commands on
+     * @return the channel commands for the client can be sent over
+     */
+    CommandChannel getChannel(InetSocketAddress client) {
+        return mChannels.computeIfAbsent(client, endpoint -> {
+            CommandChannel channel = new CommandChannel(this, endpoint.getAddress());
+            channel.setRemotePort(endpoint.getPort());
+            return channel;
+        });
+    }
+
+    /**
+     * Key the channel of a connection the client opened by the command endpoint of the client, so that
+     * {@link #getChannel(InetSocketAddress)} returns it. Nothing changes if the client already has a channel; that one
+     * is used for sending, while the commands of this connection are still dispatched. Called by the selector thread.
+     *
+     * @param channel the channel of the connection
+     * @param client  the address of the client, and the port it listens for commands on
+     */
+    void bindChannel(CommandChannel channel, InetSocketAddress client) {
+        if (mChannels.putIfAbsent(client, channel) != null)
+            return;
+
+        channel.setRemotePort(client.getPort());
+        mChannels.entrySet().removeIf(entry -> entry.getValue() == channel && !entry.getKey().equals(client));
+    }
+
+    /**
+     * Forget a channel. Called by the channel once it was closed.
+     *
+     * @param channel the channel that was closed
+     */
+    void removeChannel(CommandChannel channel) {
+        mChannels.values().removeIf(value -> value == channel);
+    }
+
+    /**
+     * Run a task on the selector thread
+     *
+     * @param task the task to be run after the current selection
+     */
+    void runOnSelectorThread(Runnable task) {
+        mPendingTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    /**
+     * Register a channel with the selector. Must be called from the selector thread.
+     *
+     * @param channel     the channel to be registered
+     * @param operations  the initial interest set
+     * @param attachment  the connection handling the events of the channel
+     * @return the selection key of the channel
+     * @throws ClosedChannelException if the channel was closed
+     */
+    SelectionKey register(SelectableChannel channel, int operations, CommandChannel.Connection attachment) throws ClosedChannelException {
+        return channel.register(mSelector, operations, attachment);
+    }
+
+    /**
+     * Get the listener that should handle the commands of a client
+     *
+     * @return the router of this server
+     */
+    CommandRouter getRouter() {
+        return mRouter;
+    }
+
+    /**
+     * Get the listener that should be notified of exceptions
+     *
+     * @return the exception listener of this server
+     */
+    ExceptionListener getExceptionListener() {
+        return mExceptionListener;
+    }
+
+    /**
+     * Stop the selector thread, and close all connections
+     */
+    void close() {
+        mKeepRunning = false;
+        mSelector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (mKeepRunning) {
+                mSelector.select();
+
+                // run all tasks that were added since the last selection
+                Runnable task;
+                while ((task = mPendingTasks.poll()) != null)
+                    task.run();
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    try {
+                        handleKey(key);
+                    } catch (CancelledKeyException ignored) {
+                        // the channel was closed concurrently
+                    }
+                }
+            }
+        } catch (IOException e) {
+            mExceptionListener.onException(this, e, "CommandServer failed, no more commands will be received");
+        } finally {
+            // close all client connections, which also cancels their keys
+            for (CommandChannel channel : mChannels.values())
+                channel.closeConnections();
+            mChannels.clear();
+
+            try {
+                mServerChannel.close();
+                mSelector.close();
+            } catch (IOException ignored) {
+                // nothing left to do here
+            }
+        }
+    }
+
+    /**
+     * Handle the ready operations of a single key
+     *
+     * @param key a selected key
+     */
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid())
+            return;
+
+        // a client connected to us
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+
+        CommandChannel.Connection connection = (CommandChannel.Connection) key.attachment();
+        try {
+            if (key.isConnectable())
+                connection.onConnectable();
+            if (key.isValid() && key.isReadable())
+                connection.onReadable();
+            if (key.isValid() && key.isWritable())
+                connection.onWritable();
+        } catch (CancelledKeyException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            // a broken command, e.g. a serialized object that is no command, must only end its own connection
+            mExceptionListener.onException(this, e, "Command connection failed, closing it");
+            connection.close();
+        }
+    }
+
+    /**
+     * Accept all pending connections, each with a channel of its own until its client identifies itself
+     */
+    private void accept() {
+        try {
+            SocketChannel socket;
+            while ((socket = mServerChannel.accept()) != null) {
+                socket.configureBlocking(false);
+                socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                InetSocketAddress remote = (InetSocketAddress) socket.getRemoteAddress();
+                CommandChannel channel = new CommandChannel(this, remote.getAddress());
+                mChannels.put(remote, channel);
+                channel.attach(socket);
+            }
+        } catch (IOException e) {
+            if (mKeepRunning)
+                mExceptionListener.onException(this, e, "Could not accept command connection");
+        }
+    }
+}
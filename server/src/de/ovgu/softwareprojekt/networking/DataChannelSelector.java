@@ -0,0 +1,139 @@
+package de.ovgu.softwareprojekt.networking;
+
+import de.ovgu.softwareprojekt.misc.ExceptionListener;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This thread multiplexes the non-blocking udp channels of any number of {@link DatagramReceiver DatagramReceivers},
+ * like {@link DataConnection DataConnections}. It waits until one of the channels has received data, and lets the
+ * owning receiver read and dispatch it. This way, the thread count does not grow with the number of connected clients.
+ * <p>
+ * The data sinks are called on this thread, so a sink that blocks or throws affects all clients of the selector.
+ * Exceptions are reported to the {@link ExceptionListener}, and the selector continues with the next datagrams.
+ */
+class DataChannelSelector extends Thread {
+    /**
+     * Size of the receive buffer; large enough for any udp datagram, as too large datagrams would be truncated
+     */
+    private static final int RECEIVE_BUFFER_SIZE = 65536;
+
+    /**
+     * The selector used to wait for readable channels
+     */
+    private final Selector mSelector;
+
+    /**
+     * Receivers that should be registered with the selector. Registering must be done by the selector thread,
+     * since {@link java.nio.channels.SelectableChannel#register(Selector, int, Object)} blocks while selecting.
+     */
+    private final Queue<DatagramReceiver> mPendingRegistrations = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Who to report bad exceptions to
+     */
+    private final ExceptionListener mExceptionListener;
+
+    /**
+     * true as long as the selector should keep running
+     */
+    private volatile boolean mKeepRunning = true;
+
+    /**
+     * Create a new DataChannelSelector that will start dispatching after {@link #start()} is called.
+     *
+     * @param name              name of the thread
+     * @param exceptionListener the {@link ExceptionListener} called when a (possibly threaded) exception occurs
+     * @throws IOException if the selector could not be opened
+     */
+    DataChannelSelector(String name, ExceptionListener exceptionListener) throws IOException {
+        super(name);
+        mSelector = Selector.open();
+        mExceptionListener = exceptionListener;
+
+        // the selector should not keep the jvm alive
+        setDaemon(true);
+    }
+
+    /**
+     * Let this selector handle the channel of the given receiver. Data will be dispatched from this thread.
+     *
+     * @param receiver the receiver whose channel should be watched
+     */
+    void register(DatagramReceiver receiver) {
+        mPendingRegistrations.add(receiver);
+
+        // the registration will be handled after select() returned
+        mSelector.wakeup();
+    }
+
+    /**
+     * Stop the selector thread. The channels registered with it are not closed.
+     */
+    void close() {
+        mKeepRunning = false;
+        mSelector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        // the receive buffer is shared by all receivers, since they are read sequentially
+        ByteBuffer receiveBuffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+
+        try {
+            while (mKeepRunning) {
+                mSelector.select();
+
+                // register all receivers that were added since the last selection
+                registerPendingReceivers();
+
+                // let each receiver with a readable channel handle its data
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    try {
+                        if (key.isValid() && key.isReadable())
+                            ((DatagramReceiver) key.attachment()).onChannelReadable(receiveBuffer);
+                    } catch (CancelledKeyException ignored) {
+                        // the channel was closed concurrently
+                    } catch (RuntimeException e) {
+                        // a broken receiver must not stop the data of all other clients on this selector
+                        mExceptionListener.onException(this, e, "Data receiver failed, continuing with the next datagrams");
+                    }
+                }
+            }
+        } catch (IOException e) {
+            mExceptionListener.onException(this, e, "DataChannelSelector failed, no more data will be received");
+        } finally {
+            try {
+                mSelector.close();
+            } catch (IOException ignored) {
+                // nothing left to do here
+            }
+        }
+    }
+
+    /**
+     * Register the channels of all pending receivers with the selector
+     */
+    private void registerPendingReceivers() {
+        DatagramReceiver receiver;
+        while ((receiver = mPendingRegistrations.poll()) != null) {
+            try {
+                receiver.getChannel().register(mSelector, SelectionKey.OP_READ, receiver);
+            } catch (ClosedChannelException ignored) {
+                // the channel was closed before it could be registered
+            }
+        }
+    }
+}
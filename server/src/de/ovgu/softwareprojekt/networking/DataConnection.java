@@ -1,21 +1,33 @@
 package de.ovgu.softwareprojekt.networking;
 
 import de.ovgu.softwareprojekt.*;
+import de.ovgu.softwareprojekt.control.ConnectionWatch;
 import de.ovgu.softwareprojekt.discovery.NetworkDevice;
 import de.ovgu.softwareprojekt.misc.ExceptionListener;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 /**
  * This class listens for udp packets containing {@link SensorData} objects, and notifies a listener of new data.
- * The listener must be
+ * It does not use its own thread; instead, data is received in one of two ways:
+ * <ul>
+ * <li>exclusive: the connection owns a non-blocking channel on a random port, which is watched by a
+ * {@link DataChannelSelector} that calls {@link #onChannelReadable(ByteBuffer)} when data has arrived</li>
+ * <li>shared: the connection is attached to a {@link SharedDataChannel}, which receives the data of all clients on a
+ * single port, and forwards the datagrams of our client to {@link #onDatagram(ByteBuffer)}</li>
+ * </ul>
  */
-class DataConnection extends Thread implements NetworkDataSource {
+class DataConnection implements NetworkDataSource, DatagramReceiver {
+    /**
+     * How many datagrams are read at most before the selector may serve other channels
+     */
+    static final int MAXIMUM_DATAGRAMS_PER_WAKEUP = 64;
+
     /**
      * Incoming sensor data will be forwarded here
      */
@@ -24,12 +36,28 @@ class DataConnection extends Thread implements NetworkDataSource {
     /**
      * true as long as the server should listen on the udp port
      */
-    private boolean mKeepRunning = true;
+    private volatile boolean mKeepRunning = true;
+
+    /**
+     * The non-blocking channel data arrives on; null if a shared channel is used
+     */
+    private final DatagramChannel mChannel;
+
+    /**
+     * The selector that dispatches the data arriving on our channel; null if a shared channel is used
+     */
+    private final DataChannelSelector mSelector;
 
     /**
-     * the port we should listen on
+     * The shared channel that forwards the data of our client; null if an exclusive channel is used
      */
-    private int mLocalPort;
+    private final SharedDataChannel mSharedChannel;
+
+    /**
+     * The token our client must put into its data frames, or {@link SensorDataCodec#NO_CLIENT_TOKEN} if an exclusive
+     * channel is used
+     */
+    private final int mClientToken;
 
     /**
      * Who to report bad exceptions to
@@ -41,41 +69,127 @@ class DataConnection extends Thread implements NetworkDataSource {
      */
     private NetworkDevice mClient;
 
+    /**
+     * The address of {@link #mClient}, saved to avoid constant conversions
+     */
+    private volatile InetAddress mClientAddress;
 
     /**
-     * Create a new DataConnection that will start listening after {@link #start()} is called.
+     * If true, received data is decoded into pooled {@link SensorData} instances, which are reused after the data sink
+     * has returned.
+     */
+    private volatile boolean mUseSensorDataPool = false;
+
+    /**
+     * Pooled {@link SensorData} instances for this connection, used if {@link #mUseSensorDataPool} is set
+     */
+    private final SensorDataPool mSensorDataPool = new SensorDataPool(4);
+
+    /**
+     * Statistics about the datagrams received from our client
+     */
+    private final DataStreamStatistics mStatistics = new DataStreamStatistics();
+
+    /**
+     * The watch of our client's connection, notified of each datagram so that it can skip its checks while data
+     * arrives; may be null
+     */
+    private volatile ConnectionWatch mConnectionWatch;
+
+    /**
+     * Converts the sensor timestamps of our client to the server clock; may be null
+     */
+    private volatile ClockOffsetEstimator mClockOffsetEstimator;
+
+
+    /**
+     * Create a new DataConnection with an exclusive channel. The port is bound immediately, but data will only be read
+     * after {@link #start()} is called.
      *
+     * @param selector          the selector that should dispatch data arriving on this connection
      * @param exceptionListener the {@link ExceptionListener} called when a (possibly threaded) exception occurs
-     * @throws SocketException if no free port could be found
+     * @throws IOException if no free port could be bound
      */
-    DataConnection(ExceptionListener exceptionListener) throws SocketException {
-        super("DataConnection: unbound");
-        mLocalPort = findFreePort();
+    DataConnection(DataChannelSelector selector, ExceptionListener exceptionListener) throws IOException {
+        mSelector = selector;
+        mSharedChannel = null;
+        mClientToken = SensorDataCodec.NO_CLIENT_TOKEN;
         mExceptionListener = exceptionListener;
+
+        // bind to any free port
+        mChannel = DatagramChannel.open();
+        mChannel.configureBlocking(false);
+        mChannel.bind(new InetSocketAddress(0));
+    }
+
+    /**
+     * Create a new DataConnection receiving its data from a shared channel. Data of the client will only be accepted
+     * after {@link #setClient(NetworkDevice)} was called.
+     *
+     * @param sharedChannel     the channel receiving the data of all clients
+     * @param exceptionListener the {@link ExceptionListener} called when a (possibly threaded) exception occurs
+     */
+    DataConnection(SharedDataChannel sharedChannel, ExceptionListener exceptionListener) {
+        mSelector = null;
+        mChannel = null;
+        mSharedChannel = sharedChannel;
+        mExceptionListener = exceptionListener;
+
+        // get a token identifying our client on the shared channel
+        mClientToken = sharedChannel.attach(this);
     }
 
     /**
      * Set the client that sends data to this {@link DataConnection}
+     *
      * @param client the client that should send its data here
+     * @throws UnknownHostException if the address of the client could not be parsed
      */
-    void setClient(NetworkDevice client) {
+    void setClient(NetworkDevice client) throws UnknownHostException {
         mClient = client;
+        mClientAddress = client.getInetAddress();
 
-        // update thread name
-        setName("DataConnection for " + mClient);
+        // clients not sending a token can only be identified by their address
+        if (mSharedChannel != null)
+            mSharedChannel.setClientAddress(this, mClientAddress);
     }
 
     /**
-     * Find a free port to listen on
+     * Get the address of the client sending data to this connection
      *
-     * @return a currently (!) free port
-     * @throws SocketException when an error occurs during the search
+     * @return the client address, or null if {@link #setClient(NetworkDevice)} was not yet called
      */
-    private static int findFreePort() throws SocketException {
-        DatagramSocket socket = new DatagramSocket();
-        int freePort = socket.getLocalPort();
-        socket.close();
-        return freePort;
+    InetAddress getClientAddress() {
+        return mClientAddress;
+    }
+
+    /**
+     * Get the statistics about the data stream of our client
+     *
+     * @return the live statistics of this connection
+     */
+    DataStreamStatistics getStatistics() {
+        return mStatistics;
+    }
+
+    /**
+     * Get the token the client must put into its data frames
+     *
+     * @return the client token, or {@link SensorDataCodec#NO_CLIENT_TOKEN} if the client does not need to send one
+     */
+    int getClientToken() {
+        return mClientToken;
+    }
+
+    /**
+     * Enable or disable decoding incoming data into pooled {@link SensorData} instances. If enabled, sinks must not
+     * keep references to the {@link SensorData} objects or their data arrays after onData returns; they have to
+     * {@link SensorData#clone() clone} them instead.
+     *
+     * @param useSensorDataPool true if {@link SensorData} instances should be reused
+     */
+    void setSensorDataPoolEnabled(boolean useSensorDataPool) {
+        mUseSensorDataPool = useSensorDataPool;
     }
 
     /**
@@ -84,37 +198,149 @@ class DataConnection extends Thread implements NetworkDataSource {
      * @return the port this {@link DataConnection} listens on
      */
     int getLocalPort() {
-        return mLocalPort;
+        return mSharedChannel != null ? mSharedChannel.getLocalPort() : mChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Get the exclusive channel data arrives on, so that the {@link DataChannelSelector} can watch it
+     *
+     * @return the non-blocking channel of this connection, or null if a shared channel is used
+     */
+    @Override
+    public DatagramChannel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * Begin dispatching data arriving on the channel
+     */
+    @Override
+    public void start() {
+        // the shared channel is already being watched
+        if (mSelector != null)
+            mSelector.register(this);
     }
 
+    /**
+     * Called by the {@link DataChannelSelector} when datagrams have arrived on our exclusive channel. Reads the
+     * available datagrams and forwards the contained data to the data sink.
+     *
+     * @param receiveBuffer buffer that may be used to receive the datagrams. It is shared with other connections.
+     */
     @Override
-    public void run() {
-        // this is a "try with resources": it automatically closes the socket, whatever happens
-        try (DatagramSocket serverSocket = new DatagramSocket(mLocalPort)) {
-            // storage for udp data
-            byte[] appData = new byte[1024];
-
-            while (mKeepRunning) {
-                // receive udp packet
-                DatagramPacket appPacket = new DatagramPacket(appData, appData.length);
-                serverSocket.receive(appPacket);
-
-                // parse incoming object
-                ByteArrayInputStream input = new ByteArrayInputStream(appData);
-                ObjectInputStream objectInputStream = new ObjectInputStream(input);
-
-                // notify listener
-                mDataSink.onData(mClient, (SensorData) objectInputStream.readObject(), -1);
+    public void onChannelReadable(ByteBuffer receiveBuffer) {
+        try {
+            for (int i = 0; i < MAXIMUM_DATAGRAMS_PER_WAKEUP && mKeepRunning; i++) {
+                // receive udp packet; stop when no more datagrams are available
+                receiveBuffer.clear();
+                if (mChannel.receive(receiveBuffer) == null)
+                    return;
+                receiveBuffer.flip();
+
+                onDatagram(receiveBuffer);
+            }
+        } catch (IOException e) {
+            // only report the exception if it was not caused by closing the channel
+            if (mKeepRunning)
+                mExceptionListener.onException(this, e, "Could not receive data from " + mClient);
+        }
+    }
+
+    /**
+     * Decode a datagram sent by our client, and forward the contained data to the data sink. Batch frames are
+     * unpacked, so the data sink is called once for each contained sample.
+     *
+     * @param datagram buffer containing exactly one datagram
+     */
+    void onDatagram(ByteBuffer datagram) {
+        long arrivalTimestamp = System.nanoTime();
+
+        // any datagram of our client shows that it is still alive
+        ConnectionWatch connectionWatch = mConnectionWatch;
+        if (connectionWatch != null)
+            connectionWatch.onDataEvent();
+
+        try {
+            // old apps send serialized objects, which cannot be batched and have no sequence number
+            if (SensorDataCodec.isLegacyFrame(datagram)) {
+                SensorData data = SensorDataCodec.decode(datagram, null);
+                mStatistics.onDatagram(SensorDataCodec.NO_SEQUENCE_NUMBER, data.timestamp, arrivalTimestamp);
+                dispatch(data, arrivalTimestamp, false);
+                return;
             }
 
-        } catch (IOException | ClassNotFoundException e) {
+            long sequenceNumber = SensorDataCodec.peekSequenceNumber(datagram);
+            int sampleCount = SensorDataCodec.readFrameHeader(datagram);
+            for (int i = 0; i < sampleCount; i++) {
+                // only use pooled instances if requested, since sinks could keep references to the data
+                boolean usePool = mUseSensorDataPool;
+                SensorData data = SensorDataCodec.readSample(datagram, usePool ? mSensorDataPool.acquire() : null);
+
+                // the first sample timestamp is used for the jitter; duplicated datagrams are dropped completely
+                if (i == 0 && !mStatistics.onDatagram(sequenceNumber, data.timestamp, arrivalTimestamp)) {
+                    if (usePool)
+                        mSensorDataPool.release(data);
+                    return;
+                }
+
+                dispatch(data, arrivalTimestamp, usePool);
+            }
+        } catch (IOException e) {
+            // a single broken packet should not kill the connection
             e.printStackTrace();
-        } catch (NullPointerException e) {
+        } catch (RuntimeException e) {
+            // e.g. a truncated datagram; the data of the other clients on this thread must still be received
+            mExceptionListener.onException(this, e, "Could not decode a datagram from " + mClient);
+        }
+    }
+
+    /**
+     * Forward a single sample to the data sink
+     *
+     * @param data             the decoded sample
+     * @param arrivalTimestamp when the datagram containing the sample arrived, see {@link System#nanoTime()}
+     * @param pooled           true if the instance was taken from the pool, and should be returned to it afterwards
+     */
+    private void dispatch(SensorData data, long arrivalTimestamp, boolean pooled) {
+        // allows measuring the latency of the pipeline and, with a synchronized client clock, of the network
+        data.ingressTimestamp = arrivalTimestamp;
+        ClockOffsetEstimator clockOffsetEstimator = mClockOffsetEstimator;
+        data.serverTimestamp = clockOffsetEstimator != null
+                ? clockOffsetEstimator.toServerTime(data.timestamp)
+                : ClockOffsetEstimator.UNKNOWN;
+
+        try {
+            // notify listener
+            mDataSink.onData(mClient, data, -1);
+        } catch (RuntimeException e) {
+            // the sinks run on a selector thread shared with other clients, which must keep receiving
             mExceptionListener.onException(
                     DataConnection.this,
                     e,
-                    "A NullPointerException was encountered when data arrived.");
+                    "A " + e.getClass().getSimpleName() + " was encountered when data arrived.");
         }
+
+        // the pipeline is synchronous, so the instance may be reused now
+        if (pooled)
+            mSensorDataPool.release(data);
+    }
+
+    /**
+     * Set the watch that should be notified of arriving data
+     *
+     * @param connectionWatch the watch of our client's connection
+     */
+    void setConnectionWatch(ConnectionWatch connectionWatch) {
+        mConnectionWatch = connectionWatch;
+    }
+
+    /**
+     * Set the estimator used to convert the sensor timestamps of our client to the server clock
+     *
+     * @param clockOffsetEstimator the clock estimator of our client
+     */
+    void setClockOffsetEstimator(ClockOffsetEstimator clockOffsetEstimator) {
+        mClockOffsetEstimator = clockOffsetEstimator;
     }
 
     @Override
@@ -125,5 +351,18 @@ class DataConnection extends Thread implements NetworkDataSource {
     @Override
     public void close() {
         mKeepRunning = false;
+
+        // the shared channel must stay open for the other clients
+        if (mSharedChannel != null) {
+            mSharedChannel.detach(this);
+            return;
+        }
+
+        // closing the channel also removes it from the selector
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 }
@@ -1,23 +1,30 @@
 package de.ovgu.softwareprojekt.networking;
 
 import com.sun.istack.internal.Nullable;
-import de.ovgu.softwareprojekt.networking.NetworkDataSink;
 import de.ovgu.softwareprojekt.SensorData;
 import de.ovgu.softwareprojekt.SensorType;
 import de.ovgu.softwareprojekt.discovery.NetworkDevice;
+import de.ovgu.softwareprojekt.util.SlotMap;
 
 import java.io.IOException;
 import java.security.InvalidParameterException;
-import java.util.EnumMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.function.Predicate;
 
 /**
  * This class is designed to forward data to NetworkDataSinks.
  * <p>
  * It supports mapping them from (SensorType, NetworkDevice) tuples or from SensorType to NetworkDataSink.
+ * <p>
+ * Registrations are only changed while holding the lock of the mapper. After each change, an immutable
+ * {@link RoutingTable} is compiled from them and published, so the data threads forward data without locking, and
+ * without allocating.
  */
 class DataMapper implements NetworkDataSink {
     /**
@@ -35,35 +42,61 @@ class DataMapper implements NetworkDataSink {
     }
 
     /**
-     * Stores all known data sinks. Since they are mapped to their sensor, this also stores the currently required sensors as its keyset.
-     * <p>
-     * This variable is an EnumMap, so iterations over the keys should be quite fast. The sinks are stored in a
-     * HashSet for each sensor, so no sink can occur twice for one sensor type.
+     * Stores all registrations, in the order they were made. Since registrations are equal if their sensor, origin
+     * and sink are, no sink can be registered twice for the same sensor and origin. Guarded by this instance.
      */
-    private EnumMap<SensorType, HashSet<SinkOriginFilter>> mDataSinks = new EnumMap<>(SensorType.class);
+    private final Set<Registration> mRegistrations = new LinkedHashSet<>();
+
+    /**
+     * The routing table compiled from {@link #mRegistrations}; replaced, never changed
+     */
+    private volatile RoutingTable mRoutingTable = new RoutingTable(new ArrayList<>());
 
     /**
      * Register a new data sink to be included in the data stream. Only data from a single client and sensor will arrive.
+     * If the sink was already registered for the sensor and origin, only its rate is updated.
      *
      * @param dataSink   where new data from the sensor should go
      * @param dataOrigin the network device which is allowed to send to this sink, or null, if any devices data shall be accepted
      * @param sensorType which sensor should be activated, and reach the given NetworkDataSink
+     * @param rate       the sample rate the sink needs in Hz, or {@link SensorRequirements#ANY_RATE}
      * @throws IOException if a client could not be notified of the sensor change
      */
-    void registerDataSink(SensorType sensorType, @Nullable NetworkDevice dataOrigin, NetworkDataSink dataSink) throws IOException {
+    synchronized void registerDataSink(SensorType sensorType, @Nullable NetworkDevice dataOrigin, NetworkDataSink dataSink, float rate) throws IOException {
         // dataSink *must not* be this, as that would lead to infinite recursion
         if (this == dataSink)
             throw new InvalidParameterException("DataMapper must not register itself as data sink to avoid infinite recursion.");
 
-        // add new data sink list if the requested sensor type has no sinks yet
-        if (!mDataSinks.containsKey(sensorType))
-            mDataSinks.put(sensorType, new HashSet<>());
+        // rates must be positive, as ANY_RATE is used for sinks that did not declare one
+        if (!(rate > 0) && rate != SensorRequirements.ANY_RATE)
+            throw new InvalidParameterException("The sample rate must be positive, but is " + rate);
 
-        // add the new sink to the list of sinks for the sensor
-        mDataSinks.get(sensorType).add(new SinkOriginFilter(dataSink, dataOrigin));
+        Registration registration = new Registration(sensorType, dataOrigin, dataSink, rate);
 
-        // force resetting the sensors on the client
-        mConnectionHandler.updateSensors(mDataSinks.keySet());
+        // nothing changes if the sink was already registered like this; otherwise, replace the old rate
+        for (Registration existing : mRegistrations) {
+            if (existing.equals(registration)) {
+                if (existing.rate == rate)
+                    return;
+                mRegistrations.remove(existing);
+                break;
+            }
+        }
+
+        mRegistrations.add(registration);
+        onRegistrationsChanged();
+    }
+
+    /**
+     * Register a new data sink to be included in the data stream. Only data from a single client and sensor will arrive.
+     *
+     * @param dataSink   where new data from the sensor should go
+     * @param dataOrigin the network device which is allowed to send to this sink, or null, if any devices data shall be accepted
+     * @param sensorType which sensor should be activated, and reach the given NetworkDataSink
+     * @throws IOException if a client could not be notified of the sensor change
+     */
+    void registerDataSink(SensorType sensorType, @Nullable NetworkDevice dataOrigin, NetworkDataSink dataSink) throws IOException {
+        registerDataSink(sensorType, dataOrigin, dataSink, SensorRequirements.ANY_RATE);
     }
 
     /**
@@ -85,7 +118,7 @@ class DataMapper implements NetworkDataSink {
      */
     void onClientRemoved(NetworkDevice client) throws IOException {
         // remove all instances of the given client
-        removeIf(filter -> client.equals(filter.mOrigin), null);
+        removeIf(registration -> client.equals(registration.origin));
     }
 
     /**
@@ -96,7 +129,7 @@ class DataMapper implements NetworkDataSink {
      */
     void unregisterDataSink(NetworkDataSink dataSink) throws IOException {
         // remove all instances of the given data sink
-        removeIf(filter -> dataSink.equals(filter.mSink), null);
+        removeIf(registration -> dataSink.equals(registration.sink));
     }
 
     /**
@@ -107,38 +140,33 @@ class DataMapper implements NetworkDataSink {
      */
     void unregisterDataSink(NetworkDataSink dataSink, SensorType sensor) throws IOException {
         // remove all instances of the given data sink
-        removeIf(filter -> dataSink.equals(filter.mSink), sensor);
+        removeIf(registration -> registration.sensor == sensor && dataSink.equals(registration.sink));
     }
 
     /**
-     * Remove all SinkOriginFilters where the given lambda returns true.
+     * Remove all registrations where the given lambda returns true.
      *
-     * @param sensor    a {@link SensorType} if only sinks registered for that type should be removed, or null, if all sinks
-     *                  where the predicate returns true should be removed
-     * @param predicate returns true for all SinkOriginFilters that should be removed
+     * @param predicate returns true for all registrations that should be removed
      * @throws IOException if a client could not be notified of updated sensor requirements
      */
-    private void removeIf(Predicate<SinkOriginFilter> predicate, @Nullable SensorType sensor) throws IOException {
-        // remove all instances of the given network device
-        Iterator<Map.Entry<SensorType, HashSet<SinkOriginFilter>>> sensorIterator = mDataSinks.entrySet().iterator();
-        while (sensorIterator.hasNext()) {
-            Map.Entry<SensorType, HashSet<SinkOriginFilter>> pair = sensorIterator.next();
-
-            // remove all forwarding entries that used this client
-            if (sensor == null || sensor == pair.getKey())
-                pair.getValue().removeIf(predicate);
-
-            // remove the sensor -> hashSet mapping if there are no longer any sinks registered for the sensor
-            if (pair.getValue().size() == 0)
-                sensorIterator.remove();
-        }
+    private synchronized void removeIf(Predicate<Registration> predicate) throws IOException {
+        if (mRegistrations.removeIf(predicate))
+            onRegistrationsChanged();
+    }
 
-        // force resetting the sensors on the client
-        mConnectionHandler.updateSensors(mDataSinks.keySet());
+    /**
+     * Publish a new routing table, and let the clients know if their required sensors changed. Must be called while
+     * holding the lock, so that the clients learn about the changes in order.
+     */
+    private void onRegistrationsChanged() {
+        RoutingTable routingTable = new RoutingTable(mRegistrations);
+        mRoutingTable = routingTable;
+        mConnectionHandler.updateSensors(routingTable.getSensorRequirements());
     }
 
     /**
-     * onData is called whenever new data is to be processed. here, we forwardData the data to
+     * onData is called whenever new data is to be processed. here, we forward the data to each sink registered for
+     * the sensor, and the origin or any origin
      *
      * @param origin          the network device which sent the data
      * @param data            the sensor data
@@ -146,10 +174,19 @@ class DataMapper implements NetworkDataSink {
      */
     @Override
     public void onData(NetworkDevice origin, SensorData data, float userSensitivity) {
-        HashSet<SinkOriginFilter> registeredSinks = mDataSinks.get(data.sensorType);
+        SensorRoute route = mRoutingTable.getRoute(data.sensorType);
 
-        for (NetworkDataSink sink : registeredSinks)
+        // no sink requires this sensor (anymore)
+        if (route == null)
+            return;
+
+        for (NetworkDataSink sink : route.anyOriginSinks)
             sink.onData(origin, data, userSensitivity);
+
+        NetworkDataSink[] originSinks = route.originSinks.get(origin);
+        if (originSinks != null)
+            for (NetworkDataSink sink : originSinks)
+                sink.onData(origin, data, userSensitivity);
     }
 
     /**
@@ -159,65 +196,160 @@ class DataMapper implements NetworkDataSink {
     public void close() {
     }
 
+    /**
+     * A data sink registered for a sensor, and possibly a single origin. Registrations are equal if all three
+     * match; the rate is not compared.
+     */
+    private static final class Registration {
+        /**
+         * The sensor the sink is registered for
+         */
+        final SensorType sensor;
+
+        /**
+         * The network device whose data is accepted, or null if data of any device should be forwarded
+         */
+        final NetworkDevice origin;
+
+        /**
+         * The sink that should receive the data
+         */
+        final NetworkDataSink sink;
+
+        /**
+         * The sample rate the sink needs in Hz, or {@link SensorRequirements#ANY_RATE}
+         */
+        final float rate;
+
+        /**
+         * Create a new registration
+         *
+         * @param sensor the sensor the sink is registered for
+         * @param origin the network device whose data is accepted, or null for any device
+         * @param sink   the sink that should receive the data
+         * @param rate   the sample rate the sink needs in Hz, or {@link SensorRequirements#ANY_RATE}
+         */
+        Registration(SensorType sensor, @Nullable NetworkDevice origin, NetworkDataSink sink, float rate) {
+            this.sensor = sensor;
+            this.origin = origin;
+            this.sink = sink;
+            this.rate = rate;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Registration))
+                return false;
+
+            Registration other = (Registration) obj;
+            return sensor == other.sensor && Objects.equals(origin, other.origin) && sink.equals(other.sink);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sensor, origin, sink);
+        }
+    }
 
     /**
-     * This is a small NetworkDataSink that only forwards data from one origin if the
-     * {@link SinkOriginFilter#SinkOriginFilter(NetworkDataSink, NetworkDevice)} constructor is used, or all data if the
-     * NetworkDevice parameter is null. It allows us to register data sinks for data coming only from a
-     * specified {@link SensorType} and {@link NetworkDevice}.
+     * An immutable snapshot of the registrations, with the sinks of each sensor in arrays
      */
-    private class SinkOriginFilter implements NetworkDataSink {
+    private static final class RoutingTable {
         /**
-         * The sink that should receive any data received by this filter
+         * The route of each sensor, indexed by ordinal; null if no sink is registered for a sensor
          */
-        private final NetworkDataSink mSink;
+        private final SensorRoute[] mRoutes = new SensorRoute[SensorType.values().length];
 
         /**
-         * The network device whose data is accepted, or null if any data should be forwarded
+         * The sensors the clients must enable for the sinks
          */
-        private final NetworkDevice mOrigin;
+        private final SensorRequirements mSensorRequirements;
 
         /**
-         * Create a new SinkOriginFilter that will only forwardData data stemming from origin
+         * Compile a routing table
          *
-         * @param sink   where to put data
-         * @param origin what origin device should be forwarded
+         * @param registrations the registrations, in the order their sinks should be called
          */
-        SinkOriginFilter(NetworkDataSink sink, @Nullable NetworkDevice origin) {
-            mSink = sink;
-            mOrigin = origin;
+        RoutingTable(Iterable<Registration> registrations) {
+            float[] anyOriginRates = SensorRequirements.getUnrequiredRates();
+            Map<NetworkDevice, float[]> originRates = new LinkedHashMap<>();
+
+            for (SensorType sensor : SensorType.values()) {
+                List<NetworkDataSink> anyOriginSinks = new ArrayList<>();
+                Map<NetworkDevice, List<NetworkDataSink>> originSinks = new LinkedHashMap<>();
+
+                for (Registration registration : registrations) {
+                    if (registration.sensor != sensor)
+                        continue;
+
+                    // sinks for a single origin only require the sensor on that client
+                    float[] rates;
+                    if (registration.origin == null) {
+                        anyOriginSinks.add(registration.sink);
+                        rates = anyOriginRates;
+                    } else {
+                        originSinks.computeIfAbsent(registration.origin, origin -> new ArrayList<>()).add(registration.sink);
+                        rates = originRates.computeIfAbsent(registration.origin, origin -> SensorRequirements.getUnrequiredRates());
+                    }
+                    rates[sensor.ordinal()] = SensorRequirements.combineRates(rates[sensor.ordinal()], registration.rate);
+                }
+
+                if (anyOriginSinks.isEmpty() && originSinks.isEmpty())
+                    continue;
+
+                mRoutes[sensor.ordinal()] = new SensorRoute(anyOriginSinks, originSinks);
+            }
+
+            mSensorRequirements = new SensorRequirements(anyOriginRates, originRates);
         }
 
         /**
-         * Forwards data if no specific origin is required, or the data is from the correct client
+         * Get the route of a sensor
          *
-         * @param origin          the network device which sent the data
-         * @param data            the sensor data
-         * @param userSensitivity the sensitivity the user requested in his app settings for the sensor
-         *                        the data is from
+         * @param sensor the sensor
+         * @return the route, or null if no sink is registered for the sensor
          */
-        @Override
-        public void onData(NetworkDevice origin, SensorData data, float userSensitivity) {
-            // only forwardData the data if all-forwardData is enabled (origin null) or the data is from the correct device
-            if (mOrigin == null || mOrigin == origin)
-                mSink.onData(origin, data, userSensitivity);
+        SensorRoute getRoute(SensorType sensor) {
+            return mRoutes[sensor.ordinal()];
         }
 
         /**
-         * No implementation necessary
+         * Get the sensors the clients must enable for the sinks
+         *
+         * @return the sensor requirements of the clients
          */
-        @Override
-        public void close() {
+        SensorRequirements getSensorRequirements() {
+            return mSensorRequirements;
         }
+    }
+
+    /**
+     * The sinks of a single sensor, split into those accepting any origin and those accepting a single one
+     */
+    private static final class SensorRoute {
+        /**
+         * Sinks receiving the data of all devices
+         */
+        final NetworkDataSink[] anyOriginSinks;
 
         /**
-         * hashCode implementation that identifies two DataMapper instances as the same if the sink and origin is the same
+         * The sinks of each device that has sinks of its own
+         */
+        final SlotMap<NetworkDataSink[]> originSinks;
+
+        /**
+         * Create a new route
          *
-         * @return a hashcode as specified above
+         * @param anyOriginSinks sinks receiving the data of all devices
+         * @param originSinks    sinks receiving the data of a single device
          */
-        @Override
-        public int hashCode() {
-            return mSink.hashCode() + (mOrigin == null ? 0 : mOrigin.hashCode());
+        SensorRoute(List<NetworkDataSink> anyOriginSinks, Map<NetworkDevice, List<NetworkDataSink>> originSinks) {
+            this.anyOriginSinks = anyOriginSinks.toArray(new NetworkDataSink[anyOriginSinks.size()]);
+
+            Map<NetworkDevice, NetworkDataSink[]> sinkArrays = new LinkedHashMap<>();
+            for (Map.Entry<NetworkDevice, List<NetworkDataSink>> entry : originSinks.entrySet())
+                sinkArrays.put(entry.getKey(), entry.getValue().toArray(new NetworkDataSink[entry.getValue().size()]));
+            this.originSinks = new SlotMap<>(sinkArrays);
         }
     }
 }
@@ -0,0 +1,215 @@
+package de.ovgu.softwareprojekt.networking;
+
+import de.ovgu.softwareprojekt.SensorDataCodec;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps statistics about the udp data stream of a single client: how many datagrams were received, lost,
+ * duplicated or reordered, and the inter-arrival jitter. Lost, duplicated and reordered datagrams can only be detected
+ * if the client sends sequence numbers; older apps do not.
+ * <p>
+ * The statistics are updated by the thread receiving the data of the client, and can be read from any thread without
+ * locking. Retrieve them using {@link AbstractPsychicServer#getDataStreamStatistics(de.ovgu.softwareprojekt.discovery.NetworkDevice)}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DataStreamStatistics {
+    /**
+     * How many sequence numbers below the highest one are remembered to detect duplicates
+     */
+    private static final int WINDOW_SIZE = 64;
+
+    /**
+     * Number of datagrams received, not counting duplicates
+     */
+    private final AtomicLong mReceived = new AtomicLong();
+
+    /**
+     * Number of datagrams that were skipped and have not arrived (yet)
+     */
+    private final AtomicLong mLost = new AtomicLong();
+
+    /**
+     * Number of datagrams that were received more than once
+     */
+    private final AtomicLong mDuplicated = new AtomicLong();
+
+    /**
+     * Number of datagrams that arrived after a datagram with a higher sequence number
+     */
+    private final AtomicLong mReordered = new AtomicLong();
+
+    /**
+     * The interarrival jitter estimate as defined in RFC 3550, in nanoseconds, stored as double bits
+     */
+    private final AtomicLong mJitterBits = new AtomicLong(Double.doubleToLongBits(0));
+
+    /**
+     * The highest sequence number received, extended to 64 bits to handle wraparound. Only used by the receiving thread.
+     */
+    private long mHighestSequenceNumber = -1;
+
+    /**
+     * Bit i is set if the sequence number {@link #mHighestSequenceNumber} - i was received. Only used by the
+     * receiving thread.
+     */
+    private long mReceivedWindow = 0;
+
+    /**
+     * The transit time (arrival time - client timestamp) of the previous datagram, in nanoseconds. Only used by the
+     * receiving thread.
+     */
+    private long mLastTransit;
+
+    /**
+     * False until the first transit time was stored
+     */
+    private boolean mHasLastTransit = false;
+
+    /**
+     * Package-private, as only the data connections create statistics
+     */
+    DataStreamStatistics() {
+    }
+
+    /**
+     * Update the statistics with a newly received datagram. Must only be called by the thread receiving the data.
+     *
+     * @param sequenceNumber   the unsigned 32 bit sequence number of the datagram, or
+     *                         {@link SensorDataCodec#NO_SEQUENCE_NUMBER}
+     * @param clientTimestamp  the timestamp of the first sample in the datagram, in nanoseconds
+     * @param arrivalTimestamp the local arrival time of the datagram in nanoseconds, see {@link System#nanoTime()}
+     * @return false if the datagram is a duplicate and should be dropped
+     */
+    boolean onDatagram(long sequenceNumber, long clientTimestamp, long arrivalTimestamp) {
+        // without sequence numbers, we can only count
+        if (sequenceNumber == SensorDataCodec.NO_SEQUENCE_NUMBER) {
+            updateJitter(arrivalTimestamp - clientTimestamp);
+            mReceived.incrementAndGet();
+            return true;
+        }
+
+        // first datagram
+        if (mHighestSequenceNumber < 0) {
+            updateJitter(arrivalTimestamp - clientTimestamp);
+            mHighestSequenceNumber = sequenceNumber;
+            mReceivedWindow = 1;
+            mReceived.incrementAndGet();
+            return true;
+        }
+
+        // extend the 32 bit sequence number to 64 bits, assuming the smallest distance to the highest one
+        long extended = mHighestSequenceNumber + (int) (sequenceNumber - mHighestSequenceNumber);
+
+        if (extended > mHighestSequenceNumber) {
+            // newer datagram: all skipped sequence numbers are lost until they arrive
+            long distance = extended - mHighestSequenceNumber;
+            mLost.addAndGet(distance - 1);
+            mReceivedWindow = distance >= WINDOW_SIZE ? 1 : (mReceivedWindow << distance) | 1;
+            mHighestSequenceNumber = extended;
+        } else {
+            long distance = mHighestSequenceNumber - extended;
+
+            // too old to tell whether it is a duplicate; assume it is a very late datagram
+            if (distance >= WINDOW_SIZE)
+                mReordered.incrementAndGet();
+            else {
+                long bit = 1L << distance;
+
+                // duplicates do not influence the other statistics
+                if ((mReceivedWindow & bit) != 0) {
+                    mDuplicated.incrementAndGet();
+                    return false;
+                }
+
+                // the datagram was counted as lost when it was skipped
+                mReceivedWindow |= bit;
+                mLost.decrementAndGet();
+                mReordered.incrementAndGet();
+            }
+        }
+
+        updateJitter(arrivalTimestamp - clientTimestamp);
+        mReceived.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Update the jitter estimate as described in RFC 3550, section 6.4.1
+     *
+     * @param transit arrival time minus client timestamp of the current datagram
+     */
+    private void updateJitter(long transit) {
+        if (mHasLastTransit) {
+            double jitter = Double.longBitsToDouble(mJitterBits.get());
+            jitter += (Math.abs(transit - mLastTransit) - jitter) / 16.0;
+            mJitterBits.set(Double.doubleToLongBits(jitter));
+        }
+
+        mLastTransit = transit;
+        mHasLastTransit = true;
+    }
+
+    /**
+     * Get the number of datagrams received
+     *
+     * @return number of received datagrams, not counting duplicates
+     */
+    public long getReceivedCount() {
+        return mReceived.get();
+    }
+
+    /**
+     * Get the number of datagrams that were lost. Datagrams that arrive late are no longer counted as lost.
+     *
+     * @return number of lost datagrams
+     */
+    public long getLostCount() {
+        return mLost.get();
+    }
+
+    /**
+     * Get the number of datagrams that were received more than once
+     *
+     * @return number of duplicated datagrams
+     */
+    public long getDuplicatedCount() {
+        return mDuplicated.get();
+    }
+
+    /**
+     * Get the number of datagrams that arrived after a datagram sent later
+     *
+     * @return number of reordered datagrams
+     */
+    public long getReorderedCount() {
+        return mReordered.get();
+    }
+
+    /**
+     * Get the fraction of datagrams that were lost
+     *
+     * @return lost / (received + lost), or 0 if nothing was received yet
+     */
+    public double getLossRate() {
+        long lost = getLostCount();
+        long expected = getReceivedCount() + lost;
+        return expected > 0 ? (double) lost / expected : 0;
+    }
+
+    /**
+     * Get the interarrival jitter, which is the smoothed mean deviation of the transit time between two datagrams
+     *
+     * @return the jitter in milliseconds
+     */
+    public double getJitter() {
+        return Double.longBitsToDouble(mJitterBits.get()) / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("received %d, lost %d (%.2f%%), duplicated %d, reordered %d, jitter %.3fms",
+                getReceivedCount(), getLostCount(), getLossRate() * 100, getDuplicatedCount(), getReorderedCount(),
+                getJitter());
+    }
+}
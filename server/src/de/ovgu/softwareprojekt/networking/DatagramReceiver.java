@@ -0,0 +1,24 @@
+package de.ovgu.softwareprojekt.networking;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Implemented by the classes owning a non-blocking udp channel that is watched by a {@link DataChannelSelector}
+ */
+interface DatagramReceiver {
+    /**
+     * Get the channel that should be watched
+     *
+     * @return a non-blocking {@link DatagramChannel}
+     */
+    DatagramChannel getChannel();
+
+    /**
+     * Called by the {@link DataChannelSelector} when datagrams have arrived on the channel. The implementation should
+     * read the available datagrams and dispatch them.
+     *
+     * @param receiveBuffer buffer that may be used to receive the datagrams. It is shared with other receivers.
+     */
+    void onChannelReadable(ByteBuffer receiveBuffer);
+}
@@ -0,0 +1,59 @@
+package de.ovgu.softwareprojekt.networking;
+
+import de.ovgu.softwareprojekt.control.CommandFraming;
+import de.ovgu.softwareprojekt.control.commands.AbstractCommand;
+import de.ovgu.softwareprojekt.control.commands.CommandCodecRegistry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class wraps a command that is to be sent to multiple clients. The command is encoded only once for each codec
+ * version in use, and all clients share the same read-only frame; each client only gets its own buffer position.
+ * <p>
+ * The command must not be changed after it was wrapped.
+ */
+final class EncodedCommand {
+    /**
+     * The wrapped command
+     */
+    private final AbstractCommand mCommand;
+
+    /**
+     * The encoded frames, indexed by codec version. Created when first needed.
+     */
+    private final ByteBuffer[] mFrames = new ByteBuffer[CommandCodecRegistry.CODEC_VERSION + 1];
+
+    /**
+     * Wrap a command
+     *
+     * @param command the command to be sent
+     */
+    EncodedCommand(AbstractCommand command) {
+        mCommand = command;
+    }
+
+    /**
+     * Get the wrapped command
+     *
+     * @return the command to be sent
+     */
+    AbstractCommand getCommand() {
+        return mCommand;
+    }
+
+    /**
+     * Get the frame for a codec version, encoding the command if this version was not required before
+     *
+     * @param codecVersion the codec version the client uses
+     * @return a new buffer sharing the content of the encoded frame, positioned at its start
+     * @throws IOException if the command could not be encoded
+     */
+    synchronized ByteBuffer getFrame(int codecVersion) throws IOException {
+        if (mFrames[codecVersion] == null)
+            mFrames[codecVersion] = ByteBuffer.wrap(CommandFraming.encodeFrame(mCommand, codecVersion)).asReadOnlyBuffer();
+
+        // the frame itself is never consumed, so it can be shared by all clients
+        return mFrames[codecVersion].duplicate();
+    }
+}
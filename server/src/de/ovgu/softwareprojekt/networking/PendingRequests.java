@@ -0,0 +1,109 @@
+package de.ovgu.softwareprojekt.networking;
+
+import de.ovgu.softwareprojekt.control.commands.AbstractCommand;
+import de.ovgu.softwareprojekt.misc.SharedScheduler;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class keeps track of the commands sent to a single client that have not been acknowledged yet. Each request
+ * gets a correlation id and a future, which is completed when the matching
+ * {@link de.ovgu.softwareprojekt.control.commands.Acknowledgement} arrives, or fails when the timeout expires. Any
+ * number of requests may be outstanding at the same time, and no thread waits for them.
+ */
+class PendingRequests {
+    /**
+     * The outstanding requests, by correlation id
+     */
+    private final Map<Integer, CompletableFuture<Void>> mRequests = new ConcurrentHashMap<>();
+
+    /**
+     * The correlation id of the previous request
+     */
+    private final AtomicInteger mLastCorrelationId = new AtomicInteger();
+
+    /**
+     * Register a new request
+     *
+     * @param command the command that will be sent; its correlation id is set
+     * @param timeout how long to wait for the acknowledgement, in milliseconds
+     * @return the future completed by the acknowledgement
+     */
+    CompletableFuture<Void> register(AbstractCommand command, long timeout) {
+        int correlationId = nextCorrelationId();
+        command.setCorrelationId(correlationId);
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        mRequests.put(correlationId, future);
+
+        // fail the request if it is not acknowledged in time
+        ScheduledFuture<?> expiry = SharedScheduler.get().schedule(() -> {
+            if (mRequests.remove(correlationId, future))
+                future.completeExceptionally(new TimeoutException(
+                        command.getCommandType() + " was not acknowledged within " + timeout + "ms"));
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        // forget the timeout once the request is done
+        future.whenComplete((result, exception) -> expiry.cancel(false));
+        return future;
+    }
+
+    /**
+     * Get a new correlation id, skipping {@link AbstractCommand#NO_CORRELATION_ID} when wrapping around
+     *
+     * @return an id not used by any recent request
+     */
+    private int nextCorrelationId() {
+        int correlationId;
+        do {
+            correlationId = mLastCorrelationId.incrementAndGet();
+        } while (correlationId == AbstractCommand.NO_CORRELATION_ID);
+        return correlationId;
+    }
+
+    /**
+     * Complete the request an acknowledgement refers to
+     *
+     * @param correlationId the correlation id of the acknowledged command
+     */
+    void onAcknowledgement(int correlationId) {
+        CompletableFuture<Void> future = mRequests.remove(correlationId);
+
+        // late acknowledgements of expired requests are ignored
+        if (future != null)
+            future.complete(null);
+    }
+
+    /**
+     * Fail a single request, for example because it could not be sent
+     *
+     * @param correlationId the correlation id of the request
+     * @param cause         why the request failed
+     */
+    void fail(int correlationId, Throwable cause) {
+        CompletableFuture<Void> future = mRequests.remove(correlationId);
+        if (future != null)
+            future.completeExceptionally(cause);
+    }
+
+    /**
+     * Fail all outstanding requests, for example because the client disconnected
+     *
+     * @param cause why the requests failed
+     */
+    void failAll(Throwable cause) {
+        Iterator<CompletableFuture<Void>> iterator = mRequests.values().iterator();
+        while (iterator.hasNext()) {
+            CompletableFuture<Void> future = iterator.next();
+            iterator.remove();
+            future.completeExceptionally(cause);
+        }
+    }
+}
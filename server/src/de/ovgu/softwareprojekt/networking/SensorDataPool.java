@@ -0,0 +1,52 @@
+package de.ovgu.softwareprojekt.networking;
+
+import de.ovgu.softwareprojekt.SensorData;
+
+import java.util.ArrayDeque;
+
+/**
+ * A small pool of {@link SensorData} instances. It is used by a single {@link DataConnection} to avoid allocating a new
+ * {@link SensorData} object and data array for each received packet. The methods are synchronized because the data
+ * of a client could arrive on more than one shard of a {@link SharedDataChannel}; normally, the lock is uncontended.
+ */
+class SensorDataPool {
+    /**
+     * The instances currently available for reuse
+     */
+    private final ArrayDeque<SensorData> mFreeInstances;
+
+    /**
+     * How many instances may be stored at most; further released instances are left to the garbage collector
+     */
+    private final int mCapacity;
+
+    /**
+     * Create a new, empty pool
+     *
+     * @param capacity how many unused instances may be kept at most
+     */
+    SensorDataPool(int capacity) {
+        mCapacity = capacity;
+        mFreeInstances = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Get an instance from the pool, or a new one if the pool is empty
+     *
+     * @return a {@link SensorData} instance that may contain stale values
+     */
+    synchronized SensorData acquire() {
+        SensorData instance = mFreeInstances.pollFirst();
+        return instance != null ? instance : new SensorData();
+    }
+
+    /**
+     * Return an instance to the pool. It must not be used by the caller afterwards.
+     *
+     * @param instance the instance that is no longer in use
+     */
+    synchronized void release(SensorData instance) {
+        if (mFreeInstances.size() < mCapacity)
+            mFreeInstances.offerFirst(instance);
+    }
+}
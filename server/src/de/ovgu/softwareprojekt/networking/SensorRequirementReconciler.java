@@ -0,0 +1,198 @@
+package de.ovgu.softwareprojekt.networking;
+
+import de.ovgu.softwareprojekt.SensorType;
+import de.ovgu.softwareprojekt.control.commands.AbstractCommand;
+import de.ovgu.softwareprojekt.control.commands.SetSensorCommand;
+import de.ovgu.softwareprojekt.control.commands.SetSensorSpeed;
+import de.ovgu.softwareprojekt.misc.ExceptionListener;
+import de.ovgu.softwareprojekt.misc.SharedScheduler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class keeps the sensors enabled on the clients, and their speeds, in line with the sensors required by the
+ * data sinks. Changes to the requirements are collected for a short time, so that registering and unregistering a lot
+ * of sinks at once results in a single update. A client is only sent a {@link SetSensorCommand} if the set of sensors
+ * it must enable differs from the one it was sent last, and a {@link SetSensorSpeed} only for sensors whose speed
+ * changed.
+ */
+class SensorRequirementReconciler {
+    /**
+     * How long changes are collected before the clients are updated, in milliseconds
+     */
+    private static final long DEBOUNCE_DELAY = 50;
+
+    /**
+     * The manager providing the clients and their required sensors
+     */
+    private final ClientConnectionManager mClientManager;
+
+    /**
+     * Who to notify if a client could not be updated
+     */
+    private final ExceptionListener mExceptionListener;
+
+    /**
+     * The sensor set each client was sent last. Guarded by this instance.
+     */
+    private final Map<ClientConnection, EnumSet<SensorType>> mSentSensors = new HashMap<>();
+
+    /**
+     * The speed each client was sent last, by sensor ordinal. Guarded by this instance.
+     */
+    private final Map<ClientConnection, SetSensorSpeed[]> mSentSpeeds = new HashMap<>();
+
+    /**
+     * True if an update has been scheduled, but has not yet begun
+     */
+    private final AtomicBoolean mIsUpdateScheduled = new AtomicBoolean(false);
+
+    /**
+     * The scheduled update, or null if none has been scheduled yet
+     */
+    private volatile ScheduledFuture<?> mScheduledUpdate;
+
+    /**
+     * True once the reconciler was closed
+     */
+    private volatile boolean mIsClosed;
+
+    /**
+     * Create a new reconciler
+     *
+     * @param clientManager     the manager providing the clients and their required sensors
+     * @param exceptionListener who to notify if a client could not be updated
+     */
+    SensorRequirementReconciler(ClientConnectionManager clientManager, ExceptionListener exceptionListener) {
+        mClientManager = clientManager;
+        mExceptionListener = exceptionListener;
+    }
+
+    /**
+     * Notify the reconciler that the required sensors may have changed. The clients are updated after a short delay,
+     * which includes all changes requested until then.
+     */
+    void requestUpdate() {
+        if (!mIsClosed && mIsUpdateScheduled.compareAndSet(false, true))
+            mScheduledUpdate = SharedScheduler.get().schedule(this::update, DEBOUNCE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send the configuration of a new client, starting with the sensors it must enable
+     *
+     * @param client        the new client
+     * @param configuration the remaining configuration commands
+     * @throws IOException if the configuration could not be sent
+     */
+    synchronized void configureClient(ClientConnection client, List<AbstractCommand> configuration) throws IOException {
+        EnumSet<SensorType> sensors = mClientManager.getRequiredSensors(client);
+
+        // the speeds come first, so that the sensors start at the right speed
+        SetSensorSpeed[] speeds = getDefaultSpeeds();
+        List<AbstractCommand> commands = getSpeedChanges(client, speeds);
+        commands.add(new SetSensorCommand(new ArrayList<>(sensors)));
+        commands.addAll(configuration);
+
+        client.sendCommands(commands);
+        mSentSensors.put(client, sensors);
+        mSentSpeeds.put(client, speeds);
+    }
+
+    /**
+     * Get the speeds a client uses before it is sent any
+     *
+     * @return a new array of the default speed commands, by sensor ordinal
+     */
+    private static SetSensorSpeed[] getDefaultSpeeds() {
+        SetSensorSpeed[] speeds = new SetSensorSpeed[SensorType.values().length];
+        for (SensorType sensor : SensorType.values())
+            speeds[sensor.ordinal()] = new SetSensorSpeed(sensor, ClientConnectionManager.DEFAULT_SENSOR_SPEED);
+        return speeds;
+    }
+
+    /**
+     * Get the speed commands a client must be sent, and update the speeds it was sent accordingly
+     *
+     * @param client     the client
+     * @param sentSpeeds the speeds the client was sent last, by sensor ordinal; changed to the new speeds
+     * @return the speed commands for all sensors whose speed changed
+     */
+    private List<AbstractCommand> getSpeedChanges(ClientConnection client, SetSensorSpeed[] sentSpeeds) {
+        List<AbstractCommand> commands = new ArrayList<>();
+        for (SensorType sensor : SensorType.values()) {
+            SetSensorSpeed speed = mClientManager.getSensorSpeed(client, sensor);
+            SetSensorSpeed sentSpeed = sentSpeeds[sensor.ordinal()];
+
+            if (speed.sensorSpeed != sentSpeed.sensorSpeed || speed.samplingPeriodUs != sentSpeed.samplingPeriodUs) {
+                commands.add(speed);
+                sentSpeeds[sensor.ordinal()] = speed;
+            }
+        }
+        return commands;
+    }
+
+    /**
+     * Send the required sensors and speeds to each client whose requirements changed since they were last sent
+     */
+    private synchronized void update() {
+        // changes requested from now on need another update
+        mIsUpdateScheduled.set(false);
+
+        // the update may have started just before it was cancelled
+        if (mIsClosed)
+            return;
+
+        // forget clients that are gone
+        List<ClientConnection> clients = mClientManager.getClientConnections();
+        mSentSensors.keySet().retainAll(clients);
+        mSentSpeeds.keySet().retainAll(clients);
+
+        for (ClientConnection client : clients) {
+            EnumSet<SensorType> sensors = mClientManager.getRequiredSensors(client);
+
+            // clients that are still being configured are handled by configureClient
+            SetSensorSpeed[] sentSpeeds = mSentSpeeds.get(client);
+            if (sentSpeeds == null)
+                continue;
+
+            // the new speeds are only remembered once they were sent
+            SetSensorSpeed[] speeds = sentSpeeds.clone();
+            List<AbstractCommand> commands = getSpeedChanges(client, speeds);
+            boolean sensorsChanged = !sensors.equals(mSentSensors.get(client));
+            if (sensorsChanged)
+                commands.add(new SetSensorCommand(new ArrayList<>(sensors)));
+
+            // do not bother the client if nothing changed
+            if (commands.isEmpty())
+                continue;
+
+            try {
+                client.sendCommands(commands);
+                mSentSensors.put(client, sensors);
+                mSentSpeeds.put(client, speeds);
+            } catch (IOException e) {
+                mExceptionListener.onException(this, e, "Could not update the sensors of " + client.getClient());
+            }
+        }
+    }
+
+    /**
+     * Stop updating the clients
+     */
+    void close() {
+        mIsClosed = true;
+
+        // drop the pending update, if any
+        ScheduledFuture<?> update = mScheduledUpdate;
+        if (update != null)
+            update.cancel(false);
+    }
+}
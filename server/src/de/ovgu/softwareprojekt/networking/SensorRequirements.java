@@ -0,0 +1,165 @@
+package de.ovgu.softwareprojekt.networking;
+
+import de.ovgu.softwareprojekt.SensorType;
+import de.ovgu.softwareprojekt.discovery.NetworkDevice;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the sensors the clients must enable: those with a data sink accepting data from any client,
+ * plus, for each client, those with a data sink accepting only its data. Clients are thus not asked to send data that
+ * would only be discarded.
+ * <p>
+ * For each sensor, the snapshot also knows the sample rate the sinks need. It is the highest rate declared by them,
+ * or {@link #ANY_RATE} if one of them did not declare a rate.
+ */
+final class SensorRequirements {
+    /**
+     * Rate of sensors without any data sinks
+     */
+    static final float NOT_REQUIRED = -1;
+
+    /**
+     * Rate of sensors with a data sink that did not declare the rate it needs
+     */
+    static final float ANY_RATE = 0;
+
+    /**
+     * Cached sensor types, as rates are stored by ordinal
+     */
+    private static final SensorType[] SENSOR_TYPES = SensorType.values();
+
+    /**
+     * Requirements without any sensors
+     */
+    static final SensorRequirements NONE = new SensorRequirements(getUnrequiredRates(), Collections.<NetworkDevice, float[]>emptyMap());
+
+    /**
+     * The sensors every client must enable
+     */
+    private final EnumSet<SensorType> mAnyOriginSensors;
+
+    /**
+     * The rates every client must provide, by sensor ordinal
+     */
+    private final float[] mAnyOriginRates;
+
+    /**
+     * The clients that must enable additional sensors
+     */
+    private final NetworkDevice[] mOrigins;
+
+    /**
+     * All sensors each client in {@link #mOrigins} must enable, at the same index
+     */
+    private final EnumSet<SensorType>[] mOriginSensors;
+
+    /**
+     * The rates each client in {@link #mOrigins} must provide, at the same index, by sensor ordinal
+     */
+    private final float[][] mOriginRates;
+
+    /**
+     * Create a new snapshot
+     *
+     * @param anyOriginRates the rates the sinks accepting any client need, by sensor ordinal; not copied
+     * @param originRates    the rates the sinks accepting a single client need, by sensor ordinal; not copied
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})// generic arrays can not be created
+    SensorRequirements(float[] anyOriginRates, Map<NetworkDevice, float[]> originRates) {
+        mAnyOriginRates = anyOriginRates;
+        mAnyOriginSensors = getSensors(anyOriginRates);
+        mOrigins = originRates.keySet().toArray(new NetworkDevice[originRates.size()]);
+        mOriginSensors = new EnumSet[mOrigins.length];
+        mOriginRates = new float[mOrigins.length][];
+
+        // each client must satisfy its own sinks, and those of all clients
+        for (int i = 0; i < mOrigins.length; i++) {
+            mOriginRates[i] = originRates.get(mOrigins[i]);
+            for (int sensor = 0; sensor < SENSOR_TYPES.length; sensor++)
+                mOriginRates[i][sensor] = combineRates(mOriginRates[i][sensor], anyOriginRates[sensor]);
+            mOriginSensors[i] = getSensors(mOriginRates[i]);
+        }
+    }
+
+    /**
+     * Get rates for all sensors, where no sensor is required
+     *
+     * @return a new array of {@link #NOT_REQUIRED} rates, by sensor ordinal
+     */
+    static float[] getUnrequiredRates() {
+        float[] rates = new float[SENSOR_TYPES.length];
+        Arrays.fill(rates, NOT_REQUIRED);
+        return rates;
+    }
+
+    /**
+     * Get the rate that satisfies the data sinks of two rates
+     *
+     * @param first  a rate in Hz, {@link #ANY_RATE} or {@link #NOT_REQUIRED}
+     * @param second a rate in Hz, {@link #ANY_RATE} or {@link #NOT_REQUIRED}
+     * @return the higher rate, or {@link #ANY_RATE} if either has not been declared
+     */
+    static float combineRates(float first, float second) {
+        if (first == NOT_REQUIRED)
+            return second;
+        if (second == NOT_REQUIRED)
+            return first;
+        if (first == ANY_RATE || second == ANY_RATE)
+            return ANY_RATE;
+        return Math.max(first, second);
+    }
+
+    /**
+     * Get the sensors that are required according to a rate array
+     *
+     * @param rates the rates, by sensor ordinal
+     * @return the sensors whose rate is not {@link #NOT_REQUIRED}
+     */
+    private static EnumSet<SensorType> getSensors(float[] rates) {
+        EnumSet<SensorType> sensors = EnumSet.noneOf(SensorType.class);
+        for (SensorType sensor : SENSOR_TYPES)
+            if (rates[sensor.ordinal()] != NOT_REQUIRED)
+                sensors.add(sensor);
+        return sensors;
+    }
+
+    /**
+     * Find a client in {@link #mOrigins}
+     *
+     * @param client the client
+     * @return the index of the client, or -1 if it has no sinks of its own
+     */
+    private int indexOf(NetworkDevice client) {
+        for (int i = 0; i < mOrigins.length; i++)
+            if (mOrigins[i].isSameClient(client))
+                return i;
+        return -1;
+    }
+
+    /**
+     * Get the sensors a client must enable
+     *
+     * @param client the client
+     * @return the sensors the client must enable; must not be changed
+     */
+    EnumSet<SensorType> getRequiredSensors(NetworkDevice client) {
+        int index = indexOf(client);
+        return index >= 0 ? mOriginSensors[index] : mAnyOriginSensors;
+    }
+
+    /**
+     * Get the sample rate a client must provide for a sensor
+     *
+     * @param client the client
+     * @param sensor the sensor
+     * @return the rate in Hz, {@link #ANY_RATE} if a sink did not declare its rate, or {@link #NOT_REQUIRED}
+     */
+    float getRequiredRate(NetworkDevice client, SensorType sensor) {
+        int index = indexOf(client);
+        return index >= 0 ? mOriginRates[index][sensor.ordinal()] : mAnyOriginRates[sensor.ordinal()];
+    }
+}
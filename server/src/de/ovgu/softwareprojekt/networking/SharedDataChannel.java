@@ -0,0 +1,277 @@
+package de.ovgu.softwareprojekt.networking;
+
+import de.ovgu.softwareprojekt.SensorDataCodec;
+import de.ovgu.softwareprojekt.misc.ExceptionListener;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class receives the data of all clients on a single, configured udp port. Each datagram is forwarded to the
+ * {@link DataConnection} of the client that sent it. Clients are identified by the token the server assigned to them,
+ * which is contained in each data frame; the token is only accepted if the datagram comes from the address of the
+ * client it was assigned to. Clients that do not send a token (older apps) are identified by their address only.
+ * <p>
+ * If more than one shard is requested and the platform supports SO_REUSEPORT, multiple channels are bound to the
+ * port, each with its own receiver thread. The kernel then distributes the clients across the shards, so that each
+ * client is always received by the same thread. The shards share no locks; the lookup tables are only read by them.
+ */
+class SharedDataChannel {
+    /**
+     * The shards receiving the data; there is always at least one
+     */
+    private final List<Shard> mShards = new ArrayList<>();
+
+    /**
+     * Maps client tokens to the connections they were assigned to
+     */
+    private final ConcurrentHashMap<Integer, DataConnection> mConnectionsByToken = new ConcurrentHashMap<>();
+
+    /**
+     * Maps client addresses to their connections, used for clients not sending a token
+     */
+    private final ConcurrentHashMap<InetAddress, DataConnection> mConnectionsByAddress = new ConcurrentHashMap<>();
+
+    /**
+     * Used to create the client tokens. They should not be guessable, so that other hosts cannot easily inject data.
+     */
+    private final Random mTokenGenerator = new SecureRandom();
+
+    /**
+     * Who to report bad exceptions to
+     */
+    private final ExceptionListener mExceptionListener;
+
+    /**
+     * Bind a new shared data channel to the given port, and begin dispatching the data arriving there.
+     *
+     * @param port              the port all clients should send their data to
+     * @param shardCount        how many receiver threads should be used. If SO_REUSEPORT is not available, only a
+     *                          single receiver thread is used.
+     * @param exceptionListener the {@link ExceptionListener} called when a (possibly threaded) exception occurs
+     * @throws IOException if the port could not be bound
+     */
+    SharedDataChannel(int port, int shardCount, ExceptionListener exceptionListener) throws IOException {
+        mExceptionListener = exceptionListener;
+
+        // SO_REUSEPORT is only required if there is more than one shard; without it, getShardCount() tells the
+        // caller that a single receiver thread is used
+        SocketOption<Boolean> reusePort = shardCount > 1 ? getReusePortOption() : null;
+        if (shardCount > 1 && reusePort == null)
+            shardCount = 1;
+
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                // the first shard may have bound a random port, which the others must use too
+                int shardPort = i == 0 ? port : getLocalPort();
+                mShards.add(new Shard(i, shardPort, reusePort));
+            }
+        } catch (IOException | RuntimeException e) {
+            // do not leave the already bound shards behind
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Look up the SO_REUSEPORT socket option, which is only available from java 9 onwards, and not supported for
+     * udp channels on every platform (e.g. windows)
+     *
+     * @return the option, or null if it is not available for udp channels
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption() {
+        SocketOption<Boolean> reusePort;
+        try {
+            reusePort = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            return null;
+        }
+
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            return channel.supportedOptions().contains(reusePort) ? reusePort : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the port this channel is bound to
+     *
+     * @return the port all clients should send their data to
+     */
+    int getLocalPort() {
+        return mShards.get(0).mChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Get the number of receiver threads used
+     *
+     * @return the number of shards, which may be lower than requested if SO_REUSEPORT is not available
+     */
+    int getShardCount() {
+        return mShards.size();
+    }
+
+    /**
+     * Attach a connection to this channel
+     *
+     * @param connection the connection that should receive the data of its client
+     * @return the token the client must send in its data frames
+     */
+    int attach(DataConnection connection) {
+        // find an unused token; collisions are extremely unlikely
+        while (true) {
+            int token = mTokenGenerator.nextInt();
+            if (token != SensorDataCodec.NO_CLIENT_TOKEN && mConnectionsByToken.putIfAbsent(token, connection) == null)
+                return token;
+        }
+    }
+
+    /**
+     * Set the address of the client a connection handles. Data sent by the client will only be accepted afterwards.
+     *
+     * @param connection the connection handling the client
+     * @param address    the address of the client
+     */
+    void setClientAddress(DataConnection connection, InetAddress address) {
+        mConnectionsByAddress.put(address, connection);
+    }
+
+    /**
+     * Detach a connection from this channel. Data of its client will no longer be accepted.
+     *
+     * @param connection the connection that is no longer used
+     */
+    void detach(DataConnection connection) {
+        mConnectionsByToken.remove(connection.getClientToken(), connection);
+
+        InetAddress address = connection.getClientAddress();
+        if (address != null)
+            mConnectionsByAddress.remove(address, connection);
+    }
+
+    /**
+     * Find the connection that should handle a datagram
+     *
+     * @param datagram buffer containing the datagram; its position is not changed
+     * @param source   the address the datagram was sent from
+     * @return the connection of the client that sent the datagram, or null if it is unknown
+     */
+    private DataConnection findConnection(ByteBuffer datagram, InetAddress source) {
+        int token = SensorDataCodec.peekClientToken(datagram);
+
+        // clients not sending a token can only be identified by their address
+        if (token == SensorDataCodec.NO_CLIENT_TOKEN)
+            return mConnectionsByAddress.get(source);
+
+        // only accept the token from the client it was assigned to
+        DataConnection connection = mConnectionsByToken.get(token);
+        if (connection != null && source.equals(connection.getClientAddress()))
+            return connection;
+        return null;
+    }
+
+    /**
+     * Close all shards. No more data will be received by any attached connection.
+     */
+    void close() {
+        for (Shard shard : mShards)
+            shard.close();
+    }
+
+    /**
+     * A single channel bound to the shared port, together with the thread receiving its data
+     */
+    private class Shard implements DatagramReceiver {
+        /**
+         * The channel this shard receives on
+         */
+        private final DatagramChannel mChannel;
+
+        /**
+         * The thread dispatching the data of this shard
+         */
+        private final DataChannelSelector mSelector;
+
+        /**
+         * Bind a new shard and begin dispatching its data
+         *
+         * @param index     index of the shard, used for the thread name
+         * @param port      the port to bind
+         * @param reusePort the SO_REUSEPORT option, or null if the port is not shared with other shards
+         * @throws IOException if the port could not be bound
+         */
+        Shard(int index, int port, SocketOption<Boolean> reusePort) throws IOException {
+            mChannel = DatagramChannel.open();
+
+            try {
+                mChannel.configureBlocking(false);
+
+                // allow the other shards to bind the same port
+                if (reusePort != null)
+                    mChannel.setOption(reusePort, true);
+
+                mChannel.bind(new InetSocketAddress(port));
+                mSelector = new DataChannelSelector("SharedDataChannel shard " + index, mExceptionListener);
+            } catch (IOException | RuntimeException e) {
+                // the shard is not added to the channel, so nobody else would close it
+                mChannel.close();
+                throw e;
+            }
+
+            mSelector.start();
+            mSelector.register(this);
+        }
+
+        @Override
+        public DatagramChannel getChannel() {
+            return mChannel;
+        }
+
+        @Override
+        public void onChannelReadable(ByteBuffer receiveBuffer) {
+            try {
+                for (int i = 0; i < DataConnection.MAXIMUM_DATAGRAMS_PER_WAKEUP; i++) {
+                    // receive udp packet; stop when no more datagrams are available
+                    receiveBuffer.clear();
+                    SocketAddress source = mChannel.receive(receiveBuffer);
+                    if (source == null)
+                        return;
+                    receiveBuffer.flip();
+
+                    // datagrams from unknown clients are dropped
+                    DataConnection connection = findConnection(receiveBuffer, ((InetSocketAddress) source).getAddress());
+                    if (connection != null)
+                        connection.onDatagram(receiveBuffer);
+                }
+            } catch (IOException e) {
+                if (mChannel.isOpen())
+                    mExceptionListener.onException(SharedDataChannel.this, e, "Could not receive data on shared data channel");
+            }
+        }
+
+        /**
+         * Stop the receiver thread and close the channel
+         */
+        void close() {
+            mSelector.close();
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
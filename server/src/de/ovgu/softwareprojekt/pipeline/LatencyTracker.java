@@ -0,0 +1,181 @@
+package de.ovgu.softwareprojekt.pipeline;
+
+import com.sun.istack.internal.Nullable;
+import de.ovgu.softwareprojekt.SensorData;
+import de.ovgu.softwareprojekt.SensorType;
+import de.ovgu.softwareprojekt.discovery.NetworkDevice;
+import de.ovgu.softwareprojekt.networking.NetworkDataSink;
+import de.ovgu.softwareprojekt.pipeline.filters.AbstractFilter;
+import de.ovgu.softwareprojekt.util.LatencyHistogram;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This {@link AbstractFilter} subclass forwards incoming data without changes, but measures how old it is when it
+ * arrives, per client and sensor. Put it right before the element that acts on the data, so that it measures the
+ * latency up to the actuation:
+ * <ul>
+ * <li>the network latency, from the sensor event on the client to the arrival of the datagram at the server</li>
+ * <li>the pipeline latency, from the arrival of the datagram to this element</li>
+ * <li>the end-to-end latency, from the sensor event to this element</li>
+ * </ul>
+ * The network and end-to-end latencies are only recorded once the clock of the client has been synchronized, which
+ * takes about two seconds after connecting; apps that are too old to synchronize only get the pipeline latency.
+ */
+@SuppressWarnings("WeakerAccess")
+public class LatencyTracker extends AbstractFilter {
+    /**
+     * Cached sensor types, as one set of histograms is kept per ordinal
+     */
+    private static final SensorType[] SENSOR_TYPES = SensorType.values();
+
+    /**
+     * The histograms of each client, indexed by sensor ordinal; created when the first data of a sensor arrives
+     */
+    private final Map<NetworkDevice, Latencies[]> mLatencies = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new LatencyTracker. {@link #setDataSink(NetworkDataSink)} must be called before data arrives, for
+     * example by the {@link FilterPipelineBuilder}.
+     */
+    public LatencyTracker() {
+    }
+
+    /**
+     * Create a new LatencyTracker
+     *
+     * @param sink the element that acts on the data
+     */
+    public LatencyTracker(@Nullable NetworkDataSink sink) {
+        super(sink);
+    }
+
+    /**
+     * Record the latencies of the data, and forward it unchanged
+     *
+     * @param origin          the device that sent the data
+     * @param data            the data that was sent
+     * @param userSensitivity the sensitivity the user set for this sensor type
+     */
+    @Override
+    public void onData(NetworkDevice origin, SensorData data, float userSensitivity) {
+        long now = System.nanoTime();
+
+        // data not received over the network, for example from a test source, has no timestamps
+        if (data.ingressTimestamp != 0) {
+            Latencies latencies = getLatencies(origin, data.sensorType);
+            latencies.pipeline.record(now - data.ingressTimestamp);
+
+            // only possible with a synchronized client clock
+            if (data.serverTimestamp != 0) {
+                latencies.network.record(data.ingressTimestamp - data.serverTimestamp);
+                latencies.endToEnd.record(now - data.serverTimestamp);
+            }
+        }
+
+        forwardData(origin, data, userSensitivity);
+    }
+
+    /**
+     * Get the histograms of a client and sensor, creating them if necessary
+     *
+     * @param origin the client
+     * @param sensor the sensor
+     * @return the histograms
+     */
+    private Latencies getLatencies(NetworkDevice origin, SensorType sensor) {
+        Latencies[] clientLatencies = mLatencies.computeIfAbsent(origin, device -> new Latencies[SENSOR_TYPES.length]);
+
+        Latencies latencies = clientLatencies[sensor.ordinal()];
+        if (latencies != null)
+            return latencies;
+
+        // data of a client may be forwarded by more than one thread, for example by a jitter buffer
+        synchronized (clientLatencies) {
+            latencies = clientLatencies[sensor.ordinal()];
+            if (latencies == null) {
+                latencies = new Latencies();
+                clientLatencies[sensor.ordinal()] = latencies;
+            }
+            return latencies;
+        }
+    }
+
+    /**
+     * Get the histograms of a client and sensor, if data has arrived for them
+     *
+     * @param origin the client
+     * @param sensor the sensor
+     * @return the histograms, or null if no data has arrived
+     */
+    private Latencies findLatencies(NetworkDevice origin, SensorType sensor) {
+        Latencies[] clientLatencies = mLatencies.get(origin);
+        return clientLatencies != null ? clientLatencies[sensor.ordinal()] : null;
+    }
+
+    /**
+     * Get the latency from the sensor events on a client to the arrival of the data at the server
+     *
+     * @param origin the client
+     * @param sensor the sensor
+     * @return the live histogram, or null if no data of the sensor has arrived yet
+     */
+    public LatencyHistogram getNetworkLatency(NetworkDevice origin, SensorType sensor) {
+        Latencies latencies = findLatencies(origin, sensor);
+        return latencies != null ? latencies.network : null;
+    }
+
+    /**
+     * Get the latency from the arrival of the data at the server to this element
+     *
+     * @param origin the client
+     * @param sensor the sensor
+     * @return the live histogram, or null if no data of the sensor has arrived yet
+     */
+    public LatencyHistogram getPipelineLatency(NetworkDevice origin, SensorType sensor) {
+        Latencies latencies = findLatencies(origin, sensor);
+        return latencies != null ? latencies.pipeline : null;
+    }
+
+    /**
+     * Get the latency from the sensor events on a client to this element
+     *
+     * @param origin the client
+     * @param sensor the sensor
+     * @return the live histogram, or null if no data of the sensor has arrived yet
+     */
+    public LatencyHistogram getEndToEndLatency(NetworkDevice origin, SensorType sensor) {
+        Latencies latencies = findLatencies(origin, sensor);
+        return latencies != null ? latencies.endToEnd : null;
+    }
+
+    /**
+     * Forget the histograms of a client, for example after it disconnected
+     *
+     * @param origin the client
+     */
+    public void forget(NetworkDevice origin) {
+        mLatencies.remove(origin);
+    }
+
+    /**
+     * The histograms of a single client and sensor
+     */
+    private static final class Latencies {
+        /**
+         * Sensor event to arrival at the server
+         */
+        final LatencyHistogram network = new LatencyHistogram();
+
+        /**
+         * Arrival at the server to the tracker
+         */
+        final LatencyHistogram pipeline = new LatencyHistogram();
+
+        /**
+         * Sensor event to the tracker
+         */
+        final LatencyHistogram endToEnd = new LatencyHistogram();
+    }
+}
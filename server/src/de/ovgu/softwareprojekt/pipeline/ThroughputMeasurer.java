@@ -2,11 +2,12 @@ package de.ovgu.softwareprojekt.pipeline;
 
 import de.ovgu.softwareprojekt.SensorData;
 import de.ovgu.softwareprojekt.discovery.NetworkDevice;
+import de.ovgu.softwareprojekt.misc.SharedScheduler;
 import de.ovgu.softwareprojekt.pipeline.filters.AbstractFilter;
 import de.ovgu.softwareprojekt.util.RingBuffer;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This {@link AbstractFilter} subclass forwards incoming data without changes,
@@ -14,9 +15,9 @@ import java.util.TimerTask;
  */
 public class ThroughputMeasurer extends AbstractFilter {
     /**
-     * Timer used for resetting the throughput measurement after each measurement block
+     * The task resetting the throughput measurement after each measurement block
      */
-    private final Timer mThroughputTimer = new Timer();
+    private final ScheduledFuture<?> mThroughputTask;
 
     /**
      * Incremented whenever a new point comes in, and reset once per block
@@ -61,7 +62,7 @@ public class ThroughputMeasurer extends AbstractFilter {
      */
     @Override
     public void close() {
-        mThroughputTimer.cancel();
+        mThroughputTask.cancel(false);
     }
 
     /**
@@ -73,12 +74,9 @@ public class ThroughputMeasurer extends AbstractFilter {
     public ThroughputMeasurer(long blockLength, int averageSize) {
         mDataThroughputStorage = new RingBuffer<>(averageSize, 0);
         // reset pps once per second
-        mThroughputTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                mDataThroughputStorage.add(mThroughputCounter);
-                mThroughputCounter = 0;
-            }
-        }, 0, blockLength);
+        mThroughputTask = SharedScheduler.get().scheduleAtFixedRate(() -> {
+            mDataThroughputStorage.add(mThroughputCounter);
+            mThroughputCounter = 0;
+        }, 0, blockLength, TimeUnit.MILLISECONDS);
     }
 }
@@ -0,0 +1,543 @@
+package de.ovgu.softwareprojekt.pipeline.filters;
+
+import com.sun.istack.internal.Nullable;
+import de.ovgu.softwareprojekt.SensorData;
+import de.ovgu.softwareprojekt.discovery.NetworkDevice;
+import de.ovgu.softwareprojekt.misc.ExceptionListener;
+import de.ovgu.softwareprojekt.networking.NetworkDataSink;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This filter smooths out network jitter. Incoming samples are sorted by their timestamp and held back for a playout
+ * delay, after which they are forwarded at the pace they were recorded with on the device. The delay adapts to the
+ * observed jitter: it grows on bad wifi, and shrinks again when the network calms down. Short gaps left by lost samples
+ * are filled by interpolating between the neighbouring samples, so the following elements see neither bursts nor holes.
+ * <p>
+ * The filter expects the data of a single sensor of a single device, like the other stateful filters. It does not
+ * allocate memory while running; the forwarded {@link SensorData} instance is reused, so following elements must clone
+ * it if they want to keep it. Data is forwarded from a playout thread owned by the filter, not from the thread calling
+ * {@link #onData(NetworkDevice, SensorData, float)}; call {@link #close()} to stop it. The playout thread runs the
+ * whole following pipeline, which is why the {@link de.ovgu.softwareprojekt.misc.SharedScheduler} is not used. The
+ * pipeline is called without holding the lock of the filter, so a slow pipeline does not block incoming data; if it
+ * cannot keep up and the buffer runs full, the oldest samples are dropped.
+ */
+@SuppressWarnings("WeakerAccess")
+public class JitterBufferFilter extends AbstractFilter {
+    /**
+     * How often the playout task checks for samples due, in milliseconds
+     */
+    private static final long PLAYOUT_PERIOD = 2;
+
+    /**
+     * After how many nanoseconds the minimum transit time window is restarted, so that clock drift can be followed
+     */
+    private static final long TRANSIT_WINDOW_LENGTH = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * Gaps larger than this many sample intervals are considered to be lost samples
+     */
+    private static final float GAP_THRESHOLD = 1.5f;
+
+    /**
+     * Buffered samples, sorted by timestamp, starting at {@link #mHead}. The instances are reused.
+     */
+    private final SensorData[] mSlots;
+
+    /**
+     * Index of the oldest buffered sample in {@link #mSlots}
+     */
+    private int mHead = 0;
+
+    /**
+     * Number of buffered samples
+     */
+    private int mCount = 0;
+
+    /**
+     * The sample instance forwarded to the next element; reused for each forwarded sample
+     */
+    private final SensorData mOutput = new SensorData();
+
+    /**
+     * Timestamp of the last forwarded sample; samples older than this arrive too late to be used
+     */
+    private long mLastOutputTimestamp = Long.MIN_VALUE;
+
+    /**
+     * Data of the last forwarded sample, used as the start point of interpolations
+     */
+    private float[] mLastOutputData;
+
+    /**
+     * Lower bound of the playout delay, in nanoseconds
+     */
+    private final long mMinimumDelay;
+
+    /**
+     * Upper bound of the playout delay, in nanoseconds
+     */
+    private final long mMaximumDelay;
+
+    /**
+     * The playout delay is this multiple of the jitter estimate
+     */
+    private final float mJitterMultiplier;
+
+    /**
+     * How many consecutive missing samples may be interpolated; longer gaps are passed on
+     */
+    private final int mMaximumConcealedSamples;
+
+    /**
+     * Minimum transit time (arrival time - sample timestamp) of the current window, in nanoseconds
+     */
+    private long mCurrentMinimumTransit = Long.MAX_VALUE;
+
+    /**
+     * Minimum transit time of the previous window, in nanoseconds
+     */
+    private long mPreviousMinimumTransit = Long.MAX_VALUE;
+
+    /**
+     * When the current minimum transit window was started, see {@link System#nanoTime()}
+     */
+    private long mTransitWindowStart;
+
+    /**
+     * Transit time of the previously received sample, used for the jitter estimate
+     */
+    private long mLastTransit;
+
+    /**
+     * Smoothed jitter estimate as described in RFC 3550, in nanoseconds
+     */
+    private double mJitter = 0;
+
+    /**
+     * Timestamp of the previously received sample, used for estimating the sample interval
+     */
+    private long mLastReceivedTimestamp = Long.MIN_VALUE;
+
+    /**
+     * Smoothed interval between two samples of the device, in nanoseconds; 0 until it was estimated
+     */
+    private double mSampleInterval = 0;
+
+    /**
+     * The device that sent the data, forwarded together with the samples
+     */
+    private NetworkDevice mOrigin;
+
+    /**
+     * The last user sensitivity, forwarded together with the samples
+     */
+    private float mSensitivity;
+
+    /**
+     * Number of samples that arrived after their playout time, and were dropped
+     */
+    private long mLateCount = 0;
+
+    /**
+     * Number of samples dropped because the buffer was full
+     */
+    private long mOverflowCount = 0;
+
+    /**
+     * Number of samples created by interpolation
+     */
+    private long mConcealedCount = 0;
+
+    /**
+     * The device forwarded with {@link #mOutput}; only used by the playout thread
+     */
+    private NetworkDevice mOutputOrigin;
+
+    /**
+     * The sensitivity forwarded with {@link #mOutput}; only used by the playout thread
+     */
+    private float mOutputSensitivity;
+
+    /**
+     * Notified if the following pipeline throws while the playout thread forwards data; may be null
+     */
+    private volatile ExceptionListener mExceptionListener;
+
+    /**
+     * Runs the periodic {@link #playout()} task on its own daemon thread; created when the first sample arrives
+     */
+    private ScheduledExecutorService mPlayoutExecutor;
+
+    /**
+     * True after {@link #close()} was called; incoming data is ignored afterwards
+     */
+    private boolean mIsClosed = false;
+
+    /**
+     * Create a new {@link JitterBufferFilter} with default parameters: up to 64 buffered samples, a playout delay
+     * between 5ms and 100ms, and concealment of up to 3 consecutive lost samples.
+     *
+     * @param sink either a valid network data sink, or null. if null, {@link #setDataSink(NetworkDataSink)}
+     *             must be called prior to starting operations.
+     */
+    public JitterBufferFilter(@Nullable NetworkDataSink sink) {
+        this(64, 5, 100, 4f, 3, sink);
+    }
+
+    /**
+     * Create a new {@link JitterBufferFilter}
+     *
+     * @param capacity               how many samples may be buffered at most. If the buffer is full, the oldest sample
+     *                               is dropped.
+     * @param minimumDelay           lower bound of the playout delay in milliseconds
+     * @param maximumDelay           upper bound of the playout delay in milliseconds
+     * @param jitterMultiplier       the playout delay is this multiple of the jitter estimate; higher values mean fewer
+     *                               late samples, but more latency
+     * @param maximumConcealedSamples how many consecutive lost samples may be replaced by interpolated ones
+     * @param sink                   either a valid network data sink, or null. if null,
+     *                               {@link #setDataSink(NetworkDataSink)} must be called prior to starting operations.
+     * @throws IllegalArgumentException if the capacity is below 1, or the delay bounds are negative or swapped
+     */
+    public JitterBufferFilter(int capacity, int minimumDelay, int maximumDelay, float jitterMultiplier,
+                              int maximumConcealedSamples, @Nullable NetworkDataSink sink) {
+        super(sink);
+
+        // the buffer must be able to hold at least one sample
+        if (capacity < 1)
+            throw new IllegalArgumentException("The jitter buffer capacity must be at least 1");
+        if (minimumDelay < 0 || minimumDelay > maximumDelay)
+            throw new IllegalArgumentException("The playout delay bounds must satisfy 0 <= minimum <= maximum");
+
+        mSlots = new SensorData[capacity];
+        for (int i = 0; i < capacity; i++)
+            mSlots[i] = new SensorData();
+
+        mMinimumDelay = TimeUnit.MILLISECONDS.toNanos(minimumDelay);
+        mMaximumDelay = TimeUnit.MILLISECONDS.toNanos(maximumDelay);
+        mJitterMultiplier = jitterMultiplier;
+        mMaximumConcealedSamples = maximumConcealedSamples;
+    }
+
+    /**
+     * Buffer an incoming sample. It will be forwarded by the playout task once its playout time has come.
+     *
+     * @param origin          the network device that sent this data
+     * @param data            the incoming sample; it is copied, so the instance may be reused by the caller
+     * @param userSensitivity the sensitivity set by the user
+     */
+    @Override
+    public synchronized void onData(NetworkDevice origin, SensorData data, float userSensitivity) {
+        if (mIsClosed)
+            return;
+
+        long arrival = System.nanoTime();
+        mOrigin = origin;
+        mSensitivity = userSensitivity;
+
+        // start the playout task with the first sample
+        if (mPlayoutExecutor == null)
+            startPlayout(arrival);
+
+        updateTiming(data.timestamp, arrival);
+
+        // the playout time of this sample has already passed
+        if (data.timestamp <= mLastOutputTimestamp) {
+            mLateCount++;
+            return;
+        }
+
+        // make room by dropping the oldest sample; the playout thread cannot keep up, or the delay exceeds the buffer
+        if (mCount == mSlots.length) {
+            mHead = (mHead + 1) % mSlots.length;
+            mCount--;
+            mOverflowCount++;
+        }
+
+        insert(data);
+    }
+
+    /**
+     * Update the transit time, jitter and sample interval estimates with a newly arrived sample
+     *
+     * @param timestamp the device timestamp of the sample
+     * @param arrival   the local arrival time of the sample
+     */
+    private void updateTiming(long timestamp, long arrival) {
+        long transit = arrival - timestamp;
+
+        // keep the minimum transit of the last two windows; it is the delay of a sample that was not held up
+        if (arrival - mTransitWindowStart > TRANSIT_WINDOW_LENGTH) {
+            mPreviousMinimumTransit = mCurrentMinimumTransit;
+            mCurrentMinimumTransit = Long.MAX_VALUE;
+            mTransitWindowStart = arrival;
+        }
+        mCurrentMinimumTransit = Math.min(mCurrentMinimumTransit, transit);
+
+        // rfc 3550 jitter estimate, skipping the first sample
+        if (mLastReceivedTimestamp != Long.MIN_VALUE)
+            mJitter += (Math.abs(transit - mLastTransit) - mJitter) / 16.0;
+        mLastTransit = transit;
+
+        // estimate the sample interval from in-order samples; outliers are probably lost samples
+        long interval = timestamp - mLastReceivedTimestamp;
+        if (mLastReceivedTimestamp != Long.MIN_VALUE && interval > 0) {
+            if (mSampleInterval == 0)
+                mSampleInterval = interval;
+            else if (interval < 4 * mSampleInterval)
+                mSampleInterval += (interval - mSampleInterval) / 16.0;
+        }
+        mLastReceivedTimestamp = Math.max(mLastReceivedTimestamp, timestamp);
+    }
+
+    /**
+     * Copy a sample into the buffer, keeping it sorted by timestamp. Samples with a timestamp already buffered are
+     * dropped.
+     *
+     * @param data the sample to be buffered
+     */
+    private void insert(SensorData data) {
+        // find the insert position from the back, as samples usually arrive in order
+        int position = mCount;
+        while (position > 0) {
+            long previous = slot(position - 1).timestamp;
+            if (previous == data.timestamp)
+                return;
+            if (previous < data.timestamp)
+                break;
+            position--;
+        }
+
+        // shift the newer samples back, moving the free instance into the gap
+        SensorData free = slot(mCount);
+        for (int i = mCount; i > position; i--)
+            mSlots[(mHead + i) % mSlots.length] = slot(i - 1);
+        mSlots[(mHead + position) % mSlots.length] = free;
+        mCount++;
+
+        copy(data, free);
+    }
+
+    /**
+     * Get a buffered sample
+     *
+     * @param index index relative to the oldest buffered sample
+     * @return the slot at the given position
+     */
+    private SensorData slot(int index) {
+        return mSlots[(mHead + index) % mSlots.length];
+    }
+
+    /**
+     * Copy a sample into a reused instance, only allocating if the axis count changes
+     *
+     * @param source the sample to be copied
+     * @param target the instance to copy into
+     */
+    private static void copy(SensorData source, SensorData target) {
+        if (target.data == null || target.data.length != source.data.length)
+            target.data = new float[source.data.length];
+        System.arraycopy(source.data, 0, target.data, 0, source.data.length);
+        target.sensorType = source.sensorType;
+        target.timestamp = source.timestamp;
+        target.ingressTimestamp = source.ingressTimestamp;
+        target.serverTimestamp = source.serverTimestamp;
+    }
+
+    /**
+     * Get the current playout delay
+     *
+     * @return the delay in nanoseconds that samples are held back above the minimum transit time
+     */
+    private long getDelay() {
+        long delay = (long) (mJitterMultiplier * mJitter);
+        return Math.max(mMinimumDelay, Math.min(mMaximumDelay, delay));
+    }
+
+    /**
+     * Calculate when a sample should be forwarded
+     *
+     * @param timestamp device timestamp of the sample
+     * @return the local time the sample is due, see {@link System#nanoTime()}
+     */
+    private long getPlayoutTime(long timestamp) {
+        return timestamp + Math.min(mCurrentMinimumTransit, mPreviousMinimumTransit) + getDelay();
+    }
+
+    /**
+     * Called periodically by the playout thread; forwards all samples that are due, and interpolates short gaps. Each
+     * sample is prepared while holding the lock, but forwarded without it, so the pipeline cannot block
+     * {@link #onData(NetworkDevice, SensorData, float)}.
+     */
+    private void playout() {
+        try {
+            while (takeDueSample())
+                forwardData(mOutputOrigin, mOutput, mOutputSensitivity);
+        } catch (RuntimeException e) {
+            // an exception would silently cancel all further playouts
+            ExceptionListener listener = mExceptionListener;
+            if (listener != null)
+                listener.onException(this, e, "JitterBufferFilter: the following pipeline failed during playout");
+            else
+                e.printStackTrace();
+        }
+    }
+
+    /**
+     * Prepare the next sample due in {@link #mOutput}, interpolating it if a short gap is to be concealed
+     *
+     * @return true if {@link #mOutput} must be forwarded, false if no sample is due yet
+     */
+    private synchronized boolean takeDueSample() {
+        if (mIsClosed || mCount == 0)
+            return false;
+
+        long now = System.nanoTime();
+        SensorData head = slot(0);
+
+        // conceal a gap if the next sample is missing and the gap is short enough; each concealed sample shortens it
+        long expected = mLastOutputTimestamp + (long) mSampleInterval;
+        boolean isGap = mLastOutputData != null && mSampleInterval > 0 &&
+                head.timestamp - mLastOutputTimestamp > GAP_THRESHOLD * mSampleInterval &&
+                head.timestamp - mLastOutputTimestamp <= (mMaximumConcealedSamples + 1) * mSampleInterval;
+
+        if (isGap && getPlayoutTime(expected) <= now)
+            takeInterpolated(head, expected);
+        else if (getPlayoutTime(head.timestamp) <= now)
+            takeHead();
+        else
+            return false;
+
+        mOutputOrigin = mOrigin;
+        mOutputSensitivity = mSensitivity;
+        return true;
+    }
+
+    /**
+     * Copy the oldest buffered sample into the output instance, and remove it from the buffer
+     */
+    private void takeHead() {
+        SensorData head = slot(0);
+        mHead = (mHead + 1) % mSlots.length;
+        mCount--;
+
+        copy(head, mOutput);
+        rememberOutput();
+    }
+
+    /**
+     * Interpolate a sample between the last forwarded one and the next buffered one into the output instance
+     *
+     * @param next      the next buffered sample
+     * @param timestamp timestamp of the interpolated sample
+     */
+    private void takeInterpolated(SensorData next, long timestamp) {
+        // samples with a different axis count cannot be interpolated
+        if (next.data.length != mLastOutputData.length) {
+            takeHead();
+            return;
+        }
+
+        float fraction = (float) (timestamp - mLastOutputTimestamp) / (next.timestamp - mLastOutputTimestamp);
+
+        // the output data array is reused; mLastOutputData is updated by rememberOutput()
+        float[] values = mOutput.data.length == next.data.length ? mOutput.data : new float[next.data.length];
+        for (int i = 0; i < values.length; i++)
+            values[i] = mLastOutputData[i] + fraction * (next.data[i] - mLastOutputData[i]);
+
+        mConcealedCount++;
+        mOutput.data = values;
+        mOutput.sensorType = next.sensorType;
+        mOutput.timestamp = timestamp;
+        // the interpolated sample could only be created once the next one had arrived
+        mOutput.ingressTimestamp = next.ingressTimestamp;
+        mOutput.serverTimestamp = 0;
+        rememberOutput();
+    }
+
+    /**
+     * Remember the values of the output instance for interpolation, before the following elements can modify them
+     */
+    private void rememberOutput() {
+        if (mLastOutputData == null || mLastOutputData.length != mOutput.data.length)
+            mLastOutputData = new float[mOutput.data.length];
+        System.arraycopy(mOutput.data, 0, mLastOutputData, 0, mOutput.data.length);
+        mLastOutputTimestamp = mOutput.timestamp;
+    }
+
+    /**
+     * Start the playout task
+     *
+     * @param now the current time, see {@link System#nanoTime()}
+     */
+    private void startPlayout(long now) {
+        mTransitWindowStart = now;
+        mPlayoutExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "JitterBufferFilter playout");
+
+            // like the data receivers, playout should not keep the jvm alive
+            thread.setDaemon(true);
+            return thread;
+        });
+        mPlayoutExecutor.scheduleAtFixedRate(this::playout, PLAYOUT_PERIOD, PLAYOUT_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the current playout delay
+     *
+     * @return how long samples are held back in addition to the minimum network delay, in milliseconds
+     */
+    public synchronized double getPlayoutDelay() {
+        return getDelay() / 1e6;
+    }
+
+    /**
+     * Get the number of samples dropped because they arrived after their playout time
+     *
+     * @return number of late samples
+     */
+    public synchronized long getLateCount() {
+        return mLateCount;
+    }
+
+    /**
+     * Get the number of samples dropped because the buffer was full
+     *
+     * @return number of overflowed samples
+     */
+    public synchronized long getOverflowCount() {
+        return mOverflowCount;
+    }
+
+    /**
+     * Get the number of samples that were interpolated to fill gaps
+     *
+     * @return number of concealed samples
+     */
+    public synchronized long getConcealedCount() {
+        return mConcealedCount;
+    }
+
+    /**
+     * Set the listener notified if the following pipeline throws on the playout thread. Without a listener, the stack
+     * trace is printed. Playout continues with the next sample either way.
+     *
+     * @param exceptionListener the new exception listener
+     */
+    public void setExceptionListener(@Nullable ExceptionListener exceptionListener) {
+        mExceptionListener = exceptionListener;
+    }
+
+    /**
+     * Stop the playout task and its thread. Buffered samples are discarded.
+     */
+    @Override
+    public synchronized void close() {
+        if (mPlayoutExecutor != null)
+            mPlayoutExecutor.shutdown();
+        mIsClosed = true;
+        mCount = 0;
+    }
+}
@@ -1,23 +1,44 @@
 package de.ovgu.softwareprojekt.pipeline.splitters;
 
+import de.ovgu.softwareprojekt.SensorData;
 import de.ovgu.softwareprojekt.networking.NetworkDataSink;
 import de.ovgu.softwareprojekt.SensorType;
 import de.ovgu.softwareprojekt.discovery.NetworkDevice;
+import de.ovgu.softwareprojekt.util.SlotMap;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 /**
  * This class combines the functionality of {@link SensorSplitter} and {@link ClientSplitter}, that is, data sinks can be
- * registered to be notified only of specified sensor type events from specified network devices
+ * registered to be notified only of specified sensor type events from specified network devices. Any number of data
+ * sinks may be registered for each device and sensor.
+ * <p>
+ * Data is routed through a table indexed by the {@link NetworkDevice#getSlot() slot} of the device and the ordinal of
+ * the sensor. The table is rebuilt whenever sinks are added or removed, so clients may join and leave while data is
+ * forwarded, and forwarding never locks.
  */
-public class ClientSensorSplitter {
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class ClientSensorSplitter implements NetworkDataSink {
     /**
-     * The {@link ClientSplitter} used to split data by {@link NetworkDevice}
+     * The number of sensor types, which is the size of the second dimension of the table
      */
-    private ClientSplitter mClientSplitter = new ClientSplitter();
+    private static final int SENSOR_COUNT = SensorType.values().length;
 
     /**
-     * The {@link SensorSplitter} used to split data by {@link SensorType}
+     * All registrations, in the order they were made. Guarded by this instance.
      */
-    private SensorSplitter mSensorSplitter = new SensorSplitter();
+    private final Set<Registration> mRegistrations = new LinkedHashSet<>();
+
+    /**
+     * The routing table compiled from {@link #mRegistrations}; replaced, never changed
+     */
+    private volatile RoutingTable mRoutingTable = new RoutingTable(new ArrayList<>());
 
     /**
      * Add a data sink to be notified of sensor data for a certain sensor from a specified network device
@@ -25,17 +46,141 @@ public class ClientSensorSplitter {
      * @param sensor the sensor that must have sent the data
      * @param dataSink the data sink that receives <code>sensor</code> data from <code>origin</code>
      */
-    public void addDataSink(NetworkDevice origin, SensorType sensor, NetworkDataSink dataSink){
-        mSensorSplitter.addDataSink(sensor, dataSink);
-        mClientSplitter.addDataSink(origin, mSensorSplitter);
+    public synchronized void addDataSink(NetworkDevice origin, SensorType sensor, NetworkDataSink dataSink){
+        if (mRegistrations.add(new Registration(origin, sensor, dataSink)))
+            mRoutingTable = new RoutingTable(mRegistrations);
     }
 
     /**
      * Remove a data sink from this pipeline element. It will no longer be notified of any data from this source.
      * @param dataSink the data sink
      */
-    public void removeElement(NetworkDataSink dataSink){
-        mSensorSplitter.remove(dataSink);
-        mClientSplitter.remove(dataSink);
+    public synchronized void removeElement(NetworkDataSink dataSink){
+        if (mRegistrations.removeIf(registration -> registration.sink.equals(dataSink)))
+            mRoutingTable = new RoutingTable(mRegistrations);
+    }
+
+    /**
+     * Remove all data sinks of a device, for example because it disconnected
+     * @param origin the network device whose data will be ignored from now on
+     */
+    public synchronized void remove(NetworkDevice origin){
+        if (mRegistrations.removeIf(registration -> registration.origin.equals(origin)))
+            mRoutingTable = new RoutingTable(mRegistrations);
+    }
+
+    /**
+     * Forward the data to each data sink registered for its origin and sensor
+     *
+     * @param origin          network device that sent the data
+     * @param data            received data
+     * @param userSensitivity sensitivity set by the user
+     */
+    @Override
+    public void onData(NetworkDevice origin, SensorData data, float userSensitivity) {
+        NetworkDataSink[][] sensorSinks = mRoutingTable.sinks.get(origin);
+        if (sensorSinks == null)
+            return;
+
+        for (NetworkDataSink sink : sensorSinks[data.sensorType.ordinal()])
+            sink.onData(origin, data, userSensitivity);
+    }
+
+    /**
+     * Not needed for this splitter
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * A data sink registered for a device and sensor. Registrations are equal if all three match.
+     */
+    private static final class Registration {
+        /**
+         * The device whose data is accepted
+         */
+        final NetworkDevice origin;
+
+        /**
+         * The sensor whose data is accepted
+         */
+        final SensorType sensor;
+
+        /**
+         * The sink that should receive the data
+         */
+        final NetworkDataSink sink;
+
+        /**
+         * Create a new registration
+         *
+         * @param origin the device whose data is accepted
+         * @param sensor the sensor whose data is accepted
+         * @param sink   the sink that should receive the data
+         */
+        Registration(NetworkDevice origin, SensorType sensor, NetworkDataSink sink) {
+            this.origin = origin;
+            this.sensor = sensor;
+            this.sink = sink;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Registration))
+                return false;
+
+            Registration other = (Registration) obj;
+            return sensor == other.sensor && origin.equals(other.origin) && sink.equals(other.sink);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(origin, sensor, sink);
+        }
+    }
+
+    /**
+     * An immutable snapshot of the registrations: for each device, the sinks of each sensor, indexed by ordinal
+     */
+    private static final class RoutingTable {
+        /**
+         * Returned for sensors without sinks, so that forwarding does not need to check for null
+         */
+        private static final NetworkDataSink[] NO_SINKS = new NetworkDataSink[0];
+
+        /**
+         * The sinks of each device that has any, by sensor ordinal
+         */
+        final SlotMap<NetworkDataSink[][]> sinks;
+
+        /**
+         * Compile a routing table
+         *
+         * @param registrations the registrations, in the order their sinks should be called
+         */
+        RoutingTable(Iterable<Registration> registrations) {
+            Map<NetworkDevice, List<List<NetworkDataSink>>> originSinks = new LinkedHashMap<>();
+            for (Registration registration : registrations) {
+                List<List<NetworkDataSink>> sensorSinks = originSinks.computeIfAbsent(registration.origin, origin -> {
+                    List<List<NetworkDataSink>> sinks = new ArrayList<>(SENSOR_COUNT);
+                    for (int i = 0; i < SENSOR_COUNT; i++)
+                        sinks.add(new ArrayList<>());
+                    return sinks;
+                });
+                sensorSinks.get(registration.sensor.ordinal()).add(registration.sink);
+            }
+
+            Map<NetworkDevice, NetworkDataSink[][]> sinkArrays = new LinkedHashMap<>();
+            for (Map.Entry<NetworkDevice, List<List<NetworkDataSink>>> entry : originSinks.entrySet()) {
+                NetworkDataSink[][] sensorSinks = new NetworkDataSink[SENSOR_COUNT][];
+                for (int sensor = 0; sensor < SENSOR_COUNT; sensor++) {
+                    List<NetworkDataSink> sinks = entry.getValue().get(sensor);
+                    sensorSinks[sensor] = sinks.isEmpty() ? NO_SINKS : sinks.toArray(new NetworkDataSink[sinks.size()]);
+                }
+                sinkArrays.put(entry.getKey(), sensorSinks);
+            }
+            sinks = new SlotMap<>(sinkArrays);
+        }
     }
 }
@@ -4,20 +4,31 @@ import de.ovgu.softwareprojekt.DataSink;
 import de.ovgu.softwareprojekt.networking.NetworkDataSink;
 import de.ovgu.softwareprojekt.SensorData;
 import de.ovgu.softwareprojekt.discovery.NetworkDevice;
+import de.ovgu.softwareprojekt.util.SlotMap;
 
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * This class can be used to split data from various devices to different pipelines. Sensor data will not be duplicated
  * or copied, so sensor data can only be sent to a single data sink.
+ * <p>
+ * Connected clients are looked up by their {@link NetworkDevice#getSlot() slot} using a {@link SlotMap}, so forwarding
+ * data neither hashes nor compares the device strings. The lookup table is replaced whenever the sinks change, so data
+ * may be forwarded while sinks are added or removed.
  */
 @SuppressWarnings({"unused", "WeakerAccess"})
 public class ClientSplitter implements NetworkDataSink {
     /**
-     * This map is used to store which data sink gets data from which device
+     * This map is used to store which data sink gets data from which device. Guarded by this instance.
      */
-    private HashMap<NetworkDevice, NetworkDataSink> mNetworkDataSinkMap = new HashMap<>();
+    private final Map<NetworkDevice, NetworkDataSink> mNetworkDataSinkMap = new LinkedHashMap<>();
+
+    /**
+     * The lookup table compiled from {@link #mNetworkDataSinkMap}; replaced, never changed
+     */
+    private volatile SlotMap<NetworkDataSink> mRoutes = new SlotMap<>(Collections.<NetworkDevice, NetworkDataSink>emptyMap());
 
     /**
      * Add a new data sink which will receive all incoming data sent by the specified device
@@ -25,8 +36,9 @@ public class ClientSplitter implements NetworkDataSink {
      * @param source   the device that must send the data
      * @param dataSink the sink that will receive data sent by the specified device
      */
-    public void addDataSink(NetworkDevice source, NetworkDataSink dataSink) {
+    public synchronized void addDataSink(NetworkDevice source, NetworkDataSink dataSink) {
         mNetworkDataSinkMap.put(source, dataSink);
+        updateRoutes();
     }
 
     /**
@@ -34,8 +46,9 @@ public class ClientSplitter implements NetworkDataSink {
      *
      * @param device the device that will be ignored by this {@link ClientSplitter} from now on
      */
-    public void remove(NetworkDevice device) {
+    public synchronized void remove(NetworkDevice device) {
         mNetworkDataSinkMap.remove(device);
+        updateRoutes();
     }
 
     /**
@@ -43,9 +56,17 @@ public class ClientSplitter implements NetworkDataSink {
      *
      * @param sink the sink that should no longer receive data by this {@link ClientSplitter}
      */
-    public void remove(NetworkDataSink sink) {
+    public synchronized void remove(NetworkDataSink sink) {
         // remove all entries where the data sink is sink
         mNetworkDataSinkMap.values().removeAll(Collections.singleton(sink));
+        updateRoutes();
+    }
+
+    /**
+     * Rebuild the lookup table from {@link #mNetworkDataSinkMap}. Must be called while holding the lock.
+     */
+    private void updateRoutes() {
+        mRoutes = new SlotMap<>(mNetworkDataSinkMap);
     }
 
     /**
@@ -57,8 +78,9 @@ public class ClientSplitter implements NetworkDataSink {
      */
     @Override
     public void onData(NetworkDevice origin, SensorData data, float userSensitivity) {
-        if (mNetworkDataSinkMap.containsKey(origin))
-            mNetworkDataSinkMap.get(origin).onData(origin, data, userSensitivity);
+        NetworkDataSink sink = mRoutes.get(origin);
+        if (sink != null)
+            sink.onData(origin, data, userSensitivity);
     }
 
     /**
@@ -57,8 +57,9 @@ public class SensorSplitter implements NetworkDataSink {
      */
     @Override
     public void onData(NetworkDevice origin, SensorData data, float userSensitivity) {
-        if (mNetworkDataSinkMap.containsKey(data.sensorType))
-            mNetworkDataSinkMap.get(data.sensorType).onData(origin, data, userSensitivity);
+        NetworkDataSink sink = mNetworkDataSinkMap.get(data.sensorType);
+        if (sink != null)
+            sink.onData(origin, data, userSensitivity);
     }
 
     /**
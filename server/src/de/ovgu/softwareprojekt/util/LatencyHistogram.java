@@ -0,0 +1,226 @@
+package de.ovgu.softwareprojekt.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This is a histogram of latencies with a fixed memory footprint, similar to an HDR histogram. Values are stored in
+ * microseconds, in buckets that grow with the value: each power of two is split into {@link #SUB_BUCKET_COUNT}
+ * buckets, so any percentile is accurate to about 3%. Values of an hour or more are counted as an hour.
+ * <p>
+ * Recording is lock-free and may happen from any thread. Read the recorded values using {@link #getSnapshot()}, or
+ * use {@link #snapshotAndReset()} to collect the values of consecutive intervals.
+ */
+@SuppressWarnings("WeakerAccess")
+public class LatencyHistogram {
+    /**
+     * How many bits below the highest set bit of a value decide its bucket
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * Number of buckets each power of two is split into
+     */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Values below this are stored exactly, in one bucket each
+     */
+    private static final long LINEAR_LIMIT = 2 * SUB_BUCKET_COUNT;
+
+    /**
+     * The largest value that can be recorded, in microseconds; larger values are clamped
+     */
+    private static final long MAXIMUM_VALUE = 3600L * 1000 * 1000;
+
+    /**
+     * The bucket counts
+     */
+    private final AtomicLongArray mCounts = new AtomicLongArray(getBucketIndex(MAXIMUM_VALUE) + 1);
+
+    /**
+     * The largest value recorded since the last reset, in microseconds
+     */
+    private final AtomicLong mMaximum = new AtomicLong();
+
+    /**
+     * The sum of all values recorded since the last reset, in microseconds
+     */
+    private final AtomicLong mSum = new AtomicLong();
+
+    /**
+     * Record a latency
+     *
+     * @param nanoseconds the latency in nanoseconds; negative values are counted as zero
+     */
+    public void record(long nanoseconds) {
+        long value = Math.min(Math.max(nanoseconds / 1000, 0), MAXIMUM_VALUE);
+
+        mCounts.incrementAndGet(getBucketIndex(value));
+        mSum.addAndGet(value);
+
+        // raise the maximum if required
+        long maximum;
+        do {
+            maximum = mMaximum.get();
+        } while (value > maximum && !mMaximum.compareAndSet(maximum, value));
+    }
+
+    /**
+     * Get a copy of all values recorded since the last reset
+     *
+     * @return an immutable snapshot
+     */
+    public Snapshot getSnapshot() {
+        long[] counts = new long[mCounts.length()];
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = mCounts.get(i);
+        return new Snapshot(counts, mSum.get(), mMaximum.get());
+    }
+
+    /**
+     * Get a copy of all values recorded since the last reset, and reset the histogram. Values recorded concurrently
+     * end up either in the returned snapshot or in the next one, but are never lost.
+     *
+     * @return an immutable snapshot
+     */
+    public Snapshot snapshotAndReset() {
+        long[] counts = new long[mCounts.length()];
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = mCounts.getAndSet(i, 0);
+        return new Snapshot(counts, mSum.getAndSet(0), mMaximum.getAndSet(0));
+    }
+
+    /**
+     * Find the bucket a value belongs in
+     *
+     * @param value the value in microseconds, between 0 and {@link #MAXIMUM_VALUE}
+     * @return the index of the bucket
+     */
+    private static int getBucketIndex(long value) {
+        // small values get a bucket each
+        if (value < LINEAR_LIMIT)
+            return (int) value;
+
+        // the power of two decides the bucket group, the following bits the bucket inside it
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return (int) LINEAR_LIMIT + (shift - 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * Get the largest value that falls into a bucket
+     *
+     * @param index the index of the bucket
+     * @return the upper bound of the bucket in microseconds
+     */
+    private static long getBucketUpperBound(int index) {
+        if (index < LINEAR_LIMIT)
+            return index;
+
+        int shift = (index - (int) LINEAR_LIMIT) / SUB_BUCKET_COUNT + 1;
+        int subBucket = (index - (int) LINEAR_LIMIT) % SUB_BUCKET_COUNT;
+        return ((long) (SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * An immutable copy of the values of a {@link LatencyHistogram}. All latencies are returned in milliseconds.
+     */
+    public static final class Snapshot {
+        /**
+         * The bucket counts
+         */
+        private final long[] mCounts;
+
+        /**
+         * Number of recorded values
+         */
+        private final long mCount;
+
+        /**
+         * Sum of the recorded values, in microseconds
+         */
+        private final long mSum;
+
+        /**
+         * The largest recorded value, in microseconds
+         */
+        private final long mMaximum;
+
+        /**
+         * Create a new snapshot
+         *
+         * @param counts  the bucket counts; not copied
+         * @param sum     sum of the recorded values, in microseconds
+         * @param maximum the largest recorded value, in microseconds
+         */
+        private Snapshot(long[] counts, long sum, long maximum) {
+            mCounts = counts;
+            mSum = sum;
+            mMaximum = maximum;
+
+            long count = 0;
+            for (long bucketCount : counts)
+                count += bucketCount;
+            mCount = count;
+        }
+
+        /**
+         * Get the number of recorded values
+         *
+         * @return how many latencies were recorded
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * Get the mean latency
+         *
+         * @return the mean latency in milliseconds, or 0 if nothing was recorded
+         */
+        public double getMean() {
+            return mCount > 0 ? mSum / 1e3 / mCount : 0;
+        }
+
+        /**
+         * Get the largest latency
+         *
+         * @return the largest latency in milliseconds, or 0 if nothing was recorded
+         */
+        public double getMaximum() {
+            return mMaximum / 1e3;
+        }
+
+        /**
+         * Get the latency below which the given percentage of latencies lie
+         *
+         * @param percentile the percentile, between 0 and 100, like 99.9
+         * @return the latency in milliseconds, or 0 if nothing was recorded
+         */
+        public double getPercentile(double percentile) {
+            if (mCount == 0)
+                return 0;
+
+            // the rank of the value we look for, starting at 1
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+
+                // the bucket bound may be above the actual maximum
+                if (seen >= rank)
+                    return Math.min(getBucketUpperBound(i), mMaximum) / 1e3;
+            }
+            return getMaximum();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count %d, p50 %.3fms, p99 %.3fms, p99.9 %.3fms, max %.3fms",
+                    getCount(), getPercentile(50), getPercentile(99), getPercentile(99.9), getMaximum());
+        }
+    }
+}
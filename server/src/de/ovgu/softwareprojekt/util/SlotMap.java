@@ -0,0 +1,83 @@
+package de.ovgu.softwareprojekt.util;
+
+import de.ovgu.softwareprojekt.discovery.NetworkDevice;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * This is an immutable map from network devices to values, made for looking up the origin of each received sample.
+ * Connected clients are found by their {@link NetworkDevice#getSlot() slot}, so a lookup neither hashes nor compares
+ * the device strings. Other devices, for example copies of a client, are compared using
+ * {@link NetworkDevice#isSameClient(NetworkDevice)}.
+ * <p>
+ * The slot of a device is read when the map is created. Rebuild the map whenever its devices change, and publish it
+ * through a volatile field, so that lookups never lock.
+ *
+ * @param <V> type of the values
+ */
+@SuppressWarnings("WeakerAccess")
+public final class SlotMap<V> {
+    /**
+     * The devices, in the iteration order of the source map
+     */
+    private final NetworkDevice[] mDevices;
+
+    /**
+     * The value of each device in {@link #mDevices}, at the same index
+     */
+    private final Object[] mValues;
+
+    /**
+     * The index into {@link #mDevices} of the device holding each slot, or -1
+     */
+    private final int[] mIndexBySlot;
+
+    /**
+     * Create a new map
+     *
+     * @param values the value of each device; not referenced after construction
+     */
+    public SlotMap(Map<NetworkDevice, ? extends V> values) {
+        mDevices = new NetworkDevice[values.size()];
+        mValues = new Object[values.size()];
+
+        int slotCount = 0;
+        int i = 0;
+        for (Map.Entry<NetworkDevice, ? extends V> entry : values.entrySet()) {
+            mDevices[i] = entry.getKey();
+            mValues[i] = entry.getValue();
+            slotCount = Math.max(slotCount, mDevices[i].getSlot() + 1);
+            i++;
+        }
+
+        mIndexBySlot = new int[slotCount];
+        Arrays.fill(mIndexBySlot, -1);
+        for (i = 0; i < mDevices.length; i++)
+            if (mDevices[i].getSlot() != NetworkDevice.NO_SLOT)
+                mIndexBySlot[mDevices[i].getSlot()] = i;
+    }
+
+    /**
+     * Get the value of a device
+     *
+     * @param device the device
+     * @return the value of the device, or null if it has none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(NetworkDevice device) {
+        // a slot may have been given to another client since the map was built, so the instance must match
+        int slot = device.getSlot();
+        if (slot >= 0 && slot < mIndexBySlot.length) {
+            int index = mIndexBySlot[slot];
+            if (index >= 0 && mDevices[index] == device)
+                return (V) mValues[index];
+        }
+
+        // devices without a slot, for example copies of a client; connected clients are not compared by string
+        for (int i = 0; i < mDevices.length; i++)
+            if (mDevices[i].isSameClient(device))
+                return (V) mValues[i];
+        return null;
+    }
+}